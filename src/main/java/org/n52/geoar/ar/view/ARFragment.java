@@ -24,9 +24,11 @@ import org.n52.geoar.newdata.CheckList;
 import org.n52.geoar.newdata.DataSourceHolder;
 import org.n52.geoar.newdata.DataSourceInstanceHolder;
 import org.n52.geoar.newdata.PluginLoader;
+import org.n52.geoar.newdata.TilePrefetcher;
 import org.n52.geoar.newdata.CheckList.OnCheckedChangedListener;
 import org.n52.geoar.tracking.location.LocationHandler;
 import org.n52.geoar.tracking.location.LocationHandler.OnLocationUpdateListener;
+import org.n52.geoar.view.geoar.Settings;
 
 import android.location.Location;
 import android.os.Bundle;
@@ -58,6 +60,7 @@ public class ARFragment extends SherlockFragment implements
 				DataSourceVisualizationHandler visualizationHandler = new DataSourceVisualizationHandler(
 						mARView, item);
 				mVisualizationHandlerMap.put(item, visualizationHandler);
+				mPrefetcher.addCache(item.getDataCache());
 				Location lastKnownLocation = LocationHandler
 						.getLastKnownLocation();
 				if (lastKnownLocation != null) {
@@ -70,6 +73,7 @@ public class ARFragment extends SherlockFragment implements
 				// data source disabled -> remove corresponding overlay handler
 				DataSourceVisualizationHandler visualizationHandler = mVisualizationHandlerMap
 						.remove(item);
+				mPrefetcher.removeCache(item.getDataCache());
 				if (visualizationHandler != null) {
 					visualizationHandler.destroy();
 				}
@@ -78,10 +82,14 @@ public class ARFragment extends SherlockFragment implements
 	};
 
 	private ARView mARView;
+	// Loads data along the path of the user in advance
+	private TilePrefetcher mPrefetcher = new TilePrefetcher(Settings.ZOOM_AR,
+			Settings.SIZE_AR_INTERPOLATION);
 
 	@Override
 	public void onLocationChanged(Location location) {
 		updateVisualizationHandlers(location);
+		mPrefetcher.onLocationChanged(location);
 	}
 
 	private void updateVisualizationHandlers(Location location) {
@@ -121,6 +129,7 @@ public class ARFragment extends SherlockFragment implements
 				DataSourceVisualizationHandler visualizationHandler = new DataSourceVisualizationHandler(
 						mARView, instance);
 				mVisualizationHandlerMap.put(instance, visualizationHandler);
+				mPrefetcher.addCache(instance.getDataCache());
 			}
 
 			// register for update events
@@ -171,6 +180,10 @@ public class ARFragment extends SherlockFragment implements
 				.values()) {
 			handler.destroy();
 		}
+		for (DataSourceInstanceHolder instance : mVisualizationHandlerMap
+				.keySet()) {
+			mPrefetcher.removeCache(instance.getDataCache());
+		}
 		mVisualizationHandlerMap.clear();
 		// if (augmentedView != null)
 		// augmentedView.destroyDrawingCache();
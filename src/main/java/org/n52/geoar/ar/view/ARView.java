@@ -16,12 +16,18 @@
 package org.n52.geoar.ar.view;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.n52.geoar.ar.view.gl.ARSurfaceView;
 import org.n52.geoar.ar.view.overlay.ARCanvasSurfaceView;
+import org.n52.geoar.newdata.SpatialEntity2;
 import org.n52.geoar.tracking.camera.CameraView;
 import org.n52.geoar.tracking.camera.RealityCamera;
 import org.n52.geoar.tracking.camera.RealityCamera.CameraUpdateListener;
@@ -105,6 +111,64 @@ public class ARView extends FrameLayout implements CameraUpdateListener {
 		mCanvasOverlayView.notifyARObjectsChanged();
 	}
 
+	/**
+	 * Adds ARObjects to the ones previously set using the specified key
+	 * 
+	 * @param arObjects
+	 * @param key
+	 */
+	public void addARObjects(final List<ARObject> arObjects, final Object key) {
+		synchronized (this.mARObjectMap) {
+			List<ARObject> mapping = this.mARObjectMap.get(key);
+			if (mapping == null) {
+				this.mARObjectMap.put(key, new ArrayList<ARObject>(arObjects));
+			} else {
+				mapping.addAll(arObjects);
+			}
+		}
+
+		mARSurfaceView.notifyARObjectsChanged();
+		mCanvasOverlayView.notifyARObjectsChanged();
+	}
+
+	/**
+	 * Replaces the ARObjects of specific entities which were previously set
+	 * using the specified key
+	 * 
+	 * @param entities
+	 *            Entities whose ARObjects to remove
+	 * @param arObjects
+	 *            ARObjects to add
+	 * @param key
+	 */
+	public void replaceARObjects(
+			final Collection<? extends SpatialEntity2<?>> entities,
+			final List<ARObject> arObjects, final Object key) {
+		synchronized (this.mARObjectMap) {
+			List<ARObject> mapping = this.mARObjectMap.get(key);
+			if (mapping == null) {
+				mapping = new ArrayList<ARObject>();
+				this.mARObjectMap.put(key, mapping);
+			}
+			if (!entities.isEmpty()) {
+				// Entities are compared by identity, as they are the instances
+				// the ARObjects got created for
+				Set<SpatialEntity2<?>> entitySet = Collections
+						.newSetFromMap(new IdentityHashMap<SpatialEntity2<?>, Boolean>());
+				entitySet.addAll(entities);
+				for (Iterator<ARObject> it = mapping.iterator(); it.hasNext();) {
+					if (entitySet.contains(it.next().getEntity())) {
+						it.remove();
+					}
+				}
+			}
+			mapping.addAll(arObjects);
+		}
+
+		mARSurfaceView.notifyARObjectsChanged();
+		mCanvasOverlayView.notifyARObjectsChanged();
+	}
+
 	/**
 	 * Removes all ARObjects which were previously set using the specified key
 	 * 
@@ -148,6 +212,17 @@ public class ARView extends FrameLayout implements CameraUpdateListener {
 		}
 	}
 
+	/**
+	 * @return Viewing direction of the camera in degrees clockwise from north,
+	 *         or {@link Float#NaN} if unknown
+	 */
+	public float getHeading() {
+		if (mARSurfaceView == null) {
+			return Float.NaN;
+		}
+		return mARSurfaceView.getHeading();
+	}
+
 	public void onPause() {
 		RealityCamera.removeCameraUpdateListener(this);
 		mARSurfaceView.onPause();
@@ -25,9 +25,11 @@ import org.n52.geoar.alg.proj.MercatorProj;
 import org.n52.geoar.alg.proj.MercatorRect;
 import org.n52.geoar.newdata.DataCache.Cancelable;
 import org.n52.geoar.newdata.DataCache.DataSourceErrorType;
-import org.n52.geoar.newdata.DataCache.GetDataBoundsCallback;
+import org.n52.geoar.newdata.DataCache.GetDataBoundsStreamCallback;
+import org.n52.geoar.newdata.DataCache.OnDataDeltaListener;
 import org.n52.geoar.newdata.DataSourceInstanceHolder;
 import org.n52.geoar.newdata.DataSourceInstanceHolder.DataSourceSettingsChangedListener;
+import org.n52.geoar.newdata.EntityDelta;
 import org.n52.geoar.newdata.RenderFeatureFactory;
 import org.n52.geoar.newdata.SpatialEntity2;
 import org.n52.geoar.newdata.Visualization.ARVisualization;
@@ -40,6 +42,10 @@ import org.n52.geoar.view.geoar.gl.mode.RenderFeature2;
 import org.n52.geoar.view.geoar.gl.mode.features.CubeFeature2;
 import org.n52.geoar.view.geoar.gl.mode.features.SphereFeature;
 
+import android.os.Handler;
+import android.os.Looper;
+
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 
 /**
@@ -48,9 +54,12 @@ import com.vividsolutions.jts.geom.Geometry;
  *
  */
 public class DataSourceVisualizationHandler implements RenderFeatureFactory,
-		DataSourceSettingsChangedListener {
+		DataSourceSettingsChangedListener, OnDataDeltaListener {
+
+	// Relative change of the adapted radius which causes a new request
+	private static final float RADIUS_TOLERANCE = 0.25f;
 
-	private GetDataBoundsCallback callback = new GetDataBoundsCallback() {
+	private GetDataBoundsStreamCallback callback = new GetDataBoundsStreamCallback() {
 
 		@Override
 		public void onProgressUpdate(int progress, int maxProgress) {
@@ -74,48 +83,35 @@ public class DataSourceVisualizationHandler implements RenderFeatureFactory,
 		}
 
 		@Override
-		public void onReceiveDataUpdate(MercatorRect bounds,
+		public void onReceiveTileData(MercatorRect bounds,
 				List<? extends SpatialEntity2<? extends Geometry>> data) {
 
 			synchronized (mutex) {
-				List<ARObject> arObjects = new ArrayList<ARObject>();
-				List<ItemVisualization> visualizations = dataSourceInstance
-						.getParent()
-						.getVisualizations()
-						.getCheckedItems(
-								ARVisualization.ItemVisualization.class);
-
-				for (SpatialEntity2<? extends Geometry> entity : data) {
-
-					for (ItemVisualization visualization : visualizations) {
-						// XXX FIXME TODO List is no longer needed
-						List<RenderFeature2> features = new ArrayList<RenderFeature2>();
-						RenderFeature2 feature = (RenderFeature2) visualization
-								.getEntityVisualization(entity,
-										DataSourceVisualizationHandler.this);
-						features.add(feature);
-						// for (DataSourceVisualizationGL feature :
-						// visualization
-						// .getEntityVisualization(entity,
-						// DataSourceVisualizationHandler.this)) {
-						// features.add((RenderFeature2) feature);
-						// }
-						ARObject arObject = new ARObject(entity, visualization,
-								features,
-								visualization.getEntityVisualization(entity),
-								visualization.getFeatureDetailView(entity,
-										null, null,
-										GeoARApplication.applicationContext),
-								dataSourceInstance);
-						// TODO maybe just use entity + visualization
-						arObjects.add(arObject);
-					}
-
+				List<ARObject> arObjects = createARObjects(data);
+				if (replaceARObjects) {
+					// First data of a new request replaces the previous objects
+					arView.setARObjects(arObjects, dataSourceInstance);
+					replaceARObjects = false;
+				} else {
+					arView.addARObjects(arObjects, dataSourceInstance);
 				}
+			}
+		}
 
-				arView.setARObjects(arObjects, dataSourceInstance);
-				currentRect = bounds;
+		@Override
+		public void onDataComplete(MercatorRect bounds) {
+			synchronized (mutex) {
+				if (replaceARObjects) {
+					// Request did not return any data
+					arView.setARObjects(new ArrayList<ARObject>(),
+							dataSourceInstance);
+					replaceARObjects = false;
+				}
+				// Bounds are the outermost ring, at a lower zoom
+				currentRect = requestedRect;
 			}
+			// Density of the area is known better now
+			radiusHandler.post(adaptRadiusRunnable);
 		}
 	};
 
@@ -127,15 +123,36 @@ public class DataSourceVisualizationHandler implements RenderFeatureFactory,
 	private GeoLocation currentCenterGPoint;
 	private MercatorPoint currentCenterMercator;
 	private MercatorRect currentRect;
+	// Area of the latest request, whose objects receive data deltas
+	private MercatorRect requestedRect;
 
 	private Cancelable currentUpdate;
+	// Whether the next received data belongs to a new request
+	private boolean replaceARObjects;
 
 	private ARView arView;
 
+	// Radius in meters of the latest request
+	private float currentRadius;
+	// Whether the radius got adapted since the location last required a
+	// request, limits adapting to once per location to not oscillate
+	private boolean radiusAdapted;
+	private Handler radiusHandler = new Handler(Looper.getMainLooper());
+	// Adapts the requested area to the density of loaded data
+	private Runnable adaptRadiusRunnable = new Runnable() {
+		@Override
+		public void run() {
+			if (currentCenterGPoint != null) {
+				setCenter(currentCenterGPoint);
+			}
+		}
+	};
+
 	public DataSourceVisualizationHandler(ARView arView,
 			DataSourceInstanceHolder dataSourceInstance) {
 		this.arView = arView;
 		this.dataSourceInstance = dataSourceInstance;
+		dataSourceInstance.getDataCache().addOnDataDeltaListener(this);
 
 		// GeoLocation loc = new GeoLocation(LocationHandler
 		// .getLastKnownLocation().getLatitude(), LocationHandler
@@ -145,11 +162,15 @@ public class DataSourceVisualizationHandler implements RenderFeatureFactory,
 
 	public void setCenter(GeoLocation gPoint) {
 		currentCenterGPoint = gPoint;
+		// Fetch tiles in front of the user first
+		dataSourceInstance.getDataCache().setFetchFocus(gPoint,
+				arView.getHeading());
 
 		// Calculate thresholds for request of data
 		double meterPerPixel = MercatorProj.getGroundResolution(
 				gPoint.getLatitudeE6() / 1E6f, Settings.ZOOM_AR);
-		int pixelRadius = (int) (Settings.SIZE_AR_INTERPOLATION / meterPerPixel);
+		float radius = getQueryRadius(gPoint);
+		int pixelRadius = (int) (radius / meterPerPixel);
 		int pixelReloadDist = (int) (Settings.RELOAD_DIST_AR / meterPerPixel);
 
 		// Calculate new center point in world coordinates
@@ -167,6 +188,7 @@ public class DataSourceVisualizationHandler implements RenderFeatureFactory,
 		// determination if data request is needed or if just a simple shift is
 		// enough
 		boolean requestInterpolation = false;
+		boolean adaptRadius = false;
 		if (currentRect == null) {
 			// Get new data if there were none before
 			requestInterpolation = true;
@@ -177,6 +199,12 @@ public class DataSourceVisualizationHandler implements RenderFeatureFactory,
 				// request data if new center offsets more than
 				// Settings.RELOAD_DIST_AR meters
 				requestInterpolation = true;
+			} else if (!radiusAdapted
+					&& Math.abs(radius - currentRadius) > currentRadius
+							* RADIUS_TOLERANCE) {
+				// Estimated density changed, adapt the requested area
+				requestInterpolation = true;
+				adaptRadius = true;
 			}
 		}
 
@@ -187,21 +215,118 @@ public class DataSourceVisualizationHandler implements RenderFeatureFactory,
 				currentUpdate.cancel();
 			}
 			// trigger data request
-			currentUpdate = dataSourceInstance.getDataCache().getDataByBBox(
-					new MercatorRect(currentCenterMercator.x - pixelRadius,
-							currentCenterMercator.y - pixelRadius,
-							currentCenterMercator.x + pixelRadius,
-							currentCenterMercator.y + pixelRadius,
-							Settings.ZOOM_AR), callback, false);
+			MercatorRect requestRect = new MercatorRect(
+					currentCenterMercator.x - pixelRadius,
+					currentCenterMercator.y - pixelRadius,
+					currentCenterMercator.x + pixelRadius,
+					currentCenterMercator.y + pixelRadius, Settings.ZOOM_AR);
+			synchronized (mutex) {
+				replaceARObjects = true;
+				requestedRect = requestRect;
+			}
+			currentRadius = radius;
+			radiusAdapted = adaptRadius;
+			currentUpdate = dataSourceInstance.getDataCache().getDataByRings(
+					getRings(pixelRadius), callback);
 		}
 
 	}
 
+	/**
+	 * Splits the requested area into {@link Settings#AR_RINGS} rings, each
+	 * doubling the radius of the inner one. The near ring gets requested at
+	 * {@link Settings#ZOOM_AR}, outer rings at lower zoom levels, so that
+	 * nearby objects show up first and farther areas take fewer tiles.
+	 * 
+	 * @param pixelRadius
+	 *            Radius of the whole area at {@link Settings#ZOOM_AR}
+	 * @return Bounds of the rings, from the innermost to the outermost
+	 */
+	private MercatorRect[] getRings(int pixelRadius) {
+		MercatorRect[] rings = new MercatorRect[Settings.AR_RINGS];
+		for (int i = 0; i < rings.length; i++) {
+			byte zoom = (byte) Math.max(0, Settings.ZOOM_AR - i);
+			int zoomShift = Settings.ZOOM_AR - zoom;
+			int ringRadius = Math.max(1,
+					(pixelRadius >> (rings.length - 1 - i)) >> zoomShift);
+			int centerX = currentCenterMercator.x >> zoomShift;
+			int centerY = currentCenterMercator.y >> zoomShift;
+			rings[i] = new MercatorRect(centerX - ringRadius, centerY
+					- ringRadius, centerX + ringRadius, centerY + ringRadius,
+					zoom);
+		}
+		return rings;
+	}
+
+	/**
+	 * Determines the radius to request data for, so that the expected number
+	 * of entities stays within the budget of the data source. The density
+	 * gets estimated from the cached data around the location. As long as
+	 * nothing is cached, only the near area gets requested first.
+	 * 
+	 * @param gPoint
+	 * @return Radius in meters
+	 */
+	private float getQueryRadius(GeoLocation gPoint) {
+		int budget = dataSourceInstance.getParent().getArEntityBudget();
+		if (budget <= 0) {
+			budget = Settings.AR_ENTITY_BUDGET;
+		}
+		double density = dataSourceInstance.getDataCache().getEntityDensity(
+				gPoint, Settings.MAX_SIZE_AR_INTERPOLATION);
+		if (Double.isNaN(density)) {
+			return Settings.MIN_SIZE_AR_INTERPOLATION;
+		}
+		if (density <= 0) {
+			return Settings.MAX_SIZE_AR_INTERPOLATION;
+		}
+		// Requested area is a square with an edge of twice the radius
+		double radius = Math.sqrt(budget / density) / 2;
+		return (float) Math.max(Settings.MIN_SIZE_AR_INTERPOLATION,
+				Math.min(Settings.MAX_SIZE_AR_INTERPOLATION, radius));
+	}
+
+	private List<ARObject> createARObjects(
+			List<? extends SpatialEntity2<? extends Geometry>> data) {
+		List<ARObject> arObjects = new ArrayList<ARObject>();
+		List<ItemVisualization> visualizations = dataSourceInstance
+				.getParent().getVisualizations()
+				.getCheckedItems(ARVisualization.ItemVisualization.class);
+
+		for (SpatialEntity2<? extends Geometry> entity : data) {
+
+			for (ItemVisualization visualization : visualizations) {
+				// XXX FIXME TODO List is no longer needed
+				List<RenderFeature2> features = new ArrayList<RenderFeature2>();
+				RenderFeature2 feature = (RenderFeature2) visualization
+						.getEntityVisualization(entity,
+								DataSourceVisualizationHandler.this);
+				features.add(feature);
+				// for (DataSourceVisualizationGL feature :
+				// visualization
+				// .getEntityVisualization(entity,
+				// DataSourceVisualizationHandler.this)) {
+				// features.add((RenderFeature2) feature);
+				// }
+				ARObject arObject = new ARObject(entity, visualization,
+						features, visualization.getEntityVisualization(entity),
+						visualization.getFeatureDetailView(entity, null, null,
+								GeoARApplication.applicationContext),
+						dataSourceInstance);
+				// TODO maybe just use entity + visualization
+				arObjects.add(arObject);
+			}
+
+		}
+		return arObjects;
+	}
+
 	public void clear() {
 		synchronized (mutex) {
 			// LOG.info(dataSourceInstance.getName() +
 			// " clearing ar visualization");
 			cancel();
+			requestedRect = null;
 			arView.clearARObjects(dataSourceInstance);
 		}
 	}
@@ -219,6 +344,8 @@ public class DataSourceVisualizationHandler implements RenderFeatureFactory,
 	public void destroy() {
 		clear();
 		dataSourceInstance.removeOnSettingsChangedListener(this);
+		dataSourceInstance.getDataCache().removeOnDataDeltaListener(this);
+		radiusHandler.removeCallbacks(adaptRadiusRunnable);
 	}
 
 	@Override
@@ -227,9 +354,39 @@ public class DataSourceVisualizationHandler implements RenderFeatureFactory,
 			currentUpdate.cancel();
 			currentUpdate = null;
 		}
+		// Density might differ for the new settings
+		radiusAdapted = false;
 		setCenter(currentCenterGPoint);
 	}
 
+	@Override
+	public void onDataDelta(Envelope envelope, EntityDelta delta) {
+		synchronized (mutex) {
+			if (requestedRect == null || replaceARObjects
+					|| !intersects(requestedRect, envelope)) {
+				// Objects of other areas or about to be replaced anyway
+				return;
+			}
+			List<SpatialEntity2<? extends Geometry>> outdated = new ArrayList<SpatialEntity2<? extends Geometry>>(
+					delta.getRemoved());
+			outdated.addAll(delta.getReplaced());
+			List<ARObject> arObjects = createARObjects(delta.getAdded());
+			arObjects.addAll(createARObjects(delta.getChanged()));
+			arView.replaceARObjects(outdated, arObjects, dataSourceInstance);
+		}
+	}
+
+	private static boolean intersects(MercatorRect bounds, Envelope envelope) {
+		return MercatorProj.transformLonToPixelX(envelope.getMinX(),
+				bounds.zoom) <= bounds.right
+				&& MercatorProj.transformLonToPixelX(envelope.getMaxX(),
+						bounds.zoom) >= bounds.left
+				&& MercatorProj.transformLatToPixelY(envelope.getMaxY(),
+						bounds.zoom) <= bounds.bottom
+				&& MercatorProj.transformLatToPixelY(envelope.getMinY(),
+						bounds.zoom) >= bounds.top;
+	}
+
 	// TODO Move!
 	@Override
 	public DataSourceVisualizationGL createCube() {
@@ -123,6 +123,26 @@ public class ARSurfaceView extends GLSurfaceView implements
 		return rotMatrix;
 	}
 
+	/**
+	 * Returns the viewing direction of the camera based on the current sensor
+	 * values
+	 * 
+	 * @return Heading in degrees clockwise from north, or {@link Float#NaN} if
+	 *         no sensor values are available
+	 */
+	public float getHeading() {
+		getRotationMatrix();
+		synchronized (rotMatrix) {
+			if (!magnetValues.hasValues() || !accelValues.hasValues()) {
+				return Float.NaN;
+			}
+			// The camera looks along the negative z axis of the device, its
+			// east and north components are in the first and second row
+			return (float) Math.toDegrees(Math.atan2(-rotMatrixSensor[2],
+					-rotMatrixSensor[6]));
+		}
+	}
+
 	/**
 	 * Computes the Transformation from device to world coordinates
 	 */
@@ -28,9 +28,9 @@ import org.n52.geoar.map.view.overlay.DataSourcesOverlay;
 import org.n52.geoar.map.view.overlay.OverlayType;
 import org.n52.geoar.map.view.overlay.PointOverlayType;
 import org.n52.geoar.map.view.overlay.PolylineOverlayType;
-import org.n52.geoar.newdata.DataCache.Cancelable;
 import org.n52.geoar.newdata.DataCache.DataSourceErrorType;
-import org.n52.geoar.newdata.DataCache.GetDataBoundsCallback;
+import org.n52.geoar.newdata.DataCache.ViewportCallback;
+import org.n52.geoar.newdata.DataCache.ViewportSubscription;
 import org.n52.geoar.newdata.DataSourceInstanceHolder;
 import org.n52.geoar.newdata.DataSourceInstanceHolder.DataSourceSettingsChangedListener;
 import org.n52.geoar.newdata.SpatialEntity2;
@@ -65,113 +65,6 @@ public class DataSourceOverlayHandler implements
     private class UpdateHolder implements Runnable {
         private boolean canceled;
         private MercatorRect bounds;
-        // protected MapView mapView;
-        private Cancelable requestHolder;
-
-        private GetDataBoundsCallback callback = new GetDataBoundsCallback() {
-
-            @Override
-            public void onProgressUpdate(int progress, int maxProgress) {
-                InfoView.setProgressTitle(R.string.requesting_data,
-                        UpdateHolder.this); // TODO
-                InfoView.setProgress(progress, maxProgress, UpdateHolder.this);
-
-                // if (infoHandler != null) {
-                // String stepTitle = "";
-                // switch(step){
-                // case InfoView.STEP_CLUSTERING:
-                // stepTitle = "Clustering";
-                // break;
-                // case InfoView.STEP_INTERPOLATION:
-                // stepTitle = "Interpolation";
-                // break;
-                // case MeasurementManager.STEP_REQUEST:
-                // stepTitle = "Messungsabfrage";
-                // break;
-                //
-                // }
-
-                // infoHandler.setProgressTitle(stepTitle, UpdateHolder.this);
-                // infoHandler.setProgress(progress, maxProgress,
-                // UpdateHolder.this);
-                // }
-
-            }
-
-            @Override
-            public void onAbort(MercatorRect bounds, DataSourceErrorType reason) {
-                canceled = true;
-
-                InfoView.clearProgress(UpdateHolder.this);
-                if (reason == DataSourceErrorType.CONNECTION) {
-                    InfoView.setStatus(R.string.connection_error, 5000,
-                            UpdateHolder.this);
-                } else if (reason == DataSourceErrorType.UNKNOWN) {
-                    InfoView.setStatus(R.string.unknown_error, 5000,
-                            UpdateHolder.this);
-                }
-            }
-
-            @Override
-            public void onReceiveDataUpdate(MercatorRect bounds,
-                    List<? extends SpatialEntity2<? extends Geometry>> data) {
-                if (!canceled) {
-                    synchronized (updateLock) {
-                        List<OverlayType<? extends Geometry>> overlayItems = new ArrayList<OverlayType<? extends Geometry>>();
-                        List<ItemVisualization> visualizations = dataSourceInstance
-                                .getParent().getVisualizations()
-                                .getCheckedItems(ItemVisualization.class);
-
-                        for (SpatialEntity2<? extends Geometry> entity : data) {
-                            Geometry geometry = entity.getGeometry();
-
-                            for (ItemVisualization visualization : visualizations) {
-                                OverlayType<? extends Geometry> overlayType;
-                                if (geometry instanceof LineString) {
-                                    overlayItems.add(new PolylineOverlayType(
-                                            (LineString) entity.getGeometry(),
-                                            visualization.getTitle(entity),
-                                            visualization
-                                                    .getDescription(entity),
-                                            entity, visualization,
-                                            dataSourceInstance));
-                                } else if (geometry instanceof com.vividsolutions.jts.geom.Point) {
-                                    overlayItems
-                                            .add(new PointOverlayType(
-                                                    (com.vividsolutions.jts.geom.Point) (entity
-                                                            .getGeometry()),
-                                                    visualization
-                                                            .getTitle(entity),
-                                                    visualization
-                                                            .getDescription(entity),
-                                                    visualization
-                                                            .getDrawableForEntity(entity),
-                                                    entity, visualization,
-                                                    dataSourceInstance));
-                                } else if (geometry instanceof Polygon){
-                                    
-                                } else {
-                                    // FIXME handle this gracefully
-                                    try {
-                                        throw new UnsupportedGeometryType(geometry.getClass().toString());
-                                    } catch (UnsupportedGeometryType e) {
-                                        e.printStackTrace();
-                                    }
-                                }
-                            }
-                        }
-                        overlay.setOverlayItems(overlayItems,
-                                dataSourceInstance);
-
-                        // data received, now this object represents
-                        // the current data
-                        currentUpdate = UpdateHolder.this;
-                        nextUpdate = null;
-                    }
-                }
-
-            }
-        };
 
         private UpdateHolder(MercatorRect bounds) {
             this.bounds = bounds;
@@ -179,9 +72,6 @@ public class DataSourceOverlayHandler implements
 
         public void cancel() {
             synchronized (updateLock) {
-                if (requestHolder != null) {
-                    requestHolder.cancel();
-                }
                 canceled = true;
             }
         }
@@ -192,9 +82,11 @@ public class DataSourceOverlayHandler implements
                 if (!canceled) {
                     if (bounds.zoom >= dataSourceInstance.getParent()
                             .getMinZoomLevel()) {
-                        // Just runs if zoom is in range
-                        requestHolder = dataSourceInstance.getDataCache()
-                                .getDataByBBox(bounds, callback, false);
+                        // Just runs if zoom is in range. Only tiles entering
+                        // the viewport get requested.
+                        viewport.setViewport(bounds);
+                        currentUpdate = this;
+                        nextUpdate = null;
                     } else {
                         InfoView.setStatus(R.string.not_zoomed_in, 5000, this);
                     }
@@ -204,6 +96,40 @@ public class DataSourceOverlayHandler implements
         }
     }
 
+    private ViewportCallback viewportCallback = new ViewportCallback() {
+
+        @Override
+        public void onProgressUpdate(int progress, int maxProgress) {
+            InfoView.setProgressTitle(R.string.requesting_data,
+                    DataSourceOverlayHandler.this);
+            InfoView.setProgress(progress, maxProgress,
+                    DataSourceOverlayHandler.this);
+        }
+
+        @Override
+        public void onViewportDelta(MercatorRect bounds,
+                List<? extends SpatialEntity2<? extends Geometry>> entered,
+                List<? extends SpatialEntity2<? extends Geometry>> left) {
+            synchronized (updateLock) {
+                overlay.removeItems(left, dataSourceInstance);
+                overlay.setOverlayItems(createOverlayItems(entered),
+                        dataSourceInstance);
+            }
+        }
+
+        @Override
+        public void onAbort(MercatorRect bounds, DataSourceErrorType reason) {
+            InfoView.clearProgress(DataSourceOverlayHandler.this);
+            if (reason == DataSourceErrorType.CONNECTION) {
+                InfoView.setStatus(R.string.connection_error, 5000,
+                        DataSourceOverlayHandler.this);
+            } else if (reason == DataSourceErrorType.UNKNOWN) {
+                InfoView.setStatus(R.string.unknown_error, 5000,
+                        DataSourceOverlayHandler.this);
+            }
+        }
+    };
+
     private UpdateHolder currentUpdate;
     private UpdateHolder nextUpdate;
     private Handler updateHandler = new Handler();
@@ -212,6 +138,7 @@ public class DataSourceOverlayHandler implements
 
     private DataSourcesOverlay overlay;
     private DataSourceInstanceHolder dataSourceInstance;
+    private ViewportSubscription viewport;
 
     private static final Logger LOG = LoggerFactory
             .getLogger(DataSourceOverlayHandler.class);
@@ -221,6 +148,8 @@ public class DataSourceOverlayHandler implements
         this.overlay = overlay;
         this.dataSourceInstance = dataSource;
         dataSource.addOnSettingsChangedListener(this);
+        viewport = dataSource.getDataCache().subscribeViewport(
+                viewportCallback);
     }
 
     public DataSourceInstanceHolder getDataSource() {
@@ -231,10 +160,60 @@ public class DataSourceOverlayHandler implements
         synchronized (updateLock) {
             LOG.info(dataSourceInstance.getName() + " clearing map overlay");
             cancel();
+            viewport.clear();
+            currentUpdate = null;
             overlay.clear(dataSourceInstance);
         }
     }
 
+    private List<OverlayType<? extends Geometry>> createOverlayItems(
+            List<? extends SpatialEntity2<? extends Geometry>> data) {
+        List<OverlayType<? extends Geometry>> overlayItems = new ArrayList<OverlayType<? extends Geometry>>();
+        List<ItemVisualization> visualizations = dataSourceInstance
+                .getParent().getVisualizations()
+                .getCheckedItems(ItemVisualization.class);
+
+        for (SpatialEntity2<? extends Geometry> entity : data) {
+            Geometry geometry = entity.getGeometry();
+
+            for (ItemVisualization visualization : visualizations) {
+                OverlayType<? extends Geometry> overlayType;
+                if (geometry instanceof LineString) {
+                    overlayItems.add(new PolylineOverlayType(
+                            (LineString) entity.getGeometry(),
+                            visualization.getTitle(entity),
+                            visualization
+                                    .getDescription(entity),
+                            entity, visualization,
+                            dataSourceInstance));
+                } else if (geometry instanceof com.vividsolutions.jts.geom.Point) {
+                    overlayItems
+                            .add(new PointOverlayType(
+                                    (com.vividsolutions.jts.geom.Point) (entity
+                                            .getGeometry()),
+                                    visualization
+                                            .getTitle(entity),
+                                    visualization
+                                            .getDescription(entity),
+                                    visualization
+                                            .getDrawableForEntity(entity),
+                                    entity, visualization,
+                                    dataSourceInstance));
+                } else if (geometry instanceof Polygon){
+                    
+                } else {
+                    // FIXME handle this gracefully
+                    try {
+                        throw new UnsupportedGeometryType(geometry.getClass().toString());
+                    } catch (UnsupportedGeometryType e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+        return overlayItems;
+    }
+
     public void cancel() {
         synchronized (updateLock) {
             if (nextUpdate != null) {
@@ -310,6 +289,7 @@ public class DataSourceOverlayHandler implements
     public void destroy() {
         clear();
         dataSourceInstance.removeOnSettingsChangedListener(this);
+        viewport.cancel();
     }
 
     @Override
@@ -319,9 +299,17 @@ public class DataSourceOverlayHandler implements
             return;
         }
         if (currentUpdate != null) {
-            // repeat last update with new settings
-            updateHandler.removeCallbacks(currentUpdate);
-            updateHandler.post(currentUpdate);
+            // Visualizations might have changed, recreate all items with the
+            // new settings
+            updateHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (updateLock) {
+                        overlay.clear(dataSourceInstance);
+                        viewport.reset();
+                    }
+                }
+            });
         }
     }
 }
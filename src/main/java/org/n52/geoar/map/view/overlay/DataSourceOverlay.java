@@ -16,10 +16,12 @@
 package org.n52.geoar.map.view.overlay;
 
 import java.util.List;
+import java.util.Set;
 
 import org.mapsforge.android.maps.Projection;
 import org.mapsforge.android.maps.overlay.Overlay;
 import org.n52.geoar.map.view.overlay.DataSourcesOverlay.OnOverlayItemTapListener;
+import org.n52.geoar.newdata.SpatialEntity2;
 
 import android.graphics.Canvas;
 import android.graphics.Point;
@@ -51,6 +53,17 @@ public abstract class DataSourceOverlay<G extends Geometry, T extends OverlayTyp
     public abstract void addOverlayTypes(List<OverlayType<? extends Geometry>> overlaytypes);
 
     public abstract void removeOverlayType(OverlayType<? extends Geometry> overlayType);
+
+    /**
+     * Removes the overlay types of the given entities in a single pass over
+     * the overlay types of this overlay
+     * 
+     * @param entities
+     *            entities whose overlay types should be removed, compared as
+     *            the set compares its elements
+     */
+    public abstract void removeOverlayTypes(
+            Set<? extends SpatialEntity2<?>> entities);
     
     public abstract void clear();
 
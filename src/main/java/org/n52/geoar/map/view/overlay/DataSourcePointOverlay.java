@@ -24,6 +24,7 @@ import java.util.Set;
 import org.mapsforge.android.maps.MapView;
 import org.mapsforge.android.maps.Projection;
 import org.mapsforge.core.GeoPoint;
+import org.n52.geoar.newdata.SpatialEntity2;
 
 import android.graphics.Canvas;
 import android.graphics.Rect;
@@ -156,6 +157,27 @@ public class DataSourcePointOverlay extends
         populate();
     }
 
+    @Override
+    public void removeOverlayTypes(Set<? extends SpatialEntity2<?>> entities) {
+        synchronized (pointOverlays) {
+            List<PointOverlayType> remainingOverlays = new ArrayList<PointOverlayType>(
+                    pointOverlays.size());
+            for (PointOverlayType pointOverlay : pointOverlays) {
+                if (!entities.contains(pointOverlay.getSpatialEntity())) {
+                    remainingOverlays.add(pointOverlay);
+                }
+            }
+            if (remainingOverlays.size() == pointOverlays.size()) {
+                return;
+            }
+            pointOverlays.clear();
+            pointOverlays.addAll(remainingOverlays);
+            // Indices got shifted, next drawing determines them again
+            visiblePointOverlays.clear();
+        }
+        populate();
+    }
+
     @Override
     public void addOverlayType(OverlayType<? extends Geometry> overlaytype) {
         this.pointOverlays.add((PointOverlayType) overlaytype);
@@ -17,11 +17,13 @@ package org.n52.geoar.map.view.overlay;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
 import org.mapsforge.android.maps.Projection;
 import org.mapsforge.core.GeoPoint;
+import org.n52.geoar.newdata.SpatialEntity2;
 
 import android.graphics.Canvas;
 import android.graphics.Paint;
@@ -87,6 +89,23 @@ public class DataSourcePolygonOverlay extends
         populate();
     }
 
+    @Override
+    public void removeOverlayTypes(Set<? extends SpatialEntity2<?>> entities) {
+        boolean removed = false;
+        synchronized (polygons) {
+            for (Iterator<PolygonOverlayType> iterator = polygons.iterator(); iterator
+                    .hasNext();) {
+                if (entities.contains(iterator.next().getSpatialEntity())) {
+                    iterator.remove();
+                    removed = true;
+                }
+            }
+        }
+        if (removed) {
+            populate();
+        }
+    }
+
     @Override
     public void clear() {
         synchronized(polygons){
@@ -17,11 +17,13 @@ package org.n52.geoar.map.view.overlay;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
 import org.mapsforge.android.maps.Projection;
 import org.mapsforge.core.GeoPoint;
+import org.n52.geoar.newdata.SpatialEntity2;
 
 import android.graphics.Canvas;
 import android.graphics.Paint;
@@ -137,6 +139,23 @@ public class DataSourcePolylineOverlay extends
         populate();
     }
 
+    @Override
+    public void removeOverlayTypes(Set<? extends SpatialEntity2<?>> entities) {
+        boolean removed = false;
+        synchronized (polylines) {
+            for (Iterator<PolylineOverlayType> iterator = polylines.iterator(); iterator
+                    .hasNext();) {
+                if (entities.contains(iterator.next().getSpatialEntity())) {
+                    iterator.remove();
+                    removed = true;
+                }
+            }
+        }
+        if (removed) {
+            populate();
+        }
+    }
+
     @Override
     public void addOverlayType(OverlayType<? extends Geometry> overlaytype) {
         synchronized (polylines) {
@@ -15,15 +15,20 @@
  */
 package org.n52.geoar.map.view.overlay;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.mapsforge.android.maps.MapView;
 import org.mapsforge.android.maps.Projection;
 import org.mapsforge.android.maps.overlay.Overlay;
 import org.mapsforge.core.GeoPoint;
+import org.n52.geoar.newdata.SpatialEntity2;
 
 import android.graphics.Canvas;
 import android.graphics.Point;
@@ -121,6 +126,40 @@ public class DataSourcesOverlay extends Overlay {
         populate();
     }
 
+    /**
+     * Removes the items of the given entities which were set using the
+     * specified key
+     * 
+     * @param entities
+     *            entities whose items should be removed, compared by identity
+     * @param key
+     */
+    public void removeItems(Collection<? extends SpatialEntity2<?>> entities,
+            Object key) {
+        if (entities.isEmpty()) {
+            return;
+        }
+        Set<SpatialEntity2<?>> entitySet = Collections
+                .newSetFromMap(new IdentityHashMap<SpatialEntity2<?>, Boolean>());
+        entitySet.addAll(entities);
+
+        List<DataSourceOverlay<? extends Geometry, ? extends OverlayType<?>>> dataSourceOverlays;
+        synchronized (overlayMap) {
+            Map<Class<? extends OverlayType<?>>, DataSourceOverlay<? extends Geometry, ? extends OverlayType<?>>> classMap = overlayMap
+                    .get(key);
+            if (classMap == null) {
+                return;
+            }
+            dataSourceOverlays = new ArrayList<DataSourceOverlay<? extends Geometry, ? extends OverlayType<?>>>(
+                    classMap.values());
+        }
+        for (DataSourceOverlay<? extends Geometry, ? extends OverlayType<?>> dataSourceOverlay : dataSourceOverlays) {
+            dataSourceOverlay.removeOverlayTypes(entitySet);
+        }
+
+        populate();
+    }
+
     @SuppressWarnings("unchecked")
     public void setOverlayItems(
             List<OverlayType<? extends Geometry>> overlayItems, Object key) {
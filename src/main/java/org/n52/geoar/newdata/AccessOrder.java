@@ -0,0 +1,108 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+/**
+ * Doubly linked list of elements ordered from least to most recently used.
+ * Elements keep their own {@link Node}, so that marking an element as used
+ * and removing it take constant time, without searching or sorting.
+ * 
+ * Not thread safe, owners have to synchronize access.
+ */
+final class AccessOrder<T> {
+
+	/**
+	 * Position of an element in an access order
+	 */
+	static final class Node<T> {
+		private final T element;
+		private Node<T> previous;
+		private Node<T> next;
+		private boolean linked;
+
+		Node(T element) {
+			this.element = element;
+		}
+
+		T getElement() {
+			return element;
+		}
+
+		/**
+		 * @return The node used next after this one, or null
+		 */
+		Node<T> getNext() {
+			return next;
+		}
+	}
+
+	private Node<T> head;
+	private Node<T> tail;
+
+	/**
+	 * Appends a node as most recently used
+	 */
+	void link(Node<T> node) {
+		node.previous = tail;
+		node.next = null;
+		if (tail != null) {
+			tail.next = node;
+		} else {
+			head = node;
+		}
+		tail = node;
+		node.linked = true;
+	}
+
+	/**
+	 * Removes a node, if it is linked
+	 */
+	void unlink(Node<T> node) {
+		if (!node.linked) {
+			return;
+		}
+		if (node.previous != null) {
+			node.previous.next = node.next;
+		} else {
+			head = node.next;
+		}
+		if (node.next != null) {
+			node.next.previous = node.previous;
+		} else {
+			tail = node.previous;
+		}
+		node.previous = null;
+		node.next = null;
+		node.linked = false;
+	}
+
+	/**
+	 * Marks a linked node as most recently used
+	 */
+	void touch(Node<T> node) {
+		if (node.linked && node != tail) {
+			unlink(node);
+			link(node);
+		}
+	}
+
+	/**
+	 * @return The least recently used node, or null if there is none
+	 */
+	Node<T> getHead() {
+		return head;
+	}
+}
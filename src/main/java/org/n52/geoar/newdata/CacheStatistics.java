@@ -0,0 +1,195 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memory accounting, eviction and request statistics of a {@link DataCache} or
+ * of all caches together. Sizes are estimations based on
+ * {@link EntitySizeEstimator}, not exact heap measurements.
+ */
+public class CacheStatistics {
+
+	private final CacheStatistics parent;
+	private volatile long maxBytes;
+	private final AtomicLong usedBytes = new AtomicLong();
+	private final AtomicLong evictedTiles = new AtomicLong();
+	private final AtomicLong evictedEntities = new AtomicLong();
+	private final AtomicLong evictedBytes = new AtomicLong();
+	private final AtomicLong fetches = new AtomicLong();
+	private final AtomicLong savedFetches = new AtomicLong();
+	private final AtomicLong hedgedFetches = new AtomicLong();
+	private final AtomicLong wonHedges = new AtomicLong();
+	private final AtomicLong savedLatency = new AtomicLong();
+
+	/**
+	 * @param parent
+	 *            Statistics to additionally charge all changes to, e.g. the
+	 *            global statistics of all caches. May be null.
+	 * @param maxBytes
+	 *            Budget in bytes
+	 */
+	CacheStatistics(CacheStatistics parent, long maxBytes) {
+		this.parent = parent;
+		this.maxBytes = maxBytes;
+	}
+
+	void charge(long bytes) {
+		usedBytes.addAndGet(bytes);
+		if (parent != null) {
+			parent.charge(bytes);
+		}
+	}
+
+	void release(long bytes) {
+		charge(-bytes);
+	}
+
+	void recordEviction(int entities, long bytes) {
+		evictedTiles.incrementAndGet();
+		evictedEntities.addAndGet(entities);
+		evictedBytes.addAndGet(bytes);
+		if (parent != null) {
+			parent.recordEviction(entities, bytes);
+		}
+	}
+
+	void recordFetch() {
+		fetches.incrementAndGet();
+		if (parent != null) {
+			parent.recordFetch();
+		}
+	}
+
+	void recordSavedFetch() {
+		savedFetches.incrementAndGet();
+		if (parent != null) {
+			parent.recordSavedFetch();
+		}
+	}
+
+	void recordHedge() {
+		hedgedFetches.incrementAndGet();
+		if (parent != null) {
+			parent.recordHedge();
+		}
+	}
+
+	void recordHedgeWon(long savedMillis) {
+		wonHedges.incrementAndGet();
+		savedLatency.addAndGet(savedMillis);
+		if (parent != null) {
+			parent.recordHedgeWon(savedMillis);
+		}
+	}
+
+	void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return true if the estimated size of the cached data exceeds the budget
+	 */
+	public boolean isBudgetExceeded() {
+		return usedBytes.get() > maxBytes;
+	}
+
+	/**
+	 * @return The budget in bytes
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @return Estimated size in bytes of the currently cached data
+	 */
+	public long getUsedBytes() {
+		return usedBytes.get();
+	}
+
+	/**
+	 * @return Number of tiles removed to stay within the budget
+	 */
+	public long getEvictedTileCount() {
+		return evictedTiles.get();
+	}
+
+	/**
+	 * @return Number of entities removed to stay within the budget
+	 */
+	public long getEvictedEntityCount() {
+		return evictedEntities.get();
+	}
+
+	/**
+	 * @return Estimated bytes freed to stay within the budget
+	 */
+	public long getEvictedBytes() {
+		return evictedBytes.get();
+	}
+
+	/**
+	 * @return Number of requests to the data source
+	 */
+	public long getFetchCount() {
+		return fetches.get();
+	}
+
+	/**
+	 * @return Number of requests saved by sharing the result of a concurrent
+	 *         request for the same or a containing tile
+	 */
+	public long getSavedFetchCount() {
+		return savedFetches.get();
+	}
+
+	/**
+	 * @return Number of duplicate requests issued for requests taking longer
+	 *         than usual
+	 */
+	public long getHedgedFetchCount() {
+		return hedgedFetches.get();
+	}
+
+	/**
+	 * @return Number of duplicate requests which completed before the request
+	 *         they duplicated
+	 */
+	public long getWonHedgeCount() {
+		return wonHedges.get();
+	}
+
+	/**
+	 * @return Estimated milliseconds saved by duplicate requests, based on
+	 *         the mean latency of recent slow requests
+	 */
+	public long getSavedLatency() {
+		return savedLatency.get();
+	}
+
+	@Override
+	public String toString() {
+		return "used " + getUsedBytes() / 1024 + "/" + getMaxBytes() / 1024
+				+ " KiB, evicted " + getEvictedTileCount() + " tiles, "
+				+ getEvictedEntityCount() + " entities, "
+				+ getEvictedBytes() / 1024 + " KiB, " + getFetchCount()
+				+ " fetches, " + getSavedFetchCount() + " saved, "
+				+ getHedgedFetchCount() + " hedged, " + getWonHedgeCount()
+				+ " hedges won, " + getSavedLatency() + " ms saved";
+	}
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+import java.util.Random;
+
+import android.os.SystemClock;
+
+/**
+ * Circuit breaker for the requests to a data source. Opens after a number of
+ * consecutive failures, so that requests get answered by cached data instead
+ * of hitting a failing endpoint. After a backoff period a single trial request
+ * gets through, which closes the breaker on success and opens it again for a
+ * longer period on failure.
+ */
+public final class CircuitBreaker {
+
+	public enum State {
+		/** Requests pass */
+		CLOSED,
+		/** Requests get rejected */
+		OPEN,
+		/** A single trial request passes */
+		HALF_OPEN
+	}
+
+	private static final int FAILURE_THRESHOLD = 5;
+	private static final long MIN_OPEN_DURATION = 5000;
+	private static final long MAX_OPEN_DURATION = 5 * 60 * 1000;
+	private static final Random RANDOM = new Random();
+
+	private int consecutiveFailures;
+	// Number of times the breaker opened without closing in between
+	private int openCount;
+	private long openUntil;
+	private boolean trialRunning;
+	private State state = State.CLOSED;
+
+	/**
+	 * @return The current state, where an open breaker becomes half open after
+	 *         its backoff period
+	 */
+	public synchronized State getState() {
+		if (state == State.OPEN && SystemClock.uptimeMillis() >= openUntil) {
+			state = State.HALF_OPEN;
+		}
+		return state;
+	}
+
+	/**
+	 * Asks for permission to perform a request. Requests permitted have to
+	 * be reported by {@link #onSuccess()}, {@link #onFailure()} or
+	 * {@link #onCanceled()}.
+	 *
+	 * @return true if the request may be performed
+	 */
+	synchronized boolean tryAcquire() {
+		switch (getState()) {
+		case CLOSED:
+			return true;
+		case HALF_OPEN:
+			if (trialRunning) {
+				return false;
+			}
+			trialRunning = true;
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	synchronized void onSuccess() {
+		consecutiveFailures = 0;
+		openCount = 0;
+		trialRunning = false;
+		state = State.CLOSED;
+	}
+
+	synchronized void onFailure() {
+		State currentState = getState();
+		if (currentState == State.OPEN) {
+			// Request started before the breaker opened, the backoff already
+			// accounts for this failure
+			return;
+		}
+		consecutiveFailures++;
+		if (currentState == State.HALF_OPEN
+				|| consecutiveFailures >= FAILURE_THRESHOLD) {
+			openCount++;
+			openUntil = SystemClock.uptimeMillis()
+					+ getBackoffDelay(openCount, MIN_OPEN_DURATION,
+							MAX_OPEN_DURATION);
+			trialRunning = false;
+			state = State.OPEN;
+		}
+	}
+
+	/**
+	 * Reports a permitted request which got canceled before it could succeed
+	 * or fail
+	 */
+	synchronized void onCanceled() {
+		trialRunning = false;
+	}
+
+	/**
+	 * Exponential backoff with jitter: The delay doubles with each attempt up
+	 * to the maximum, and gets randomized within its upper half, so that
+	 * retries of many clients or tiles do not happen at once.
+	 *
+	 * @param attempts
+	 *            Number of failed attempts so far, at least 1
+	 * @param baseDelay
+	 *            Delay after the first failure
+	 * @param maxDelay
+	 * @return Delay in milliseconds
+	 */
+	static long getBackoffDelay(int attempts, long baseDelay, long maxDelay) {
+		long delay = baseDelay << Math.min(Math.max(attempts - 1, 0), 20);
+		delay = Math.min(delay, maxDelay);
+		long jitter;
+		synchronized (RANDOM) {
+			jitter = (long) (RANDOM.nextDouble() * (delay / 2));
+		}
+		return delay / 2 + jitter;
+	}
+}
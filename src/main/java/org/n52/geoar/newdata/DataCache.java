@@ -15,30 +15,46 @@
  */
 package org.n52.geoar.newdata;
 
+import java.io.File;
 import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.n52.geoar.GeoARApplication;
 import org.n52.geoar.alg.proj.MercatorProj;
 import org.n52.geoar.alg.proj.MercatorRect;
+import org.n52.geoar.newdata.FilterHelper.EntityPredicate;
+import org.n52.geoar.newdata.FilterHelper.FilterChange;
+import org.n52.geoar.newdata.FilterHelper.FilterRelation;
+import org.n52.geoar.utils.GeoLocation;
 import org.n52.geoar.utils.GeoLocationRect;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
 
-import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.index.ItemVisitor;
-import com.vividsolutions.jts.index.quadtree.Quadtree;
 
 /**
  * Interface to request data from a specific {@link DataSource}. Builds an
@@ -49,7 +65,18 @@ import com.vividsolutions.jts.index.quadtree.Quadtree;
  */
 public class DataCache {
 
-    private static final int MAX_TILES_TO_REMOVE = 25;
+    // Number of tiles triggering the eviction of unused tiles
+    private static final int TILES_HIGH_WATER_MARK = 75;
+    // Number of tiles to keep when evicting unused tiles
+    private static final int TILES_LOW_WATER_MARK = 50;
+    private static final DataTile[] NO_TILES = new DataTile[0];
+    // Requests covering more tiles get served by tiles of lower zoom levels
+    private static final int MAX_TILES_PER_REQUEST = 64;
+    // Maximum zoom levels between a requested tile and the cached tiles it
+    // can be assembled from
+    private static final int MAX_ASSEMBLY_DEPTH = 3;
+    // Entities read from a data source cursor between memory budget checks
+    private static final int CURSOR_CHUNK_SIZE = 500;
 
     /**
      * Future-like interface for cancellation of requests
@@ -78,6 +105,75 @@ public class DataCache {
         void onAbort(MercatorRect bbox, DataSourceErrorType reason);
     }
 
+    /**
+     * Callback for bounding box requests delivering the data of each tile as
+     * soon as it is available
+     */
+    public interface GetDataBoundsStreamCallback extends
+            OnProgressUpdateListener {
+        /**
+         * Receives the data of a single tile or of several tiles at once.
+         * Entities already delivered for the same request are left out.
+         */
+        void onReceiveTileData(MercatorRect bbox,
+                List<? extends SpatialEntity2<? extends Geometry>> data);
+
+        /**
+         * Called once after the data of all tiles has been delivered
+         */
+        void onDataComplete(MercatorRect bbox);
+
+        void onAbort(MercatorRect bbox, DataSourceErrorType reason);
+    }
+
+    /**
+     * Listener for changes of data which might have been delivered already,
+     * e.g. after stale data got refreshed in the background
+     */
+    public interface OnDataChangedListener {
+        /**
+         * Called on a fetching thread once the cached data within the
+         * specified envelope changed. Requests for this area get answered by
+         * the new data.
+         */
+        void onDataChanged(Envelope envelope);
+    }
+
+    /**
+     * Listener for the entities which changed after already delivered data
+     * got refreshed or expired
+     */
+    public interface OnDataDeltaListener {
+        /**
+         * Called on a fetching thread once the cached data within the
+         * specified envelope changed. The delta only contains entities
+         * matching the current filter. Entities not contained in the delta
+         * remain the instances previously delivered.
+         */
+        void onDataDelta(Envelope envelope, EntityDelta delta);
+    }
+
+    /**
+     * Callback of a {@link ViewportSubscription}. Gets called on the main
+     * thread, in the order the changes happened.
+     */
+    public interface ViewportCallback extends OnProgressUpdateListener {
+        /**
+         * Receives the entities which entered and left the viewport since the
+         * previous call. Each entity gets reported once, even if it lies
+         * within several tiles of the viewport.
+         */
+        void onViewportDelta(MercatorRect bounds,
+                List<? extends SpatialEntity2<? extends Geometry>> entered,
+                List<? extends SpatialEntity2<? extends Geometry>> left);
+
+        void onAbort(MercatorRect bounds, DataSourceErrorType reason);
+    }
+
+    // Offset of the priority of prefetched tiles, so that they get fetched
+    // after all requested tiles
+    private static final double PREFETCH_PRIORITY_OFFSET = 1E6;
+
     private static Cancelable NOOPCANCELABLE = new Cancelable() {
 
         @Override
@@ -91,103 +187,769 @@ public class DataCache {
         void onAbort(DataSourceErrorType reason);
     }
 
+    /**
+     * Keeps the fetch of a prefetched tile alive, which nobody waits for
+     */
+    private static final DataCallback PREFETCH_CALLBACK = new DataCallback() {
+
+        @Override
+        public void onDataReceived() {
+        }
+
+        @Override
+        public void onAbort(DataSourceErrorType reason) {
+        }
+    };
+
+    /**
+     * Filter used for requests and its derived values. Gets replaced as a
+     * whole on filter changes.
+     */
+    private static class FilterState {
+        private final Filter filter;
+        // Hash of the filter and the data source settings, key for the disk
+        // cache
+        private final long queryHash;
+        private final long settingsHash;
+        // Incremented whenever previously cached data does not match the
+        // filter anymore
+        private final int generation;
+        // Filters requesting the data missing in tiles of the previous
+        // generation, or null
+        private final List<Filter> deltaFilters;
+        private final EntityPredicate predicate;
+
+        private FilterState(Filter filter, long settingsHash, int generation,
+                List<Filter> deltaFilters) {
+            this.filter = filter;
+            this.settingsHash = settingsHash;
+            this.generation = generation;
+            this.deltaFilters = deltaFilters;
+            // As instances of the same data source share the disk cache, the
+            // settings of the data source instance are part of its key
+            this.queryHash = 31 * FilterHelper.getCanonicalHash(filter)
+                    + settingsHash;
+            this.predicate = FilterHelper.getEntityPredicate(filter);
+        }
+    }
+
     /**
      * A tile in the cache
      */
     public class DataTile {
 
-        private static final int CLEANUP_TILES_MIN_COUNT = 50;
+        private final Tile tile;
         private Envelope tileEnvelope;
         private long lastUpdate;
-        private long lastUsage;
+        // Filter generation of the cached data, -1 if there is none
+        private int dataGeneration = -1;
+        private volatile long lastUsage;
+        // Position in the access order of the cache, guarded by mLruLock
+        private final AccessOrder.Node<DataTile> lruNode = new AccessOrder.Node<DataTile>(
+                this);
         private boolean updateRequired = true;
-        private int numEntities;
+        // Entry in the entity index, guarded by its write lock
+        private final TileEntry entry = new TileEntry(this, statistics);
+        // Bypass the disk cache for the next fetch
+        private boolean forceRefresh;
+        // Callbacks awaiting the data of this tile and its running fetch
+        private final FetchState<DataCallback> fetchState = new FetchState<DataCallback>();
+        // Fetched for prefetching only, nobody requested this tile yet
+        private volatile boolean prefetching;
+        // Consecutive failed fetches, guarded by fetchState
+        private int failureCount;
+        // Time before which requests get answered without fetching
+        private volatile long retryTime;
+        // Fingerprint of expired data served while refreshing it, guarded by
+        // fetchState
+        private boolean servedStale;
+        private long servedFingerprint;
+        // Next expiry of the data or of single entities of this tile
+        private final TimingWheel.Timeout expiryTimeout = new TimingWheel.Timeout(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        // Runs on the timer thread, expiry work gets
+                        // performed by the fetching pool
+                        execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                onExpired();
+                            }
+                        });
+                    }
+                });
 
-        private List<DataCallback> awaitDataCallbacks = new ArrayList<DataCallback>();
-        private final Runnable fetchRunnable = new Runnable() {
+        private final FetchQueue.PrioritizedRunnable fetchRunnable = new FetchQueue.PrioritizedRunnable() {
 
             @Override
-            public void run() {
-                Filter filter = dataFilter.clone().setBoundingBox(
-                        new GeoLocationRect((float) tileEnvelope.getMinX(),
-                                (float) tileEnvelope.getMaxY(),
-                                (float) tileEnvelope.getMaxX(),
-                                (float) tileEnvelope.getMinY()));
+            public double getPriority() {
+                return getFetchPriority();
+            }
+
+            @Override
+            public boolean isObsolete() {
+                return fetchState.isFetchObsolete();
+            }
+
+            @Override
+            public FetchQueue.Group getGroup() {
+                return fetchGroup;
+            }
 
+            @Override
+            public void run() {
+                if (!fetchState.beginFetch()) {
+                    return;
+                }
+                RunningFetch fetch = new RunningFetch(DataTile.this);
                 try {
-                    // Actual access to DataSource interface
-                    LOG.debug("Requesting data from data source");
-                    List<? extends SpatialEntity2<? extends Geometry>> data = dataSourceInstance
-                            .getDataSource().getMeasurements(filter);
-                    numEntities = data.size();
-                    addData(tileEnvelope, data);
-                    data.clear();
-                    dataSourceInstance.clearError(); // XXX no error reporting
-                                                     // if following request
-                                                     // does not fail
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    LOG.error(logTag + " Exception on request", e);
-                    dataSourceInstance.reportError(e);
-                    if (e instanceof SocketException) {
-                        abort(DataSourceErrorType.CONNECTION);
-                    } else {
-                        abort(DataSourceErrorType.UNKNOWN);
-                    }
+                    runFetch();
+                } finally {
+                    fetch.finish();
+                }
+            }
+        };
+
+        /**
+         * Loads the data of this tile from the disk cache or the data source
+         */
+        private void runFetch() {
+            FilterState state = filterState;
+            boolean refresh = forceRefresh;
+            forceRefresh = false;
+            List<Filter> deltaFilters = null;
+            if (!refresh && dataGeneration >= 0
+                    && dataGeneration == state.generation - 1) {
+                // Cached data only lacks the delta of the last filter
+                // change
+                deltaFilters = state.deltaFilters;
+            }
+            if (deltaFilters == null && !refresh && loadFromDisk(state)) {
+                return;
+            }
+            if (!permitRequest(Collections.singletonList(this))) {
+                return;
+            }
+
+            try {
+                if (deltaFilters != null) {
+                    fetchDelta(state, deltaFilters);
+                } else {
+                    fetch(state);
+                }
+            } catch (Exception e) {
+                onFetchError(e);
+            }
+        }
+
+        /**
+         * Requests the data of this tile, or joins a running request of
+         * another tile containing this one
+         */
+        private void fetch(FilterState state) throws Exception {
+            SingleFlight.Flight flight = joinFlight(state);
+            if (flight == null) {
+                // Permitted request not needed anymore
+                circuitBreaker.onCanceled();
+                return;
+            }
+
+            LOG.debug("Requesting data from data source");
+            statistics.recordFetch();
+            List<? extends SpatialEntity2<? extends Geometry>> data;
+            try {
+                data = request(state.filter, true);
+            } catch (Exception e) {
+                flight.fail(isFetchCanceled() ? new CancellationException()
+                        : e);
+                throw e;
+            }
+            if (data == null) {
+                onDataStreamed(state, flight);
+                return;
+            }
+            onDataFetched(state, flight, data);
+            data.clear();
+        }
+
+        /**
+         * Registers a request for this tile, unless a running request of this
+         * or a containing tile can be joined
+         * 
+         * @return The flight to complete by the caller, or null if this tile
+         *         will receive the data of a running request
+         */
+        private SingleFlight.Flight joinFlight(final FilterState state) {
+            SingleFlight.Flight flight = SingleFlight.join(sourceKey,
+                    state.queryHash, tile, new SingleFlight.FlightListener() {
+                        @Override
+                        public void onFlightCompleted(
+                                List<? extends SpatialEntity2<? extends Geometry>> data,
+                                Tile flightTile) {
+                            onSharedDataReceived(state, data, flightTile);
+                        }
+
+                        @Override
+                        public void onFlightFailed(Exception e) {
+                            onFetchError(e);
+                        }
+                    });
+            if (flight == null) {
+                LOG.debug("Joined running request");
+                statistics.recordSavedFetch();
+            }
+            return flight;
+        }
+
+        /**
+         * Stores the data requested for this tile
+         */
+        private void onDataFetched(FilterState state,
+                SingleFlight.Flight flight,
+                List<? extends SpatialEntity2<? extends Geometry>> data) {
+            // Pass data to joined tiles before it gets cleared
+            flight.complete(data);
+            storeTileData(this, data, state.generation);
+            if (diskStore != null) {
+                diskStore.write(state.queryHash, tile, data);
+            }
+            dataSourceInstance.clearError(); // XXX no error reporting
+                                             // if following request
+                                             // does not fail
+            finishUpdate(SystemClock.uptimeMillis(), state.generation);
+        }
+
+        /**
+         * Completes the data a data source cursor streamed into this tile
+         */
+        private void onDataStreamed(FilterState state,
+                SingleFlight.Flight flight) {
+            List<SpatialEntity2<? extends Geometry>> data = commitTileData(
+                    this, state.generation);
+            if (data == null) {
+                // Cache got cleared while fetching
+                flight.fail(new CancellationException());
+                onFetchCanceled();
+                return;
+            }
+            flight.complete(data);
+            if (diskStore != null) {
+                diskStore.write(state.queryHash, tile, data);
+            }
+            dataSourceInstance.clearError();
+            finishUpdate(SystemClock.uptimeMillis(), state.generation);
+        }
+
+        /**
+         * Receives the data of a request performed for this or a containing
+         * tile, possibly by another cache
+         */
+        private void onSharedDataReceived(FilterState state,
+                List<? extends SpatialEntity2<? extends Geometry>> data,
+                Tile flightTile) {
+            List<? extends SpatialEntity2<? extends Geometry>> tileData = data;
+            if (!flightTile.equals(tile)) {
+                tileData = clipToEnvelope(data, tileEnvelope);
+                if (diskStore != null) {
+                    diskStore.write(state.queryHash, tile, tileData);
+                }
+            }
+            storeTileData(this, tileData, state.generation);
+            finishUpdate(SystemClock.uptimeMillis(), state.generation);
+        }
+
+        private void onFetchError(Exception e) {
+            if (e instanceof CancellationException || isFetchCanceled()) {
+                onFetchCanceled();
+                return;
+            }
+            e.printStackTrace();
+            LOG.error(logTag + " Exception on request", e);
+            dataSourceInstance.reportError(e);
+            synchronized (fetchState) {
+                failureCount++;
+                retryTime = SystemClock.uptimeMillis()
+                        + CircuitBreaker.getBackoffDelay(failureCount,
+                                TILE_RETRY_MIN_DELAY, TILE_RETRY_MAX_DELAY);
+            }
+            if (e instanceof SocketException) {
+                abort(DataSourceErrorType.CONNECTION);
+            } else {
+                abort(DataSourceErrorType.UNKNOWN);
+            }
+        }
+
+        /**
+         * @param filter
+         * @param stream
+         *            Whether the entities of a data source cursor may get
+         *            stored into this tile while being read
+         * @return The entities, or null if they got streamed into this tile
+         */
+        private List<? extends SpatialEntity2<? extends Geometry>> request(
+                Filter filter, boolean stream) throws Exception {
+            RunningFetch fetch = (RunningFetch) fetchState.getRunning();
+            if (fetch != null) {
+                return fetch.requestData(filter, tileEnvelope, stream);
+            }
+            return requestData(filter, tileEnvelope,
+                    stream ? new DataTile[] { this } : null);
+        }
+
+        /**
+         * @return true if the fetch running for this tile got canceled
+         */
+        private boolean isFetchCanceled() {
+            FetchState.Running fetch = fetchState.getRunning();
+            return fetch != null && fetch.isCanceled();
+        }
+
+        /**
+         * Handles the failure of a canceled fetch, which was performed for
+         * this tile or joined by it. Queues the tile again if it got requested
+         * in the meantime.
+         */
+        private void onFetchCanceled() {
+            boolean schedule;
+            synchronized (fetchState) {
+                if (!fetchState.isRunning()) {
                     return;
                 }
+                schedule = fetchState.endCanceledFetch();
+                if (!schedule) {
+                    prefetching = false;
+                }
+            }
+            LOG.debug(logTag + " Fetch canceled");
+            if (schedule) {
+                execute(fetchRunnable);
+            }
+        }
 
-                synchronized (awaitDataCallbacks) {
-                    for (DataCallback callback : awaitDataCallbacks) {
-                        callback.onDataReceived();
-                    }
-                    awaitDataCallbacks.clear();
+        /**
+         * Queues the running fetch of this tile again after the specified
+         * delay
+         */
+        private void retryAfter(long delay) {
+            if (!fetchState.requeue()) {
+                return;
+            }
+            TIMER_HANDLER.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    execute(fetchRunnable);
+                }
+            }, delay);
+        }
+
+        /**
+         * Answers the requests of this tile by its cached data without
+         * fetching, as the data source is failing. The cached data stays
+         * outdated, so that later requests fetch again.
+         */
+        private void serveCached() {
+            if (dataGeneration < 0) {
+                abort(DataSourceErrorType.CONNECTION);
+                return;
+            }
+            List<DataCallback> callbacks;
+            synchronized (fetchState) {
+                callbacks = fetchState.takeCallbacks();
+                prefetching = false;
+            }
+            LOG.debug(logTag + " Serving stale data");
+            for (DataCallback callback : callbacks) {
+                callback.onDataReceived();
+            }
+        }
+
+        /**
+         * @return true if the data of this tile expired recently enough to
+         *         be returned while refreshing it
+         */
+        private boolean isStaleServable() {
+            return maxStaleness > 0
+                    && dataGeneration == filterState.generation
+                    && SystemClock.uptimeMillis() - lastUpdate
+                            - minReloadInterval <= maxStaleness;
+        }
 
-                    lastUpdate = SystemClock.uptimeMillis();
-                    updateRequired = false;
-                    LOG.debug("Tile update finished");
+        /**
+         * Refreshes the expired data of this tile in the background. Data
+         * changed listeners get notified if the refreshed data differs from
+         * the served data.
+         */
+        private void revalidate() {
+            synchronized (fetchState) {
+                if (fetchState.hasCallbacks()) {
+                    // Already being refreshed
+                    return;
+                }
+                if (!servedStale) {
+                    servedStale = true;
+                    servedFingerprint = EntityFingerprint
+                            .compute(getTileEntities(this));
                 }
             }
-        };
+            LOG.debug(logTag + " Revalidating stale tile");
+            prefetching = true;
+            addCallback(PREFETCH_CALLBACK, null);
+        }
+
+        /**
+         * @return true if requests of this tile should not fetch, as the
+         *         last fetches of it or of any tile failed recently
+         */
+        private boolean isBackingOff() {
+            return SystemClock.uptimeMillis() < retryTime
+                    || circuitBreaker.getState() == CircuitBreaker.State.OPEN;
+        }
+
+        /**
+         * Extends the cached data by the results of the specified delta
+         * filters
+         */
+        private void fetchDelta(FilterState state, List<Filter> deltaFilters)
+                throws Exception {
+            LOG.debug("Requesting filter delta from data source");
+            for (Filter deltaFilter : deltaFilters) {
+                List<? extends SpatialEntity2<? extends Geometry>> data = request(
+                        deltaFilter, false);
+                mergeTileData(this, data);
+                data.clear();
+            }
+            if (diskStore != null) {
+                diskStore.write(state.queryHash, tile, getTileEntities(this));
+            }
+            dataSourceInstance.clearError();
+            // Merged data keeps the age of the data it extends
+            finishUpdate(lastUpdate, state.generation);
+        }
+
+        /**
+         * Fills this tile from the disk cache
+         * 
+         * @return true if the disk cache contained valid data for this tile
+         */
+        private boolean loadFromDisk(FilterState state) {
+            if (diskStore == null) {
+                return false;
+            }
+            DiskTileStore.StoredTile storedTile = diskStore.read(
+                    state.queryHash, tile, minReloadInterval);
+            if (storedTile == null) {
+                return false;
+            }
+
+            LOG.debug("Loaded tile from disk cache");
+            storeTileData(this, storedTile.entities, state.generation);
+            // Expiration is based on the time the data was actually fetched
+            long age = Math.max(0, System.currentTimeMillis()
+                    - storedTile.timestamp);
+            finishUpdate(SystemClock.uptimeMillis() - age, state.generation);
+            return true;
+        }
+
+        private void finishUpdate(long updateTime, int generation) {
+            List<DataCallback> callbacks;
+            boolean checkChange;
+            long staleFingerprint;
+            synchronized (fetchState) {
+                checkChange = servedStale;
+                staleFingerprint = servedFingerprint;
+                servedStale = false;
+                callbacks = fetchState.takeCallbacks();
+
+                lastUpdate = updateTime;
+                dataGeneration = generation;
+                updateRequired = false;
+                prefetching = false;
+                failureCount = 0;
+                retryTime = 0;
+                LOG.debug("Tile update finished");
+            }
+            // Callbacks run without holding the lock, as receivers of the
+            // data might cancel requests of this tile
+            for (DataCallback callback : callbacks) {
+                callback.onDataReceived();
+            }
+            if (checkChange
+                    && EntityFingerprint.compute(getTileEntities(this)) != staleFingerprint) {
+                notifyDataChanged(tileEnvelope);
+            }
+            scheduleExpiry(SystemClock.uptimeMillis());
+
+            trimToBudget();
+        }
+
+        /**
+         * Schedules the next expiry of the data of this tile or of one of its
+         * entities, if it lies in the future
+         */
+        private void scheduleExpiry(long now) {
+            long deadline = getEntityDeadline(now);
+            long tileDeadline = lastUpdate + minReloadInterval;
+            if (minReloadInterval != Long.MAX_VALUE && tileDeadline > now) {
+                deadline = Math.min(deadline, tileDeadline);
+            }
+            if (deadline == Long.MAX_VALUE) {
+                EXPIRY_WHEEL.cancel(expiryTimeout);
+            } else {
+                scheduleTimeout(expiryTimeout, deadline);
+            }
+        }
 
-        private void addCallback(DataCallback callback) {
-            synchronized (awaitDataCallbacks) {
-                awaitDataCallbacks.add(callback);
+        /**
+         * @return The earliest future expiry of the entities of this tile
+         *         with a time to live, or Long.MAX_VALUE if there is none
+         */
+        private long getEntityDeadline(long now) {
+            long dataTime = lastUpdate;
+            long deadline = Long.MAX_VALUE;
+            for (SpatialEntity2<? extends Geometry> entity : getTileEntities(this)) {
+                long timeToLive = EntityTimeToLive.get(entity);
+                if (timeToLive >= 0 && dataTime + timeToLive > now) {
+                    deadline = Math.min(deadline, dataTime + timeToLive);
+                }
+            }
+            return deadline;
+        }
 
-                if (awaitDataCallbacks.size() == 1) {
-                    fetchingThreadPool.execute(fetchRunnable);
+        /**
+         * Removes expired entities, and frees or refreshes the data of this
+         * tile once it expired. Visible tiles get refreshed, others get
+         * removed from the cache unless they are still usable as stale data.
+         */
+        private void onExpired() {
+            if (mTileMap.get(tile.getKey()) != this) {
+                // Removed in the meantime
+                return;
+            }
+            long now = SystemClock.uptimeMillis();
+            if (removeExpiredEntities(now)) {
+                notifyDataChanged(tileEnvelope);
+            }
+            if (minReloadInterval != Long.MAX_VALUE
+                    && lastUpdate + minReloadInterval <= now) {
+                if (isVisible(now)) {
+                    if (!isBackingOff()) {
+                        revalidate();
+                    }
+                    // Checks again whether the tile is still visible
+                    scheduleTimeout(expiryTimeout, now + VISIBLE_USAGE_WINDOW);
+                    return;
+                }
+                if (!isStaleServable() && !isFetching()) {
+                    LOG.debug(logTag + " Freeing expired tile");
+                    removeTile(this);
+                    return;
+                }
+                if (isStaleServable()) {
+                    // Freed once it is not usable as stale data anymore
+                    scheduleTimeout(expiryTimeout, Math.min(now
+                            + VISIBLE_USAGE_WINDOW, lastUpdate
+                            + minReloadInterval + maxStaleness + 1));
+                    return;
                 }
             }
+            scheduleExpiry(now);
         }
 
-        private void removeCallback(DataCallback callback) {
-            synchronized (awaitDataCallbacks) {
-                awaitDataCallbacks.remove(callback);
-                if (awaitDataCallbacks.isEmpty()) {
-                    fetchingThreadPool.remove(fetchRunnable);
+        /**
+         * Removes the entities whose time to live elapsed
+         * 
+         * @return true if entities got removed
+         */
+        private boolean removeExpiredEntities(final long now) {
+            final long dataTime = lastUpdate;
+            boolean expired = false;
+            for (SpatialEntity2<? extends Geometry> entity : getTileEntities(this)) {
+                long timeToLive = EntityTimeToLive.get(entity);
+                if (timeToLive >= 0 && dataTime + timeToLive <= now) {
+                    expired = true;
+                    break;
+                }
+            }
+            if (!expired) {
+                return false;
+            }
+
+            final List<List<SpatialEntity2<? extends Geometry>>> previousData = new ArrayList<List<SpatialEntity2<? extends Geometry>>>(
+                    1);
+            mEntityIndex.apply(new EntityIndex.Update() {
+                @Override
+                void apply(EntityIndex.Editor editor) {
+                    if (entry.isRemoved()) {
+                        return;
+                    }
+                    List<SpatialEntity2<? extends Geometry>> entities = editor
+                            .getEntities(DataTile.this);
+                    List<SpatialEntity2<? extends Geometry>> validEntities = new ArrayList<SpatialEntity2<? extends Geometry>>(
+                            entities.size());
+                    long removedSize = 0;
+                    for (SpatialEntity2<? extends Geometry> entity : entities) {
+                        long timeToLive = EntityTimeToLive.get(entity);
+                        if (timeToLive >= 0 && dataTime + timeToLive <= now) {
+                            removedSize += EntitySizeEstimator
+                                    .estimateSize(entity);
+                        } else {
+                            validEntities.add(entity);
+                        }
+                    }
+                    if (validEntities.size() == entities.size()) {
+                        return;
+                    }
+                    entry.update(editor, validEntities, -removedSize);
+                    previousData.add(entities);
                 }
+            });
+            if (previousData.isEmpty()) {
+                return false;
+            }
+            LOG.debug(logTag + " Removed expired entities");
+            notifyDataDelta(
+                    this,
+                    computeDataDelta(this, previousData.get(0),
+                            getTileEntities(this), dataGeneration));
+            return true;
+        }
+
+        /**
+         * @return true if this tile is part of the latest requested area or
+         *         got used recently
+         */
+        private boolean isVisible(long now) {
+            Envelope visibleEnvelope = mVisibleEnvelope;
+            return now - lastUsage < VISIBLE_USAGE_WINDOW
+                    || (visibleEnvelope != null && visibleEnvelope
+                            .intersects(tileEnvelope));
+        }
+
+        private boolean isFetching() {
+            return fetchState.hasCallbacks();
+        }
+
+        /**
+         * Priority for fetching this tile, based on its distance to the fetch
+         * focus of the cache in tile sizes. If a heading is set, tiles off the
+         * viewing direction get up to three times the priority value.
+         * 
+         * @return Priority, lower values get fetched first
+         */
+        private double getFetchPriority() {
+            double focusX = focusLongitude;
+            double focusY = focusLatitude;
+            if (Double.isNaN(focusX)) {
+                return 0;
+            }
+            double latitudeScale = Math.cos(Math.toRadians(focusY));
+            double dx = ((tileEnvelope.getMinX() + tileEnvelope.getMaxX()) / 2 - focusX)
+                    * latitudeScale;
+            double dy = (tileEnvelope.getMinY() + tileEnvelope.getMaxY()) / 2
+                    - focusY;
+            double tileSize = Math.max(tileEnvelope.getWidth()
+                    * latitudeScale, tileEnvelope.getHeight());
+            double distance = Math.sqrt(dx * dx + dy * dy) / tileSize;
+
+            float heading = focusHeading;
+            if (!Float.isNaN(heading) && distance > 0.5) {
+                double bearing = Math.toDegrees(Math.atan2(dx, dy));
+                // Angle between bearing and heading, 0 to 180 degrees
+                double angle = Math
+                        .abs(((bearing - heading) % 360 + 540) % 360 - 180);
+                distance *= 1 + angle / 90;
+            }
+            if (prefetching) {
+                distance += PREFETCH_PRIORITY_OFFSET;
+            }
+            return distance;
+        }
+
+        /**
+         * Fetches this tile at low priority, unless it is already cached or
+         * being fetched
+         * 
+         * @return true if a fetch got queued
+         */
+        private boolean prefetch() {
+            if (isFetching() || !(updateRequired || requiresUpdate())
+                    || isBackingOff()) {
+                return false;
+            }
+            prefetching = true;
+            awaitData(PREFETCH_CALLBACK, false);
+            return true;
+        }
+
+        private DataCache getCache() {
+            return DataCache.this;
+        }
+
+        /**
+         * @return true if the next fetch of this tile would be a plain
+         *         request, which can be combined with requests of other tiles
+         */
+        private boolean isBatchable(FilterState state) {
+            boolean deltaFetch = state.deltaFilters != null
+                    && dataGeneration >= 0
+                    && dataGeneration == state.generation - 1;
+            return !forceRefresh && !deltaFetch;
+        }
+
+        private void addCallback(DataCallback callback, TileBatch batch) {
+            // The queue evaluates fetch states, so submit without holding the
+            // lock
+            if (fetchState.addCallback(callback)
+                    && (batch == null || !batch.add(this))) {
+                execute(fetchRunnable);
             }
         }
 
         public Cancelable awaitData(final DataCallback callback,
                 boolean forceUpdate) {
-            lastUsage = SystemClock.uptimeMillis();
+            return awaitData(callback, forceUpdate, null);
+        }
 
-            cleanupTilesCounter++;
-            if (cleanupTilesCounter >= CLEANUP_TILES_MIN_COUNT) {
-                cleanupTilesCounter = 0;
-                removeUnusedTiles();
+        private Cancelable awaitData(final DataCallback callback,
+                boolean forceUpdate, TileBatch batch) {
+            touchTile(this);
+            if (callback != PREFETCH_CALLBACK && prefetching) {
+                // Actually requested now
+                prefetching = false;
+                fetchGroup.invalidatePriorities();
             }
 
+            if (forceUpdate) {
+                forceRefresh = true;
+            }
             if (forceUpdate || requiresUpdate()) {
                 updateRequired = true;
             }
+            if (updateRequired && !forceUpdate && isStaleServable()) {
+                // Stale while revalidate, the expired data gets returned at
+                // once
+                if (!isBackingOff()) {
+                    revalidate();
+                }
+                callback.onDataReceived();
+                return NOOPCANCELABLE;
+            }
+            if (updateRequired && !forceUpdate && isBackingOff()) {
+                // Failing data source, answer by cached data if possible
+                if (dataGeneration >= 0) {
+                    callback.onDataReceived();
+                } else {
+                    callback.onAbort(DataSourceErrorType.CONNECTION);
+                }
+                return NOOPCANCELABLE;
+            }
             if (updateRequired) {
-                addCallback(callback);
+                addCallback(callback, batch);
                 return new Cancelable() {
                     @Override
                     public void cancel() {
-                        removeCallback(callback);
+                        fetchState.removeCallback(callback);
                         callback.onAbort(DataSourceErrorType.CANCELED);
                     }
                 };
@@ -199,31 +961,24 @@ public class DataCache {
 
         public Cancelable getData(final Envelope envelope,
                 final GetDataCallback callback, boolean forceUpdate) {
+            return getData(envelope, callback, forceUpdate, null);
+        }
+
+        private Cancelable getData(final Envelope envelope,
+                final GetDataCallback callback, boolean forceUpdate,
+                TileBatch batch) {
             return awaitData(new DataCallback() {
 
                 @Override
                 public void onDataReceived() {
-                    final List<SpatialEntity2<? extends Geometry>> resultList = new ArrayList<SpatialEntity2<? extends Geometry>>();
-                    synchronized (mEntityIndex) {
-                        mEntityIndex.query(envelope, new ItemVisitor() {
-                            @Override
-                            public void visitItem(Object item) {
-                                @SuppressWarnings("unchecked")
-                                SpatialEntity2<? extends Geometry> entity = (SpatialEntity2<? extends Geometry>) item;
-                                if (envelope.intersects(entity.getEnvelope())) {
-                                    resultList.add(entity);
-                                }
-                            }
-                        });
-                    }
-                    callback.onReceiveMeasurements(resultList);
+                    callback.onReceiveMeasurements(queryEntities(envelope));
                 }
 
                 @Override
                 public void onAbort(DataSourceErrorType reason) {
                     callback.onAbort(reason);
                 }
-            }, forceUpdate);
+            }, forceUpdate, batch);
         }
 
         public Cancelable getData(final GetDataCallback callback,
@@ -232,53 +987,601 @@ public class DataCache {
         }
 
         public void abort(DataSourceErrorType reason) {
-            synchronized (awaitDataCallbacks) {
+            List<DataCallback> callbacks;
+            synchronized (fetchState) {
                 // updatePending = false; // XXX
-                for (DataCallback callback : awaitDataCallbacks) {
-                    callback.onAbort(reason);
-                }
-                awaitDataCallbacks.clear();
-                fetchingThreadPool.remove(fetchRunnable);
+                callbacks = fetchState.takeCallbacks();
+                prefetching = false;
             }
+            for (DataCallback callback : callbacks) {
+                callback.onAbort(reason);
+            }
+        }
+
+        public DataTile(Tile tile) {
+            this.tile = tile;
+            this.tileEnvelope = tile.getEnvelope();
         }
 
-        public DataTile(Envelope tileEnvelope) {
-            this.tileEnvelope = tileEnvelope;
+        /**
+         * @return true if the cached data of this tile can be used without
+         *         fetching
+         */
+        private boolean isCurrent() {
+            return !updateRequired && !requiresUpdate();
         }
 
         public boolean requiresUpdate() {
-            return lastUpdate <= SystemClock.uptimeMillis() - minReloadInterval;
+            return dataGeneration != filterState.generation
+                    || lastUpdate <= SystemClock.uptimeMillis()
+                            - minReloadInterval;
         }
 
     }
 
-    public enum DataSourceErrorType {
-        UNKNOWN, CONNECTION, CANCELED
-    }
+    /**
+     * Collects the tiles of a bounding box request which have to be fetched,
+     * to combine adjacent ones into single requests
+     */
+    private class TileBatch {
+        private final int tileLeftX;
+        private final int tileTopY;
+        private final int gridWidth;
+        private final int gridHeight;
+        private final byte zoom;
+        private final DataTile[] dataTiles;
+        private final BitSet pendingTiles;
+
+        private TileBatch(int tileLeftX, int tileTopY, int gridWidth,
+                int gridHeight, byte zoom) {
+            this.tileLeftX = tileLeftX;
+            this.tileTopY = tileTopY;
+            this.gridWidth = gridWidth;
+            this.gridHeight = gridHeight;
+            this.zoom = zoom;
+            this.dataTiles = new DataTile[gridWidth * gridHeight];
+            this.pendingTiles = new BitSet(dataTiles.length);
+        }
 
-    private static final long MIN_RELOAD_INTERVAL = 60000;
+        /**
+         * Defers fetching of the specified tile to {@link #submit()}
+         * 
+         * @return false if the tile does not fit into this batch and has to
+         *         be fetched separately
+         */
+        private boolean add(DataTile dataTile) {
+            int x = dataTile.tile.x - tileLeftX;
+            int y = dataTile.tile.y - tileTopY;
+            if (dataTile.tile.zoom != zoom || x < 0 || y < 0
+                    || x >= gridWidth || y >= gridHeight
+                    || !dataTile.isBatchable(filterState)) {
+                return false;
+            }
+            int index = y * gridWidth + x;
+            dataTiles[index] = dataTile;
+            pendingTiles.set(index);
+            return true;
+        }
 
-    private static ThreadPoolExecutor SHARED_THREAD_POOL = (ThreadPoolExecutor) Executors
-            .newFixedThreadPool(3);
+        private void submit() {
+            for (Rect rect : TileBatchPlanner.plan(pendingTiles, gridWidth,
+                    gridHeight, maxBatchTiles)) {
+                final List<DataTile> batchTiles = new ArrayList<DataTile>();
+                for (int y = rect.top; y < rect.bottom; y++) {
+                    for (int x = rect.left; x < rect.right; x++) {
+                        batchTiles.add(dataTiles[y * gridWidth + x]);
+                    }
+                }
 
-    private DataSourceInstanceHolder dataSourceInstance;
-    private ThreadPoolExecutor fetchingThreadPool;
-    // protected byte tileZoom; // Zoom level for the tiling system of this
-    // cache
-    private Filter dataFilter;
-    private String logTag;
-    private long minReloadInterval;
+                if (batchTiles.size() == 1) {
+                    execute(batchTiles.get(0).fetchRunnable);
+                } else {
+                    execute(new FetchQueue.PrioritizedRunnable() {
+                        @Override
+                        public double getPriority() {
+                            double priority = Double.POSITIVE_INFINITY;
+                            for (DataTile dataTile : batchTiles) {
+                                priority = Math.min(priority,
+                                        dataTile.getFetchPriority());
+                            }
+                            return priority;
+                        }
+
+                        @Override
+                        public boolean isObsolete() {
+                            boolean obsolete = true;
+                            for (DataTile dataTile : batchTiles) {
+                                obsolete &= dataTile.fetchState
+                                        .isFetchObsolete();
+                            }
+                            return obsolete;
+                        }
+
+                        @Override
+                        public FetchQueue.Group getGroup() {
+                            return fetchGroup;
+                        }
+
+                        @Override
+                        public void run() {
+                            fetchBatch(batchTiles);
+                        }
+                    });
+                }
+            }
+        }
+    }
 
-    private long cleanupTilesCounter;
+    /**
+     * Moving viewport over the data of this cache, reporting the entities
+     * which enter or leave it. Keeps the entities delivered for each tile of
+     * the viewport, so that moving it only requests and compares the tiles
+     * which entered or left it. Changes of the data of its tiles get reported
+     * the same way.
+     */
+    public class ViewportSubscription implements OnDataDeltaListener {
+
+        /**
+         * Tile of the viewport and the entities delivered for it
+         */
+        private class ViewportTile implements GetDataCallback {
+            private final Tile tile;
+            private final Envelope envelope;
+            // null until the data of the tile got loaded
+            private List<SpatialEntity2<? extends Geometry>> entities;
+            // Running request, null if there is none
+            private Cancelable request;
+
+            private ViewportTile(Tile tile) {
+                this.tile = tile;
+                this.envelope = tile.getEnvelope();
+            }
 
-    private Quadtree mQueryIndex = new Quadtree();
-    private Quadtree mEntityIndex = new Quadtree();
-    private static final Logger LOG = LoggerFactory.getLogger(DataCache.class);
+            @Override
+            public void onReceiveMeasurements(
+                    List<? extends SpatialEntity2<? extends Geometry>> data) {
+                synchronized (ViewportSubscription.this) {
+                    if (viewportTiles.get(tile.getKey()) != this) {
+                        // Left the viewport in the meantime
+                        return;
+                    }
+                    request = null;
+                    if (entities == null) {
+                        loadedTiles++;
+                        postProgress();
+                    }
+                    updateEntities(this, data);
+                }
+            }
 
-    public DataCache(DataSourceInstanceHolder dataSource) {
-        this(dataSource, SHARED_THREAD_POOL);
-    }
+            @Override
+            public void onAbort(final DataSourceErrorType reason) {
+                if (reason == DataSourceErrorType.CANCELED) {
+                    return;
+                }
+                synchronized (ViewportSubscription.this) {
+                    if (viewportTiles.get(tile.getKey()) != this) {
+                        return;
+                    }
+                    // Requested again once the viewport moves
+                    request = null;
+                    final int deliveryGeneration = generation;
+                    final MercatorRect deliveryBounds = bounds;
+                    TIMER_HANDLER.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (isCurrent(deliveryGeneration)) {
+                                callback.onAbort(deliveryBounds, reason);
+                            }
+                        }
+                    });
+                }
+            }
+        }
 
+        private final ViewportCallback callback;
+        // Tiles of the viewport by their keys
+        private final Map<Long, ViewportTile> viewportTiles = new HashMap<Long, ViewportTile>();
+        // Number of tiles of the viewport each delivered entity lies within.
+        // Entities are compared like in EntitySet.
+        private final Map<SpatialEntity2<? extends Geometry>, EntityCount> entityCounts = new HashMap<SpatialEntity2<? extends Geometry>, EntityCount>();
+        private MercatorRect bounds;
+        private int loadedTiles;
+        private boolean canceled;
+        // Deliveries of previous generations got obsolete by a reset
+        private int generation;
+
+        private ViewportSubscription(ViewportCallback callback) {
+            this.callback = callback;
+        }
+
+        /**
+         * Moves the viewport. Entities of tiles which left the viewport get
+         * reported at once, the data of tiles which entered it gets requested.
+         * 
+         * @param newBounds
+         */
+        public synchronized void setViewport(MercatorRect newBounds) {
+            if (canceled) {
+                return;
+            }
+            bounds = newBounds;
+            byte cacheZoom = getCacheZoom(newBounds);
+            byte requestZoom = getRequestZoom(newBounds);
+            Rect tileRange = getTileRange(newBounds, requestZoom);
+
+            List<SpatialEntity2<? extends Geometry>> left = new ArrayList<SpatialEntity2<? extends Geometry>>();
+            for (Iterator<ViewportTile> it = viewportTiles.values().iterator(); it
+                    .hasNext();) {
+                ViewportTile viewportTile = it.next();
+                Tile tile = viewportTile.tile;
+                if (tile.zoom == requestZoom && tile.x >= tileRange.left
+                        && tile.x <= tileRange.right
+                        && tile.y >= tileRange.top
+                        && tile.y <= tileRange.bottom) {
+                    continue;
+                }
+                it.remove();
+                if (viewportTile.request != null) {
+                    viewportTile.request.cancel();
+                }
+                if (viewportTile.entities != null) {
+                    loadedTiles--;
+                    releaseEntities(viewportTile.entities, left);
+                }
+            }
+            postDelta(new ArrayList<SpatialEntity2<? extends Geometry>>(0),
+                    left);
+
+            Envelope gridEnvelope = new Envelope(new Tile(tileRange.left,
+                    tileRange.top, requestZoom).getEnvelope());
+            gridEnvelope.expandToInclude(new Tile(tileRange.right,
+                    tileRange.bottom, requestZoom).getEnvelope());
+            mVisibleEnvelope = gridEnvelope;
+            setFocusCenter(gridEnvelope);
+
+            TileBatch batch = maxBatchTiles > 1 ? new TileBatch(
+                    tileRange.left, tileRange.top, tileRange.width() + 1,
+                    tileRange.height() + 1, requestZoom) : null;
+            for (int y = tileRange.top; y <= tileRange.bottom; y++) {
+                for (int x = tileRange.left; x <= tileRange.right; x++) {
+                    long key = Tile.getKey(x, y, requestZoom);
+                    ViewportTile viewportTile = viewportTiles.get(key);
+                    if (viewportTile == null) {
+                        viewportTile = new ViewportTile(new Tile(x, y,
+                                requestZoom));
+                        viewportTiles.put(key, viewportTile);
+                    } else if (viewportTile.entities != null
+                            || viewportTile.request != null) {
+                        // Still in the viewport
+                        continue;
+                    }
+                    requestTile(viewportTile, cacheZoom, batch);
+                }
+            }
+            if (batch != null) {
+                batch.submit();
+            }
+            postProgress();
+        }
+
+        /**
+         * Requests the data of all tiles of the viewport again, e.g. after
+         * the filter changed. Only differences to the delivered entities get
+         * reported.
+         */
+        public synchronized void refresh() {
+            if (canceled || bounds == null) {
+                return;
+            }
+            byte cacheZoom = getCacheZoom(bounds);
+            for (ViewportTile viewportTile : viewportTiles.values()) {
+                if (viewportTile.request == null) {
+                    requestTile(viewportTile, cacheZoom, null);
+                }
+            }
+        }
+
+        /**
+         * Forgets all delivered entities without reporting them as left, and
+         * delivers the entities of the current viewport again. Changes which
+         * are not delivered yet get dropped. Allows receivers to rebuild
+         * their objects.
+         */
+        public synchronized void reset() {
+            if (canceled) {
+                return;
+            }
+            dropEntities();
+            if (bounds != null) {
+                setViewport(bounds);
+            }
+        }
+
+        /**
+         * Forgets the viewport and all delivered entities without reporting
+         * them as left, e.g. after receivers removed their objects
+         */
+        public synchronized void clear() {
+            if (canceled) {
+                return;
+            }
+            dropEntities();
+            bounds = null;
+        }
+
+        /**
+         * Stops this subscription, no further changes get delivered
+         */
+        public synchronized void cancel() {
+            if (canceled) {
+                return;
+            }
+            canceled = true;
+            dropEntities();
+            removeOnDataDeltaListener(this);
+        }
+
+        @Override
+        public void onDataDelta(Envelope envelope, EntityDelta delta) {
+            synchronized (this) {
+                if (canceled) {
+                    return;
+                }
+                for (ViewportTile viewportTile : viewportTiles.values()) {
+                    if (viewportTile.entities != null
+                            && viewportTile.envelope.intersects(envelope)) {
+                        updateEntities(viewportTile,
+                                queryEntities(viewportTile.envelope));
+                    }
+                }
+            }
+        }
+
+        private void dropEntities() {
+            generation++;
+            for (ViewportTile viewportTile : viewportTiles.values()) {
+                if (viewportTile.request != null) {
+                    viewportTile.request.cancel();
+                }
+            }
+            viewportTiles.clear();
+            entityCounts.clear();
+            loadedTiles = 0;
+        }
+
+        private void requestTile(ViewportTile viewportTile, byte cacheZoom,
+                TileBatch batch) {
+            Tile tile = viewportTile.tile;
+            DataTile dataTile = findContainingTile(mTileMap, tile);
+            if (dataTile == null && isCoveredByCachedTiles(tile, cacheZoom)) {
+                // Served by the tiles of this cache, no need to fetch
+                viewportTile.onReceiveMeasurements(queryEntities(
+                        viewportTile.envelope));
+                return;
+            }
+            if (dataTile == null) {
+                dataTile = getDataTile(tile);
+            }
+            // Marks the tile as requested, cached data gets delivered at once
+            viewportTile.request = NOOPCANCELABLE;
+            Cancelable request = dataTile.getData(viewportTile.envelope,
+                    viewportTile, false, batch);
+            if (viewportTile.request == NOOPCANCELABLE) {
+                viewportTile.request = request;
+            }
+        }
+
+        /**
+         * Replaces the entities delivered for a tile, reporting entities which
+         * are not within any other tile of the viewport
+         */
+        private void updateEntities(ViewportTile viewportTile,
+                List<? extends SpatialEntity2<? extends Geometry>> data) {
+            List<SpatialEntity2<? extends Geometry>> entered = new ArrayList<SpatialEntity2<? extends Geometry>>();
+            List<SpatialEntity2<? extends Geometry>> left = new ArrayList<SpatialEntity2<? extends Geometry>>();
+            List<SpatialEntity2<? extends Geometry>> entities = new ArrayList<SpatialEntity2<? extends Geometry>>(
+                    data);
+            // Counts the new entities first, so that entities kept by this
+            // tile do not leave
+            for (SpatialEntity2<? extends Geometry> entity : entities) {
+                EntityCount entityCount = entityCounts.get(entity);
+                if (entityCount == null) {
+                    entityCounts.put(entity, new EntityCount(entity));
+                    entered.add(entity);
+                } else {
+                    entityCount.count++;
+                }
+            }
+            if (viewportTile.entities != null) {
+                releaseEntities(viewportTile.entities, left);
+            }
+            viewportTile.entities = entities;
+            postDelta(entered, left);
+        }
+
+        private void releaseEntities(
+                List<SpatialEntity2<? extends Geometry>> entities,
+                List<SpatialEntity2<? extends Geometry>> left) {
+            for (SpatialEntity2<? extends Geometry> entity : entities) {
+                EntityCount entityCount = entityCounts.get(entity);
+                if (--entityCount.count == 0) {
+                    entityCounts.remove(entity);
+                    // Receivers know the instance delivered first
+                    left.add(entityCount.entity);
+                }
+            }
+        }
+
+        private void postDelta(
+                final List<SpatialEntity2<? extends Geometry>> entered,
+                final List<SpatialEntity2<? extends Geometry>> left) {
+            if (entered.isEmpty() && left.isEmpty()) {
+                return;
+            }
+            final int deliveryGeneration = generation;
+            final MercatorRect deliveryBounds = bounds;
+            TIMER_HANDLER.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (isCurrent(deliveryGeneration)) {
+                        callback.onViewportDelta(deliveryBounds, entered, left);
+                    }
+                }
+            });
+        }
+
+        private void postProgress() {
+            final int deliveryGeneration = generation;
+            final int progress = loadedTiles;
+            final int size = viewportTiles.size();
+            TIMER_HANDLER.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (isCurrent(deliveryGeneration)) {
+                        callback.onProgressUpdate(progress, size);
+                    }
+                }
+            });
+        }
+
+        private synchronized boolean isCurrent(int deliveryGeneration) {
+            return !canceled && deliveryGeneration == generation;
+        }
+    }
+
+    /**
+     * Number of references to a delivered entity
+     */
+    private static class EntityCount {
+        private final SpatialEntity2<? extends Geometry> entity;
+        private int count = 1;
+
+        private EntityCount(SpatialEntity2<? extends Geometry> entity) {
+            this.entity = entity;
+        }
+    }
+
+    public enum DataSourceErrorType {
+        UNKNOWN, CONNECTION, CANCELED
+    }
+
+    private static final long MIN_RELOAD_INTERVAL = 60000;
+    private static final double METERS_PER_DEGREE = 111320;
+    // Backoff for requesting a tile again after its fetch failed
+    private static final long TILE_RETRY_MIN_DELAY = 2000;
+    private static final long TILE_RETRY_MAX_DELAY = 2 * 60 * 1000;
+    // Schedules retries of rate limited fetches and hedges of slow requests,
+    // advances the expiry wheel and delivers viewport changes
+    private static final Handler TIMER_HANDLER = new Handler(
+            Looper.getMainLooper());
+    // Expiry of the data of tiles and of entities with a time to live
+    private static final long EXPIRY_TICK = 1000;
+    private static final TimingWheel EXPIRY_WHEEL = new TimingWheel(
+            EXPIRY_TICK, 512, SystemClock.uptimeMillis());
+    private static final Runnable EXPIRY_TICKER = new Runnable() {
+        @Override
+        public void run() {
+            List<Runnable> expiredTasks = new ArrayList<Runnable>();
+            boolean active = EXPIRY_WHEEL.advance(SystemClock.uptimeMillis(),
+                    expiredTasks);
+            for (Runnable task : expiredTasks) {
+                task.run();
+            }
+            if (active) {
+                TIMER_HANDLER.postDelayed(this, EXPIRY_TICK);
+            }
+        }
+    };
+    // Expired tiles used within this time get refreshed instead of freed
+    private static final long VISIBLE_USAGE_WINDOW = 30000;
+    private static final String DISK_CACHE_DIRECTORY = "datacache";
+
+    // Fetching is I/O bound, so the shared pool uses more threads than cores
+    private static final int SHARED_POOL_SIZE = Math.max(3,
+            Math.min(8, 2 * Runtime.getRuntime().availableProcessors()));
+    private static final long SHARED_POOL_KEEP_ALIVE = 30000;
+    private static final Object SHARED_POOL_LOCK = new Object();
+    // Fetches tiles in the order of their priority, created on demand and
+    // shut down once no cache is active. Guarded by SHARED_POOL_LOCK.
+    private static ThreadPoolExecutor sharedThreadPool;
+    private static int activeCaches;
+    // Performs duplicates of slow requests, rejects them if all threads are
+    // busy
+    private static final ThreadPoolExecutor HEDGE_POOL = new ThreadPoolExecutor(
+            0, SHARED_POOL_SIZE, SHARED_POOL_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+            new SynchronousQueue<Runnable>());
+
+    // Budget for all caches and default budget for each single cache
+    private static final long DEFAULT_GLOBAL_MEMORY_BUDGET = Runtime
+            .getRuntime().maxMemory() / 4;
+    private static final long DEFAULT_MEMORY_BUDGET = DEFAULT_GLOBAL_MEMORY_BUDGET / 2;
+    private static final CacheStatistics GLOBAL_STATISTICS = new CacheStatistics(
+            null, DEFAULT_GLOBAL_MEMORY_BUDGET);
+    private static final Set<DataCache> CACHES = Collections
+            .newSetFromMap(new WeakHashMap<DataCache, Boolean>());
+
+    private DataSourceInstanceHolder dataSourceInstance;
+    // Custom pool, or null to use the shared pool
+    private ThreadPoolExecutor fetchingThreadPool;
+    // Fetches of this cache, limited and weighted according to its data source
+    private final FetchQueue.Group fetchGroup;
+    // Guarded by SHARED_POOL_LOCK
+    private boolean active;
+    // Request rate limit of the data source, or null if unlimited
+    private final TokenBucket rateLimit;
+    private final CircuitBreaker circuitBreaker;
+    // Latencies of recent requests, to decide when to hedge a slow request
+    private final LatencyTracker latencyTracker = new LatencyTracker();
+    private final int hedgePercentile;
+    private final int maxHedgedPercent;
+    // Zoom level for the tiling system of this cache, 0 to use the zoom level
+    // of each request
+    private final byte tileZoom;
+    private volatile FilterState filterState;
+    private DiskTileStore diskStore;
+    private String logTag;
+    // Identifies the data source for sharing requests with other caches
+    private final String sourceKey;
+    private long minReloadInterval;
+    // Time after expiry during which stale data gets served, 0 if never
+    private final long maxStaleness;
+    private final List<OnDataChangedListener> dataChangedListeners = new CopyOnWriteArrayList<OnDataChangedListener>();
+    private final List<OnDataDeltaListener> dataDeltaListeners = new CopyOnWriteArrayList<OnDataDeltaListener>();
+    // Area of the latest bounding box request, its tiles count as visible
+    private volatile Envelope mVisibleEnvelope;
+    // Maximum number of tiles to request at once
+    private final int maxBatchTiles;
+
+    // Tiles ordered from least to most recently used, guarded by mLruLock
+    private final AccessOrder<DataTile> mLruOrder = new AccessOrder<DataTile>();
+    private final Object mLruLock = new Object();
+    private final AtomicBoolean mRemovingUnusedTiles = new AtomicBoolean();
+    // Location and viewing direction to prioritize fetching of tiles by
+    private volatile double focusLongitude = Double.NaN;
+    private volatile double focusLatitude = Double.NaN;
+    private volatile float focusHeading = Float.NaN;
+    private final CacheStatistics statistics = new CacheStatistics(
+            GLOBAL_STATISTICS, DEFAULT_MEMORY_BUDGET);
+
+    // Copy on write array and map by tile key of all tiles of this cache,
+    // replaced while holding mTilesLock
+    private volatile DataTile[] mTiles = NO_TILES;
+    private volatile TileKeyMap<DataTile> mTileMap = new TileKeyMap<DataTile>();
+    private final Object mTilesLock = new Object();
+    private final EntityIndex mEntityIndex = new EntityIndex();
+    private static final Logger LOG = LoggerFactory.getLogger(DataCache.class);
+
+    public DataCache(DataSourceInstanceHolder dataSource) {
+        this(dataSource, null);
+    }
+
+    /**
+     * @param dataSource
+     * @param fetchingThreadPool
+     *            Pool to fetch data with, or null to use the pool shared by
+     *            all caches
+     */
     public DataCache(DataSourceInstanceHolder dataSource,
             ThreadPoolExecutor fetchingThreadPool) {
         this(dataSource, dataSource.getParent().getCacheZoomLevel(),
@@ -288,8 +1591,9 @@ public class DataCache {
     public DataCache(DataSourceInstanceHolder dataSource, byte tileZoom,
             ThreadPoolExecutor fetchingThreadPool) {
         this.dataSourceInstance = dataSource;
-        // this.tileZoom = tileZoom;
+        this.tileZoom = (byte) Math.max(0, tileZoom);
         this.logTag = getClass().getSimpleName() + " " + dataSource.getName();
+        this.sourceKey = getSourceKey(dataSource.getParent());
         this.fetchingThreadPool = fetchingThreadPool;
         minReloadInterval = this.dataSourceInstance.getParent()
                 .getMinReloadInterval();
@@ -300,173 +1604,1279 @@ public class DataCache {
                     .max(minReloadInterval, MIN_RELOAD_INTERVAL);
         }
 
-        dataFilter = dataSource.getCurrentFilter();
+        maxStaleness = dataSource.getParent().getMaxStaleness();
+        maxBatchTiles = dataSource.getParent().getMaxBatchTiles();
+        fetchGroup = new FetchQueue.Group(dataSource.getParent()
+                .getMaxConcurrentFetches(), dataSource.getParent()
+                .getFetchWeight());
+        int maxRequestsPerMinute = dataSource.getParent()
+                .getMaxRequestsPerMinute();
+        rateLimit = maxRequestsPerMinute > 0 ? new TokenBucket(
+                maxRequestsPerMinute, maxRequestsPerMinute / 10) : null;
+        circuitBreaker = dataSource.getCircuitBreaker();
+        hedgePercentile = dataSource.getParent().getHedgePercentile();
+        maxHedgedPercent = dataSource.getParent().getMaxHedgedPercent();
+
+        filterState = new FilterState(dataSource.getCurrentFilter().clone(),
+                FilterHelper.getSettingsHash(dataSource.getDataSource()), 0,
+                null);
+        diskStore = createDiskStore(dataSource, minReloadInterval);
+
+        synchronized (CACHES) {
+            CACHES.add(this);
+        }
+    }
+
+    /**
+     * Marks this cache as used or unused by an active data source instance.
+     * The shared fetching pool gets shut down once no cache is active
+     * anymore, and gets recreated on demand.
+     */
+    void setActive(boolean active) {
+        synchronized (SHARED_POOL_LOCK) {
+            if (this.active == active) {
+                return;
+            }
+            this.active = active;
+            activeCaches += active ? 1 : -1;
+            if (activeCaches == 0 && sharedThreadPool != null) {
+                LOG.debug("Shutting down shared fetching pool");
+                // Queued fetches of cleared caches get dropped as obsolete
+                sharedThreadPool.shutdown();
+                sharedThreadPool = null;
+            }
+        }
+    }
+
+    /**
+     * Schedules an expiry, the wheel gets advanced while it has timeouts
+     */
+    private static void scheduleTimeout(TimingWheel.Timeout timeout,
+            long deadline) {
+        if (EXPIRY_WHEEL.schedule(timeout, deadline)) {
+            TIMER_HANDLER.postDelayed(EXPIRY_TICKER, EXPIRY_TICK);
+        }
+    }
+
+    public void addOnDataChangedListener(OnDataChangedListener listener) {
+        dataChangedListeners.add(listener);
+    }
+
+    public void removeOnDataChangedListener(OnDataChangedListener listener) {
+        dataChangedListeners.remove(listener);
+    }
+
+    private void notifyDataChanged(Envelope envelope) {
+        LOG.debug(logTag + " Data changed");
+        for (OnDataChangedListener listener : dataChangedListeners) {
+            listener.onDataChanged(envelope);
+        }
+    }
+
+    public void addOnDataDeltaListener(OnDataDeltaListener listener) {
+        dataDeltaListeners.add(listener);
+    }
+
+    public void removeOnDataDeltaListener(OnDataDeltaListener listener) {
+        dataDeltaListeners.remove(listener);
+    }
+
+    /**
+     * Computes the difference between the previous and the current data of a
+     * tile for the delta listeners, if there are any and the data got
+     * refreshed for the generation the consumers hold
+     * 
+     * @param tile
+     * @param previous
+     * @param current
+     * @param generation
+     *            Filter generation of the current data
+     * @return The delta, or null if it does not get reported
+     */
+    private EntityDelta computeDataDelta(DataTile tile,
+            List<? extends SpatialEntity2<? extends Geometry>> previous,
+            List<? extends SpatialEntity2<? extends Geometry>> current,
+            int generation) {
+        if (dataDeltaListeners.isEmpty() || tile.dataGeneration < 0
+                || tile.dataGeneration != generation
+                || generation != filterState.generation) {
+            return null;
+        }
+        return EntityDelta.compute(previous, current, filterState.predicate);
+    }
+
+    /**
+     * Passes the delta of the data of a tile to the delta listeners
+     * 
+     * @param tile
+     * @param delta
+     *            Delta, or null if none got computed
+     */
+    private void notifyDataDelta(DataTile tile, EntityDelta delta) {
+        if (delta == null || delta.isEmpty()) {
+            return;
+        }
+        LOG.debug(logTag + " Data delta: " + delta.getAdded().size()
+                + " added, " + delta.getRemoved().size() + " removed, "
+                + delta.getChanged().size() + " changed");
+        for (OnDataDeltaListener listener : dataDeltaListeners) {
+            listener.onDataDelta(tile.tileEnvelope, delta);
+        }
+    }
+
+    /**
+     * Submits a fetching task to the pool of this cache
+     */
+    private void execute(Runnable task) {
+        if (fetchingThreadPool != null) {
+            fetchingThreadPool.execute(task);
+            return;
+        }
+        synchronized (SHARED_POOL_LOCK) {
+            if (sharedThreadPool == null) {
+                sharedThreadPool = new ThreadPoolExecutor(SHARED_POOL_SIZE,
+                        SHARED_POOL_SIZE, 0, TimeUnit.MILLISECONDS,
+                        new FetchQueue());
+                // Tasks passed to starting workers would bypass the queue
+                // with its priorities and group limits, so all workers get
+                // started up front and stay alive until the pool shuts down
+                sharedThreadPool.prestartAllCoreThreads();
+            }
+            sharedThreadPool.execute(task);
+        }
+    }
+
+    private static String getSourceKey(DataSourceHolder dataSourceHolder) {
+        if (dataSourceHolder.getPluginHolder() == null) {
+            return dataSourceHolder.getIdentifier();
+        }
+        return dataSourceHolder.getPluginHolder().getIdentifier() + "/"
+                + dataSourceHolder.getIdentifier();
+    }
 
+    /**
+     * Creates the persistent second level cache for a data source
+     * 
+     * @return The disk cache or null if the data source can not be persisted
+     */
+    private static DiskTileStore createDiskStore(
+            DataSourceInstanceHolder dataSource, long maxAge) {
+        DataSourceHolder dataSourceHolder = dataSource.getParent();
+        InstalledPluginHolder pluginHolder = dataSourceHolder
+                .getPluginHolder();
+        if (pluginHolder == null
+                || GeoARApplication.applicationContext == null) {
+            return null;
+        }
+        // Separate directories for each plugin version, as entity classes
+        // might change
+        String name = (pluginHolder.getIdentifier() + "-"
+                + pluginHolder.getVersion() + "-" + dataSourceHolder
+                .getIdentifier()).replaceAll("[^\\w.-]", "_");
+        File directory = new File(new File(
+                GeoARApplication.applicationContext.getCacheDir(),
+                DISK_CACHE_DIRECTORY), name);
+        return DiskTileStore.getInstance(directory,
+                pluginHolder.getPluginClassLoader(), maxAge);
+    }
+
+    /**
+     * Sets the memory budget shared by all {@link DataCache}s. Least recently
+     * used tiles of any cache get removed if the estimated size of all cached
+     * data exceeds this budget.
+     * 
+     * @param maxBytes
+     */
+    public static void setGlobalMemoryBudget(long maxBytes) {
+        GLOBAL_STATISTICS.setMaxBytes(maxBytes);
+        trimGlobalBudget();
+    }
+
+    /**
+     * @return Memory and eviction statistics of all {@link DataCache}s
+     */
+    public static CacheStatistics getGlobalStatistics() {
+        return GLOBAL_STATISTICS;
+    }
+
+    /**
+     * Sets the memory budget of this cache. Least recently used tiles get
+     * removed if the estimated size of the cached data exceeds this budget.
+     * 
+     * @param maxBytes
+     */
+    public void setMemoryBudget(long maxBytes) {
+        statistics.setMaxBytes(maxBytes);
+        trimToBudget();
+    }
+
+    /**
+     * @return Memory and eviction statistics of this cache
+     */
+    public CacheStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Sets a new {@link Filter} to use for requesting data. Compares the new
+     * filter to the current one, see {@link FilterHelper}, to reuse as much
+     * cached data as possible:
+     * <ul>
+     * <li>Equal filters keep all data</li>
+     * <li>Narrower filters keep all data if the filter can be evaluated on
+     * cached entities</li>
+     * <li>Wider filters keep all data and only request the delta to the
+     * previous filter, if it can be expressed by the filter, or refresh tiles
+     * on next access otherwise</li>
+     * <li>Any other change, including changed data source settings, clears
+     * the cache</li>
+     * </ul>
+     * Data persisted for the new filter will be reused.
+     * 
+     * @param filter
+     */
+    public void setFilter(Filter filter) {
+        FilterState previousState = filterState;
+        // Copy, as the filter instance might get modified by the settings
+        // dialog
+        Filter newFilter = filter.clone();
+        long settingsHash = FilterHelper.getSettingsHash(dataSourceInstance
+                .getDataSource());
+        FilterChange change = null;
+        FilterRelation relation = FilterRelation.DIFFERENT;
+        if (settingsHash == previousState.settingsHash) {
+            change = FilterHelper.compareFilters(previousState.filter,
+                    newFilter, dataSourceInstance.getParent().getFilterRanges());
+            relation = change.getRelation();
+        }
+        LOG.debug(logTag + " Filter changed, relation " + relation);
+
+        switch (relation) {
+        case EQUAL:
+            filterState = new FilterState(newFilter, settingsHash,
+                    previousState.generation, previousState.deltaFilters);
+            return;
+        case NARROWER:
+            FilterState narrowState = new FilterState(newFilter, settingsHash,
+                    previousState.generation, previousState.deltaFilters);
+            if (narrowState.predicate != null) {
+                // Cached data is a superset, results get filtered locally
+                filterState = narrowState;
+                return;
+            }
+            break;
+        case WIDER:
+            // Cached data remains valid, tiles request the missing delta on
+            // next access
+            filterState = new FilterState(newFilter, settingsHash,
+                    previousState.generation + 1, change.getDeltaFilters());
+            return;
+        default:
+            break;
+        }
+
+        clearCache();
+        filterState = new FilterState(newFilter, settingsHash,
+                previousState.generation + 1, null);
+    }
+
+    /**
+     * Sets the location and viewing direction by which queued tiles get
+     * prioritized. Tiles closer to the location and, if a heading is set,
+     * closer to the viewing direction get fetched first. Priorities of already
+     * queued tiles follow changes of the focus.
+     * 
+     * @param location
+     * @param heading
+     *            Viewing direction in degrees clockwise from north, or
+     *            {@link Float#NaN} to ignore the direction
+     */
+    public void setFetchFocus(GeoLocation location, float heading) {
+        focusLatitude = location.getLatitudeE6() / 1E6;
+        focusLongitude = location.getLongitudeE6() / 1E6;
+        focusHeading = heading;
+        fetchGroup.invalidatePriorities();
+    }
+
+    /**
+     * Moves the fetch focus to the center of an area, keeping the heading
+     */
+    private void setFocusCenter(Envelope envelope) {
+        focusLatitude = (envelope.getMinY() + envelope.getMaxY()) / 2;
+        focusLongitude = (envelope.getMinX() + envelope.getMaxX()) / 2;
+        fetchGroup.invalidatePriorities();
+    }
+
+    public Filter getFilter() {
+        return filterState.filter;
+    }
+
+    /**
+     * Cancels all fetching operations and clears the in-memory cache. The disk
+     * cache is kept.
+     */
+    public void clearCache() {
+        final DataTile[] dataTiles;
+        synchronized (mTilesLock) {
+            dataTiles = mTiles;
+            mTiles = NO_TILES;
+            mTileMap = new TileKeyMap<DataTile>();
+            synchronized (mLruLock) {
+                for (DataTile dataTile : dataTiles) {
+                    mLruOrder.unlink(dataTile.lruNode);
+                }
+            }
+        }
+        for (DataTile dataTile : dataTiles) {
+            EXPIRY_WHEEL.cancel(dataTile.expiryTimeout);
+            dataTile.abort(DataSourceErrorType.CANCELED);
+        }
+        mEntityIndex.apply(new EntityIndex.Update() {
+            @Override
+            void apply(EntityIndex.Editor editor) {
+                for (DataTile dataTile : dataTiles) {
+                    dataTile.entry.remove(editor);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the cached tile containing the specified tile, or creates a new
+     * one for it
+     */
+    private DataTile getDataTile(Tile tile) {
+        DataTile containingDataTile = findContainingTile(mTileMap, tile);
+        if (containingDataTile != null) {
+            return containingDataTile;
+        }
+
+        synchronized (mTilesLock) {
+            // Another thread might have added the tile in the meantime
+            containingDataTile = findContainingTile(mTileMap, tile);
+            if (containingDataTile == null) {
+                containingDataTile = new DataTile(tile);
+                DataTile[] dataTiles = mTiles;
+                DataTile[] newDataTiles = new DataTile[dataTiles.length + 1];
+                System.arraycopy(dataTiles, 0, newDataTiles, 0,
+                        dataTiles.length);
+                newDataTiles[dataTiles.length] = containingDataTile;
+                TileKeyMap<DataTile> newTileMap = new TileKeyMap<DataTile>(
+                        mTileMap);
+                newTileMap.put(tile.getKey(), containingDataTile);
+                mTiles = newDataTiles;
+                mTileMap = newTileMap;
+                synchronized (mLruLock) {
+                    mLruOrder.link(containingDataTile.lruNode);
+                }
+            }
+        }
+
+        removeUnusedTiles();
+        return containingDataTile;
+    }
+
+    /**
+     * Looks up the specified tile or, as cached tiles form a pyramid, the
+     * nearest cached tile of a lower zoom level containing it
+     */
+    private static DataTile findContainingTile(TileKeyMap<DataTile> tileMap,
+            Tile tile) {
+        for (int zoom = tile.zoom, shift = 0; zoom >= 0; zoom--, shift++) {
+            DataTile dataTile = tileMap.get(Tile.getKey(tile.x >> shift,
+                    tile.y >> shift, (byte) zoom));
+            if (dataTile != null) {
+                return dataTile;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Queries the cached entities which intersect the specified envelope and
+     * match the current filter. Returns each entity only once, even if it is
+     * indexed for several tiles.
+     */
+    private List<SpatialEntity2<? extends Geometry>> queryEntities(
+            final Envelope envelope) {
+        final List<SpatialEntity2<? extends Geometry>> resultList = new ArrayList<SpatialEntity2<? extends Geometry>>();
+        final EntitySet resultSet = new EntitySet();
+        final EntityPredicate predicate = filterState.predicate;
+        mEntityIndex.getSnapshot().query(envelope, new ItemVisitor() {
+            @Override
+            public void visitItem(Object item) {
+                @SuppressWarnings("unchecked")
+                SpatialEntity2<? extends Geometry> entity = (SpatialEntity2<? extends Geometry>) item;
+                if (envelope.intersects(entity.getEnvelope())
+                        && (predicate == null || predicate.accept(entity))
+                        && resultSet.add(entity)) {
+                    resultList.add(entity);
+                }
+            }
+        });
+        return resultList;
+    }
+
+    /**
+     * Searches the cached entities nearest to the specified location which
+     * match the current filter. Entities get found lazily in ascending
+     * distance, so taking the nearest few does not require to sort all
+     * entities of an area. Does not request any data.
+     * 
+     * @param location
+     * @param maxDistance
+     *            Maximum distance in meters
+     * @param predicate
+     *            Additional condition for the entities, or null
+     * @return Iterator over the entities in ascending distance
+     */
+    public NearestEntityIterator queryNearest(GeoLocation location,
+            double maxDistance, EntityPredicate predicate) {
+        return new NearestEntityIterator(mEntityIndex.getSnapshot(),
+                location.getLatitudeE6() / 1E6,
+                location.getLongitudeE6() / 1E6, maxDistance,
+                filterState.predicate, predicate);
+    }
+
+    /**
+     * Estimates the density of entities around a location from the cached
+     * tiles intersecting the specified radius, regardless of their age.
+     * 
+     * @param location
+     * @param radius
+     *            Radius in meters to consider tiles within
+     * @return Entities per square meter, or {@link Double#NaN} if no data
+     *         around the location is cached
+     */
+    public double getEntityDensity(GeoLocation location, double radius) {
+        double latitude = location.getLatitudeE6() / 1E6;
+        double longitude = location.getLongitudeE6() / 1E6;
+        double metersPerDegreeLon = METERS_PER_DEGREE
+                * Math.cos(Math.toRadians(latitude));
+        Envelope area = new Envelope(longitude - radius / metersPerDegreeLon,
+                longitude + radius / metersPerDegreeLon, latitude - radius
+                        / METERS_PER_DEGREE, latitude + radius
+                        / METERS_PER_DEGREE);
+
+        long entityCount = 0;
+        double tileArea = 0;
+        for (DataTile dataTile : mTiles) {
+            Envelope tileEnvelope = dataTile.tileEnvelope;
+            if (dataTile.dataGeneration < 0
+                    || !tileEnvelope.intersects(area)) {
+                continue;
+            }
+            entityCount += dataTile.entry.getEntityCount();
+            tileArea += tileEnvelope.getWidth()
+                    * metersPerDegreeLon
+                    * tileEnvelope.getHeight() * METERS_PER_DEGREE;
+        }
+        return tileArea > 0 ? entityCount / tileArea : Double.NaN;
+    }
+
+    /**
+     * @param filter
+     * @param envelope
+     * @param streamTiles
+     *            Tiles to store the entities of a data source cursor into
+     *            while reading it, or null to return them
+     * @return The entities, or null if they got streamed into the tiles
+     */
+    private List<? extends SpatialEntity2<? extends Geometry>> requestData(
+            Filter filter, Envelope envelope, DataTile[] streamTiles)
+            throws Exception {
+        Filter requestFilter = filter.clone().setBoundingBox(
+                new GeoLocationRect((float) envelope.getMinX(),
+                        (float) envelope.getMaxY(), (float) envelope.getMaxX(),
+                        (float) envelope.getMinY()));
+        // Actual access to DataSource interface
+        Iterator<?> cursor = EntityCursor.open(
+                dataSourceInstance.getDataSource(), requestFilter);
+        if (cursor != null) {
+            if (streamTiles != null) {
+                streamCursor(cursor, streamTiles);
+                return null;
+            }
+            return readCursor(cursor);
+        }
+        return dataSourceInstance.getDataSource()
+                .getMeasurements(requestFilter);
+    }
+
+    /**
+     * Reads the entities of a data source cursor in chunks and stores each
+     * chunk in the tiles right away, so that a large response is not held in
+     * memory besides the entity index. The estimated size of each chunk gets
+     * charged to its tiles, so that least recently used tiles make room while
+     * the response is still arriving. Reading stops as soon as the request
+     * gets interrupted. If reading fails, the tiles get their previous data
+     * back.
+     */
+    private void streamCursor(Iterator<?> cursor, DataTile[] tiles)
+            throws Exception {
+        boolean completed = false;
+        try {
+            List<SpatialEntity2<? extends Geometry>> chunk = new ArrayList<SpatialEntity2<? extends Geometry>>(
+                    CURSOR_CHUNK_SIZE);
+            while (readChunk(cursor, chunk)) {
+                for (DataTile tile : tiles) {
+                    appendTileData(tile, tiles.length == 1 ? chunk
+                            : clipToEnvelope(chunk, tile.tileEnvelope));
+                }
+                // The entity index keeps copies of the chunk
+                chunk.clear();
+                trimToBudget();
+            }
+            completed = true;
+        } finally {
+            EntityCursor.close(cursor);
+            if (!completed) {
+                for (DataTile tile : tiles) {
+                    revertTileData(tile);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads all entities of a data source cursor, for requests whose results
+     * are not stored while they arrive. Reading stops as soon as the request
+     * gets interrupted.
+     */
+    private static List<SpatialEntity2<? extends Geometry>> readCursor(
+            Iterator<?> cursor) throws Exception {
+        List<SpatialEntity2<? extends Geometry>> data = new ArrayList<SpatialEntity2<? extends Geometry>>();
+        try {
+            while (readChunk(cursor, data)) {
+                // Reads on
+            }
+        } finally {
+            EntityCursor.close(cursor);
+        }
+        return data;
+    }
+
+    /**
+     * Reads up to {@link #CURSOR_CHUNK_SIZE} entities of a data source cursor
+     * into the specified list
+     * 
+     * @return false if the cursor was exhausted before
+     * @throws InterruptedException
+     *             if the request got interrupted
+     */
+    @SuppressWarnings("unchecked")
+    private static boolean readChunk(Iterator<?> cursor,
+            List<SpatialEntity2<? extends Geometry>> chunk)
+            throws InterruptedException {
+        if (!cursor.hasNext()) {
+            return false;
+        }
+        for (int i = 0; i < CURSOR_CHUNK_SIZE && cursor.hasNext(); i++) {
+            SpatialEntity2<? extends Geometry> entity = (SpatialEntity2<? extends Geometry>) cursor
+                    .next();
+            if (entity != null) {
+                chunk.add(entity);
+            }
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        return true;
+    }
+
+    /**
+     * Checks the rate limit and the circuit breaker of the data source before
+     * requesting data for the specified running tiles. Rate limited tiles get
+     * queued again once the limit allows, tiles rejected by the breaker get
+     * served from their cached data.
+     * 
+     * @return true if the request may be performed. Its outcome has to be
+     *         reported to the circuit breaker.
+     */
+    private boolean permitRequest(List<DataTile> dataTiles) {
+        if (rateLimit != null) {
+            long delay = rateLimit.tryAcquire();
+            if (delay > 0) {
+                LOG.debug(logTag + " Rate limited, retrying in " + delay
+                        + " ms");
+                for (DataTile dataTile : dataTiles) {
+                    dataTile.retryAfter(delay);
+                }
+                return false;
+            }
+        }
+        if (!circuitBreaker.tryAcquire()) {
+            for (DataTile dataTile : dataTiles) {
+                dataTile.serveCached();
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return Delay after which a running request should be duplicated, or
+     *         -1 if it should not
+     */
+    private long getHedgeDelay() {
+        if (!isHedgeAllowed()) {
+            return -1;
+        }
+        return latencyTracker.getPercentile(hedgePercentile);
+    }
+
+    /**
+     * @return true if the share of duplicated requests is within the hedging
+     *         budget of the data source
+     */
+    private boolean isHedgeAllowed() {
+        return statistics.getHedgedFetchCount() * 100 < maxHedgedPercent
+                * statistics.getFetchCount();
+    }
+
+    /**
+     * Requests the data of adjacent tiles by a single request and splits the
+     * results into the tiles
+     * 
+     * @param batchTiles
+     */
+    private void fetchBatch(List<DataTile> batchTiles) {
+        FilterState state = filterState;
+        List<DataTile> requestTiles = new ArrayList<DataTile>(
+                batchTiles.size());
+        List<SingleFlight.Flight> flights = new ArrayList<SingleFlight.Flight>(
+                batchTiles.size());
+        Envelope requestEnvelope = new Envelope();
+        List<DataTile> fetchTiles = new ArrayList<DataTile>(batchTiles.size());
+        for (DataTile dataTile : batchTiles) {
+            if (!dataTile.fetchState.beginFetch()
+                    || dataTile.loadFromDisk(state)) {
+                // Canceled or persisted
+                continue;
+            }
+            fetchTiles.add(dataTile);
+        }
+        if (fetchTiles.isEmpty() || !permitRequest(fetchTiles)) {
+            return;
+        }
+        for (DataTile dataTile : fetchTiles) {
+            SingleFlight.Flight flight = dataTile.joinFlight(state);
+            if (flight != null) {
+                requestTiles.add(dataTile);
+                flights.add(flight);
+                requestEnvelope.expandToInclude(dataTile.tileEnvelope);
+            }
+        }
+        if (requestTiles.isEmpty()) {
+            // Permitted request not needed anymore
+            circuitBreaker.onCanceled();
+            return;
+        }
+
+        LOG.debug("Requesting data of " + requestTiles.size()
+                + " tiles from data source");
+        statistics.recordFetch();
+        for (int i = 1; i < requestTiles.size(); i++) {
+            statistics.recordSavedFetch();
+        }
+        RunningFetch fetch = new RunningFetch(
+                requestTiles.toArray(new DataTile[requestTiles.size()]));
+        try {
+            List<? extends SpatialEntity2<? extends Geometry>> data;
+            try {
+                data = fetch.requestData(state.filter, requestEnvelope, true);
+            } catch (Exception e) {
+                Exception flightError = e;
+                if (fetch.isCanceled()) {
+                    flightError = new CancellationException();
+                }
+                for (int i = 0; i < requestTiles.size(); i++) {
+                    flights.get(i).fail(flightError);
+                    requestTiles.get(i).onFetchError(e);
+                }
+                return;
+            }
+
+            for (int i = 0; i < requestTiles.size(); i++) {
+                DataTile dataTile = requestTiles.get(i);
+                SingleFlight.Flight flight = flights.get(i);
+                // Failing to store the data of a tile only affects this tile
+                Exception flightError = new CancellationException();
+                boolean stored = false;
+                try {
+                    if (data == null) {
+                        dataTile.onDataStreamed(state, flight);
+                    } else {
+                        dataTile.onDataFetched(state, flight,
+                                clipToEnvelope(data, dataTile.tileEnvelope));
+                    }
+                    stored = true;
+                } catch (RuntimeException e) {
+                    flightError = e;
+                    dataTile.onFetchError(e);
+                } finally {
+                    if (!stored) {
+                        // Joined tiles must not wait for the flight, which
+                        // has no effect if it landed already
+                        flight.fail(flightError);
+                    }
+                }
+            }
+            if (data != null) {
+                data.clear();
+            }
+        } finally {
+            fetch.finish();
+        }
+    }
+
+    /**
+     * A fetch running for one or several tiles on the current thread, which
+     * gets canceled once none of them is requested anymore, see
+     * {@link FetchState.Running}. Data source requests are the interruptible
+     * requests of the fetch.
+     * 
+     * Data source requests taking longer than the configured latency
+     * percentile get duplicated by a {@link Hedge}, if the hedging budget of
+     * the data source allows. The first response gets used, the other request
+     * gets canceled.
+     */
+    private class RunningFetch extends FetchState.Running {
+        private final DataTile[] tiles;
+        // Guarded by this
+        private Hedge hedge;
+
+        /**
+         * Duplicate of the running data source request, performed by the
+         * hedging pool
+         */
+        private class Hedge implements Runnable {
+            private final Filter filter;
+            private final Envelope envelope;
+            private final long delay;
+            // Guarded by RunningFetch.this
+            private boolean abandoned;
+            private Thread hedgeThread;
+            private HttpRequestTracker.Tracking hedgeTracking;
+            private List<? extends SpatialEntity2<? extends Geometry>> result;
+
+            /**
+             * Issues this hedge once the primary request exceeded the delay
+             */
+            private final Runnable starter = new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (RunningFetch.this) {
+                        if (abandoned || !isHedgeAllowed()) {
+                            return;
+                        }
+                    }
+                    try {
+                        HEDGE_POOL.execute(Hedge.this);
+                        statistics.recordHedge();
+                    } catch (RejectedExecutionException e) {
+                        LOG.debug(logTag + " No thread left for hedging");
+                    }
+                }
+            };
+
+            private Hedge(Filter filter, Envelope envelope, long delay) {
+                this.filter = filter;
+                this.envelope = envelope;
+                this.delay = delay;
+            }
+
+            @Override
+            public void run() {
+                synchronized (RunningFetch.this) {
+                    if (abandoned) {
+                        return;
+                    }
+                    hedgeThread = Thread.currentThread();
+                    hedgeTracking = HttpRequestTracker.begin();
+                }
+                LOG.debug(logTag + " Hedging request after " + delay + " ms");
+                List<? extends SpatialEntity2<? extends Geometry>> data = null;
+                try {
+                    // Only the primary request streams into the tiles
+                    data = DataCache.this.requestData(filter, envelope, null);
+                } catch (Exception e) {
+                    LOG.debug(logTag + " Hedged request failed", e);
+                } finally {
+                    synchronized (RunningFetch.this) {
+                        hedgeTracking.end();
+                        hedgeTracking = null;
+                        hedgeThread = null;
+                        // Clears a possible interrupt of abandon()
+                        Thread.interrupted();
+                        if (data != null && !abandoned) {
+                            // Hedge won, the primary request gets aborted
+                            result = data;
+                            abandoned = true;
+                            abortRequest();
+                        }
+                    }
+                }
+            }
+
+            /**
+             * Cancels this hedge, unless it already won. Requires the lock of
+             * the running fetch.
+             */
+            private void abandon() {
+                if (abandoned) {
+                    return;
+                }
+                abandoned = true;
+                if (hedgeTracking != null) {
+                    hedgeTracking.abort();
+                    hedgeThread.interrupt();
+                }
+            }
+        }
+
+        private RunningFetch(DataTile... tiles) {
+            super(getFetchStates(tiles));
+            this.tiles = tiles;
+        }
+
+        @Override
+        void onCanceled() {
+            if (hedge != null) {
+                hedge.abandon();
+            }
+        }
+
+        /**
+         * Requests data from the data source, interruptible by canceling.
+         * Reports the outcome to the circuit breaker.
+         * 
+         * @param filter
+         * @param envelope
+         * @param stream
+         *            Whether the entities of a data source cursor may get
+         *            stored into the tiles of this fetch while being read
+         * @return The entities, or null if they got streamed into the tiles
+         */
+        private List<? extends SpatialEntity2<? extends Geometry>> requestData(
+                Filter filter, Envelope envelope, boolean stream)
+                throws Exception {
+            Hedge requestHedge = null;
+            synchronized (this) {
+                if (!beginRequest()) {
+                    circuitBreaker.onCanceled();
+                    throw new CancellationException();
+                }
+                long hedgeDelay = getHedgeDelay();
+                if (hedgeDelay >= 0) {
+                    requestHedge = new Hedge(filter, envelope, hedgeDelay);
+                    hedge = requestHedge;
+                }
+            }
+            if (requestHedge != null) {
+                TIMER_HANDLER.postDelayed(requestHedge.starter,
+                        requestHedge.delay);
+            }
+            long startTime = SystemClock.uptimeMillis();
+            try {
+                List<? extends SpatialEntity2<? extends Geometry>> data = DataCache.this
+                        .requestData(filter, envelope, stream ? tiles : null);
+                latencyTracker.record(SystemClock.uptimeMillis() - startTime);
+                circuitBreaker.onSuccess();
+                return data;
+            } catch (Exception e) {
+                List<? extends SpatialEntity2<? extends Geometry>> hedgeData = null;
+                if (requestHedge != null) {
+                    synchronized (this) {
+                        hedgeData = requestHedge.result;
+                    }
+                }
+                if (hedgeData != null) {
+                    long latency = SystemClock.uptimeMillis() - startTime;
+                    // The aborted request would have taken at least as long
+                    latencyTracker.record(latency);
+                    statistics.recordHedgeWon(Math.max(0,
+                            latencyTracker.getTailMean(requestHedge.delay)
+                                    - latency));
+                    circuitBreaker.onSuccess();
+                    return hedgeData;
+                }
+                if (isCanceled() || e instanceof CancellationException) {
+                    circuitBreaker.onCanceled();
+                } else {
+                    circuitBreaker.onFailure();
+                }
+                throw e;
+            } finally {
+                synchronized (this) {
+                    endRequest();
+                    hedge = null;
+                    if (requestHedge != null) {
+                        requestHedge.abandon();
+                        if (requestHedge.result != null) {
+                            // Clears a possible interrupt of the hedge
+                            Thread.interrupted();
+                        }
+                    }
+                }
+                if (requestHedge != null) {
+                    TIMER_HANDLER.removeCallbacks(requestHedge.starter);
+                }
+            }
+        }
+
+    }
+
+    private static FetchState<?>[] getFetchStates(DataTile[] tiles) {
+        FetchState<?>[] fetchStates = new FetchState<?>[tiles.length];
+        for (int i = 0; i < tiles.length; i++) {
+            fetchStates[i] = tiles[i].fetchState;
+        }
+        return fetchStates;
+    }
+
+    /**
+     * @return The entities of the specified data intersecting the envelope
+     */
+    private static List<SpatialEntity2<? extends Geometry>> clipToEnvelope(
+            List<? extends SpatialEntity2<? extends Geometry>> data,
+            Envelope envelope) {
+        List<SpatialEntity2<? extends Geometry>> clippedData = new ArrayList<SpatialEntity2<? extends Geometry>>();
+        for (SpatialEntity2<? extends Geometry> entity : data) {
+            if (envelope.intersects(entity.getEnvelope())) {
+                clippedData.add(entity);
+            }
+        }
+        return clippedData;
+    }
+
+    /**
+     * Stores the data of a tile in the entity index and charges its estimated
+     * size to the memory statistics. Replaces the data of the tile and of all
+     * idle tiles covered by it. Refreshing data of the same generation gets
+     * reported to the delta listeners, keeping the instances of unchanged
+     * entities the listeners already hold.
+     * 
+     * @param tile
+     * @param data
+     * @param generation
+     *            Filter generation the data got fetched for
+     */
+    private void storeTileData(final DataTile tile,
+            final List<? extends SpatialEntity2<? extends Geometry>> data,
+            int generation) {
+        final long size = EntitySizeEstimator.TILE_OVERHEAD
+                + EntitySizeEstimator.estimateSize(data);
+        final List<EntityDelta> delta = new ArrayList<EntityDelta>(1);
+        mEntityIndex.apply(new EntityIndex.Update() {
+            @Override
+            void apply(EntityIndex.Editor editor) {
+                if (tile.entry.isRemoved()) {
+                    // Cache got cleared while fetching
+                    return;
+                }
+                EntityDelta tileDelta = computeDataDelta(tile,
+                        editor.getEntities(tile), data, generation);
+                if (tileDelta != null) {
+                    delta.add(tileDelta);
+                    tile.entry.put(editor, tileDelta.getData(), size);
+                } else {
+                    tile.entry.put(editor, data, size);
+                }
+            }
+        });
+        onTileDataReplaced(tile, delta.isEmpty() ? null : delta.get(0));
+    }
+
+    /**
+     * Reports the delta of replaced data of a tile to the delta listeners and
+     * removes the idle tiles covered by the tile
+     * 
+     * @param tile
+     * @param delta
+     *            Delta of the data, or null if it does not get reported
+     */
+    private void onTileDataReplaced(DataTile tile, EntityDelta delta) {
+        notifyDataDelta(tile, delta);
+
+        // Smaller tiles of other zoom levels would only hold duplicates now
+        for (DataTile dataTile : mTiles) {
+            if (dataTile != tile && !dataTile.isFetching()
+                    && tile.tileEnvelope.contains(dataTile.tileEnvelope)) {
+                removeTile(dataTile);
+            }
+        }
+    }
+
+    /**
+     * Stores a chunk of data streamed into a tile by a data source cursor and
+     * charges its estimated size to the tile. The first chunk replaces the
+     * data of the tile, which is kept until the response is complete, to
+     * revert a failed request and to report the delta of the refreshed data.
+     * Readers of the cache see the data of a streaming tile growing.
+     * 
+     * @param tile
+     * @param chunk
+     */
+    private void appendTileData(final DataTile tile,
+            final List<? extends SpatialEntity2<? extends Geometry>> chunk) {
+        final long size = EntitySizeEstimator.estimateSize(chunk);
+        mEntityIndex.apply(new EntityIndex.Update() {
+            @Override
+            void apply(EntityIndex.Editor editor) {
+                tile.entry.append(editor, chunk, size);
+            }
+        });
     }
 
     /**
-     * Sets a new {@link Filter} to use for requesting data. As the cached data
-     * might not match this filter, the cache will be cleared.
+     * Completes the data streamed into a tile. Releases the replaced data and
+     * reports the change like {@link #storeTileData(DataTile, List, int)}.
      * 
-     * @param filter
+     * @param tile
+     * @param generation
+     *            Filter generation the data got fetched for
+     * @return The data of the tile, or null if the tile got removed
      */
-    public void setFilter(Filter filter) {
-        // Perhaps use a re-requesting mechanism as used in NoiseDroid, i.e.
-        // find a trade off between clearing the whole cache and
-        // requesting/removing missing/extra data.
-        clearCache();
-        this.dataFilter = filter;
+    private List<SpatialEntity2<? extends Geometry>> commitTileData(
+            final DataTile tile, int generation) {
+        final List<List<SpatialEntity2<? extends Geometry>>> tileData = new ArrayList<List<SpatialEntity2<? extends Geometry>>>(
+                1);
+        final List<EntityDelta> delta = new ArrayList<EntityDelta>(1);
+        mEntityIndex.apply(new EntityIndex.Update() {
+            @Override
+            void apply(EntityIndex.Editor editor) {
+                List<SpatialEntity2<? extends Geometry>> previousData = tile.entry
+                        .commit(editor);
+                if (previousData == null) {
+                    // Cache got cleared while fetching
+                    return;
+                }
+                EntityDelta tileDelta = computeDataDelta(tile, previousData,
+                        editor.getEntities(tile), generation);
+                if (tileDelta != null) {
+                    delta.add(tileDelta);
+                    editor.put(tile, tileDelta.getData());
+                }
+                tileData.add(editor.getEntities(tile));
+            }
+        });
+        if (tileData.isEmpty()) {
+            return null;
+        }
+        onTileDataReplaced(tile, delta.isEmpty() ? null : delta.get(0));
+        return tileData.get(0);
     }
 
-    public Filter getFilter() {
-        return dataFilter;
+    /**
+     * Restores the data of a tile replaced by a data source cursor which
+     * failed or got canceled, and releases the data streamed so far
+     * 
+     * @param tile
+     */
+    private void revertTileData(final DataTile tile) {
+        mEntityIndex.apply(new EntityIndex.Update() {
+            @Override
+            void apply(EntityIndex.Editor editor) {
+                tile.entry.revert(editor);
+            }
+        });
     }
 
     /**
-     * Cancels all fetching operations and clears the cache
+     * Adds data to a tile without replacing its existing entities. Skips
+     * entities which are already cached for this tile, compared by their
+     * {@link EntityIdentity} key, as refetched entities are new instances.
+     * 
+     * @param tile
+     * @param data
      */
-    public void clearCache() {
-        synchronized (mEntityIndex) {
-            synchronized (mQueryIndex) {
-                @SuppressWarnings("unchecked")
-                List<DataTile> dataTiles = mQueryIndex.queryAll();
-                for (DataTile dataTile : dataTiles) {
-                    dataTile.abort(DataSourceErrorType.CANCELED);
+    private void mergeTileData(final DataTile tile,
+            final List<? extends SpatialEntity2<? extends Geometry>> data) {
+        mEntityIndex.apply(new EntityIndex.Update() {
+            @Override
+            void apply(EntityIndex.Editor editor) {
+                if (tile.entry.isRemoved()) {
+                    return;
+                }
+                List<SpatialEntity2<? extends Geometry>> entities = editor
+                        .getEntities(tile);
+                Set<Object> entityKeys = new HashSet<Object>(
+                        (entities.size() + data.size()) * 2);
+                for (SpatialEntity2<? extends Geometry> entity : entities) {
+                    entityKeys.add(EntityIdentity.getKey(entity));
+                }
+                List<SpatialEntity2<? extends Geometry>> mergedEntities = new ArrayList<SpatialEntity2<? extends Geometry>>(
+                        entities);
+                long addedSize = 0;
+                for (SpatialEntity2<? extends Geometry> entity : data) {
+                    if (entityKeys.add(EntityIdentity.getKey(entity))) {
+                        mergedEntities.add(entity);
+                        addedSize += EntitySizeEstimator.estimateSize(entity);
+                    }
                 }
-                mQueryIndex = new Quadtree();
+                tile.entry.update(editor, mergedEntities, addedSize);
             }
+        });
+    }
 
-            mEntityIndex = new Quadtree();
-        }
+    /**
+     * Returns all cached entities of the specified tile
+     */
+    private List<SpatialEntity2<? extends Geometry>> getTileEntities(
+            DataTile tile) {
+        return mEntityIndex.getSnapshot().getEntities(tile);
     }
 
-    private Cancelable getDataByEnvelope(Envelope envelope,
-            GetDataCallback callback, boolean forceUpdate) {
-        DataTile containingDataTile = null;
-        synchronized (mQueryIndex) {
-            @SuppressWarnings("unchecked")
-            List<DataTile> queryResult = mQueryIndex.query(envelope);
+    /**
+     * Marks a tile as most recently used
+     */
+    private void touchTile(DataTile tile) {
+        synchronized (mLruLock) {
+            tile.lastUsage = SystemClock.uptimeMillis();
+            mLruOrder.touch(tile.lruNode);
+        }
+    }
 
-            for (DataTile dataTile : queryResult) {
-                if (dataTile.tileEnvelope.contains(envelope)) {
-                    containingDataTile = dataTile;
-                    break;
+    /**
+     * Returns the least recently used tile which is currently not fetching
+     * data, or null if there is none
+     */
+    private DataTile getEvictableTile() {
+        synchronized (mLruLock) {
+            AccessOrder.Node<DataTile> node = mLruOrder.getHead();
+            while (node != null) {
+                if (!node.getElement().isFetching()) {
+                    return node.getElement();
                 }
+                node = node.getNext();
             }
+        }
+        return null;
+    }
 
-            if (containingDataTile == null) {
-                containingDataTile = new DataTile(envelope);
-                mQueryIndex.insert(envelope, containingDataTile);
+    /**
+     * Evicts least recently used tiles down to the low water mark once the
+     * number of tiles exceeds the high water mark
+     */
+    private void removeUnusedTiles() {
+        if (mTiles.length <= TILES_HIGH_WATER_MARK
+                || !mRemovingUnusedTiles.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            LOG.debug("Removing unused Tiles");
+            while (mTiles.length > TILES_LOW_WATER_MARK) {
+                DataTile dataTile = getEvictableTile();
+                if (dataTile == null) {
+                    break;
+                }
+                evictTile(dataTile);
             }
+        } finally {
+            mRemovingUnusedTiles.set(false);
         }
+    }
 
-        return containingDataTile.getData(envelope, callback, forceUpdate);
+    private void evictTile(DataTile tile) {
+        int numEntities = tile.entry.getEntityCount();
+        long releasedBytes = removeTile(tile);
+        if (releasedBytes >= 0) {
+            statistics.recordEviction(numEntities, releasedBytes);
+        }
     }
 
-    private void addData(final Envelope envelope,
-            List<? extends SpatialEntity2<? extends Geometry>> data) {
-        synchronized (mEntityIndex) {
-            final List<SpatialEntity2<? extends Geometry>> entitiesToReplace = new ArrayList<SpatialEntity2<? extends Geometry>>();
-            mEntityIndex.query(envelope, new ItemVisitor() {
-                @Override
-                public void visitItem(Object item) {
-                    SpatialEntity2<? extends Geometry> entity = (SpatialEntity2<? extends Geometry>) item;
-                    if (envelope.contains(entity.getLongitude(),
-                            entity.getLatitude())) {
-                        // if
-                        // (envelope.intersects(entity.getGeometry().getEnvelopeInternal()))
-                        // {
-                        entitiesToReplace.add(entity);
-                    }
+    /**
+     * Removes least recently used tiles until this cache and all caches
+     * together meet their memory budgets again
+     */
+    private void trimToBudget() {
+        if (statistics.isBudgetExceeded()) {
+            LOG.debug(logTag + " Memory budget exceeded, " + statistics);
+            while (statistics.isBudgetExceeded()) {
+                DataTile dataTile = getEvictableTile();
+                if (dataTile == null) {
+                    break;
                 }
-            });
-
-            for (SpatialEntity2<? extends Geometry> entity : entitiesToReplace) {
-                // Simply remove features of overlapping regions
-                mEntityIndex.remove(envelope, entity);
-            }
-
-            for (SpatialEntity2<? extends Geometry> entity : data) {
-                mEntityIndex.insert(entity.getGeometry().getEnvelopeInternal(),
-                        entity);
-                // mEntityIndex.insert(
-                // new Envelope(new Coordinate(entity.getLongitude(),
-                // entity.getLatitude())), entity);
+                evictTile(dataTile);
             }
         }
 
+        trimGlobalBudget();
     }
 
-    private void removeUnusedTiles() {
-        // TODO
-        synchronized (mQueryIndex) {
-            LOG.debug("Removing unused Tiles");
-            if (mQueryIndex.size() <= MAX_TILES_TO_REMOVE * 2) {
-                return;
-            }
+    private static void trimGlobalBudget() {
+        if (!GLOBAL_STATISTICS.isBudgetExceeded()) {
+            return;
+        }
+        LOG.debug("Global memory budget exceeded, " + GLOBAL_STATISTICS);
 
-            @SuppressWarnings("unchecked")
-            List<DataTile> dataTiles = mQueryIndex.queryAll();
-            Collections.sort(dataTiles, new Comparator<DataTile>() {
-                @Override
-                public int compare(DataTile lhs, DataTile rhs) {
-                    if (lhs.lastUsage == rhs.lastUsage) {
-                        return 0;
-                    } else {
-                        return lhs.lastUsage < rhs.lastUsage ? -1 : 1;
-                    }
+        List<DataCache> caches;
+        synchronized (CACHES) {
+            caches = new ArrayList<DataCache>(CACHES);
+        }
+        while (GLOBAL_STATISTICS.isBudgetExceeded()) {
+            // Merges the access orders of all caches
+            DataTile leastRecentlyUsed = null;
+            for (DataCache cache : caches) {
+                DataTile dataTile = cache.getEvictableTile();
+                if (dataTile != null
+                        && (leastRecentlyUsed == null
+                                || dataTile.lastUsage < leastRecentlyUsed.lastUsage)) {
+                    leastRecentlyUsed = dataTile;
                 }
-            });
-
-            for (int i = 0, len = Math.min(dataTiles.size(),
-                    MAX_TILES_TO_REMOVE); i < len; i++) {
-                removeTile(dataTiles.get(i));
             }
+            if (leastRecentlyUsed == null) {
+                break;
+            }
+            leastRecentlyUsed.getCache().evictTile(leastRecentlyUsed);
         }
-
     }
 
     /**
-     * Removes all cached data for the {@link Envelope} of the specified
-     * {@link DataTile}. Also updates the query index.
+     * Removes the specified {@link DataTile} and its cached data
      * 
      * @param tile
+     * @return Estimated bytes released by removing the tile, or -1 if it was
+     *         already removed
      */
-    private void removeTile(final DataTile tile) {
-        synchronized (mQueryIndex) {
-            final List<DataTile> dataTilesToReload = new ArrayList<DataTile>();
-            mQueryIndex.query(tile.tileEnvelope, new ItemVisitor() {
-                @Override
-                public void visitItem(Object item) {
-                    DataTile visitedTile = (DataTile) item;
-                    if (tile.tileEnvelope.intersects(visitedTile.tileEnvelope)) {
-                        dataTilesToReload.add(visitedTile);
-                    }
+    private long removeTile(final DataTile tile) {
+        synchronized (mTilesLock) {
+            DataTile[] dataTiles = mTiles;
+            int index = -1;
+            for (int i = 0; i < dataTiles.length; i++) {
+                if (dataTiles[i] == tile) {
+                    index = i;
+                    break;
                 }
-            });
-
-            for (DataTile tileToReload : dataTilesToReload) {
-                mQueryIndex.remove(tileToReload.tileEnvelope, tileToReload);
             }
-        }
-        synchronized (mEntityIndex) {
-            final List<SpatialEntity2<? extends Geometry>> resultList = new ArrayList<SpatialEntity2<? extends Geometry>>();
-            mEntityIndex.query(tile.tileEnvelope, new ItemVisitor() {
-                @Override
-                public void visitItem(Object item) {
-                    SpatialEntity2<? extends Geometry> entity = (SpatialEntity2<? extends Geometry>) item;
-                    if (tile.tileEnvelope.contains(entity.getLongitude(),
-                            entity.getLatitude())) {
-                        resultList.add(entity);
-                    }
-                }
-            });
-
-            for (SpatialEntity2<? extends Geometry> entity : resultList) {
-                mEntityIndex.remove(tile.tileEnvelope, entity);
+            if (index < 0) {
+                // Already removed
+                return -1;
+            }
+            DataTile[] newDataTiles = new DataTile[dataTiles.length - 1];
+            System.arraycopy(dataTiles, 0, newDataTiles, 0, index);
+            System.arraycopy(dataTiles, index + 1, newDataTiles, index,
+                    newDataTiles.length - index);
+            TileKeyMap<DataTile> newTileMap = new TileKeyMap<DataTile>(
+                    mTileMap);
+            newTileMap.remove(tile.tile.getKey());
+            mTiles = newDataTiles;
+            mTileMap = newTileMap;
+            synchronized (mLruLock) {
+                mLruOrder.unlink(tile.lruNode);
             }
         }
+        EXPIRY_WHEEL.cancel(tile.expiryTimeout);
 
+        final long[] releasedBytes = new long[1];
+        mEntityIndex.apply(new EntityIndex.Update() {
+            @Override
+            void apply(EntityIndex.Editor editor) {
+                releasedBytes[0] = tile.entry.remove(editor);
+            }
+        });
+        return releasedBytes[0];
     }
 
     /**
@@ -485,7 +2895,117 @@ public class DataCache {
      */
     public Cancelable getDataByTile(Tile tile, GetDataCallback callback,
             boolean forceUpdate) {
-        return getDataByEnvelope(tile.getEnvelope(), callback, forceUpdate);
+        return getDataTile(toCacheTile(tile)).getData(tile.getEnvelope(),
+                callback, forceUpdate);
+    }
+
+    /**
+     * Loads the data of the specified {@link Tile} into the cache at low
+     * priority, i.e. after all tiles actually requested. Does nothing if the
+     * tile is already cached or being fetched.
+     * 
+     * @param tile
+     * @return true if a fetch of the tile got queued
+     */
+    public boolean prefetchTile(Tile tile) {
+        return getDataTile(toCacheTile(tile)).prefetch();
+    }
+
+    /**
+     * Maps tiles of higher zoom levels than the one of this cache onto the
+     * containing tile of this cache
+     */
+    private Tile toCacheTile(Tile tile) {
+        if (tileZoom == 0 || tile.zoom <= tileZoom) {
+            return tile;
+        }
+        int shift = tile.zoom - tileZoom;
+        return new Tile(tile.x >> shift, tile.y >> shift, tileZoom);
+    }
+
+    /**
+     * @return Zoom level of the tiles cached for the specified bounds
+     */
+    private byte getCacheZoom(MercatorRect bounds) {
+        return tileZoom != 0 ? tileZoom : (byte) Math.max(0, bounds.zoom);
+    }
+
+    /**
+     * @return Zoom level of the tiles to request for the specified bounds,
+     *         lower than the one of the cached tiles for large bounds
+     */
+    private byte getRequestZoom(MercatorRect bounds) {
+        byte requestZoom = getCacheZoom(bounds);
+        Rect tileRange = getTileRange(bounds, requestZoom);
+        while (requestZoom > 0
+                && (tileRange.width() + 1) * (tileRange.height() + 1)
+                > MAX_TILES_PER_REQUEST) {
+            // Large area, use coarser tiles
+            requestZoom--;
+            tileRange = getTileRange(bounds, requestZoom);
+        }
+        return requestZoom;
+    }
+
+    /**
+     * Determines the range of tiles of the specified zoom level covering the
+     * specified bounds
+     * 
+     * @return Tile coordinates, right and bottom inclusive
+     */
+    private static Rect getTileRange(MercatorRect bounds, byte zoom) {
+        return new Rect((int) MercatorProj.transformPixelXToTileX(
+                MercatorProj.transformPixel(bounds.left, bounds.zoom, zoom),
+                zoom), (int) MercatorProj.transformPixelYToTileY(
+                MercatorProj.transformPixel(bounds.top, bounds.zoom, zoom),
+                zoom), (int) MercatorProj.transformPixelXToTileX(
+                MercatorProj.transformPixel(bounds.right, bounds.zoom, zoom),
+                zoom), (int) MercatorProj.transformPixelYToTileY(
+                MercatorProj.transformPixel(bounds.bottom, bounds.zoom, zoom),
+                zoom));
+    }
+
+    /**
+     * Checks whether the data of a tile can be assembled from current cached
+     * tiles of the specified higher zoom level. Marks these tiles as used if
+     * so.
+     */
+    private boolean isCoveredByCachedTiles(Tile tile, byte zoom) {
+        int depth = zoom - tile.zoom;
+        if (depth <= 0 || depth > MAX_ASSEMBLY_DEPTH) {
+            return false;
+        }
+        TileKeyMap<DataTile> tileMap = mTileMap;
+        int size = 1 << depth;
+        DataTile[] coveringTiles = new DataTile[size * size];
+        for (int i = 0; i < coveringTiles.length; i++) {
+            DataTile dataTile = tileMap.get(Tile.getKey((tile.x << depth)
+                    + i % size, (tile.y << depth) + i / size, zoom));
+            if (dataTile == null || !dataTile.isCurrent()) {
+                return false;
+            }
+            coveringTiles[i] = dataTile;
+        }
+        for (DataTile dataTile : coveringTiles) {
+            touchTile(dataTile);
+        }
+        return true;
+    }
+
+    /**
+     * Creates a viewport over the data of this cache which reports the
+     * entities entering and leaving it, as an alternative to requesting the
+     * whole data of each new bounding box. The viewport stays empty until it
+     * gets set. Has to be canceled once it is not needed anymore.
+     * 
+     * @param callback
+     *            Receives the changes of the viewport on the main thread
+     * @return The subscription to move the viewport with
+     */
+    public ViewportSubscription subscribeViewport(ViewportCallback callback) {
+        ViewportSubscription subscription = new ViewportSubscription(callback);
+        addOnDataDeltaListener(subscription);
+        return subscription;
     }
 
     /**
@@ -506,28 +3026,85 @@ public class DataCache {
      * @return Holder to cancel this request
      */
     // TODO ByGeoLocationRect
-    // TODO reuse of result arrays, less allocations
     public Cancelable getDataByBBox(final MercatorRect bounds,
             final GetDataBoundsCallback callback, final boolean forceUpdate) {
+        // Deliveries of the stream callback are serialized. All data arrives
+        // at once, assembled by a single query after all tiles are loaded.
+        final List<SpatialEntity2<? extends Geometry>> measurementsList = new ArrayList<SpatialEntity2<? extends Geometry>>();
+        return getDataByBBox(bounds, new GetDataBoundsStreamCallback() {
+
+            @Override
+            public void onProgressUpdate(int progress, int size) {
+                callback.onProgressUpdate(progress, size);
+            }
+
+            @Override
+            public void onReceiveTileData(MercatorRect bbox,
+                    List<? extends SpatialEntity2<? extends Geometry>> data) {
+                measurementsList.addAll(data);
+            }
+
+            @Override
+            public void onDataComplete(MercatorRect bbox) {
+                callback.onReceiveDataUpdate(bbox, measurementsList);
+            }
+
+            @Override
+            public void onAbort(MercatorRect bbox, DataSourceErrorType reason) {
+                callback.onAbort(bbox, reason);
+            }
+        }, forceUpdate, true);
+    }
+
+    /**
+     * Requests data for a specific spatial bounding box like
+     * {@link #getDataByBBox(MercatorRect, GetDataBoundsCallback, boolean)},
+     * but passes the data of each tile to the callback as soon as it is
+     * available instead of waiting for the slowest tile.
+     * 
+     * @param bounds
+     *            The minimum bounding box to request data for
+     * @param callback
+     *            The callback will receive the data tile by tile and a final
+     *            completion signal
+     * @param forceUpdate
+     *            Forces to update the cache instead of returned cached data
+     * @return Holder to cancel this request
+     */
+    public Cancelable getDataByBBox(final MercatorRect bounds,
+            final GetDataBoundsStreamCallback callback,
+            final boolean forceUpdate) {
+        return getDataByBBox(bounds, callback, forceUpdate, false);
+    }
+
+    /**
+     * @param assembleOnce
+     *            true to deliver the data of all tiles by a single query of
+     *            the entity index after all tiles are loaded, false to query
+     *            and deliver the data of each tile as soon as it is loaded
+     */
+    // TODO reuse of result arrays, less allocations
+    private Cancelable getDataByBBox(final MercatorRect bounds,
+            final GetDataBoundsStreamCallback callback,
+            final boolean forceUpdate, final boolean assembleOnce) {
 
-        byte tileZoom = (byte) Math.max(0, bounds.zoom);
-        // Transform provided bounds into tile bounds using the zoom level of
+        // Requests of all zoom levels share the tiles of the zoom level of
         // this cache
-        final int tileLeftX = (int) MercatorProj
-                .transformPixelXToTileX(MercatorProj.transformPixel(
-                        bounds.left, bounds.zoom, tileZoom), tileZoom);
-        final int tileTopY = (int) MercatorProj.transformPixelYToTileY(
-                MercatorProj.transformPixel(bounds.top, bounds.zoom, tileZoom),
-                tileZoom);
-        final int tileRightX = (int) MercatorProj.transformPixelXToTileX(
-                MercatorProj
-                        .transformPixel(bounds.right, bounds.zoom, tileZoom),
-                tileZoom);
-        final int tileBottomY = (int) MercatorProj.transformPixelYToTileY(
-                MercatorProj.transformPixel(bounds.bottom, bounds.zoom,
-                        tileZoom), tileZoom);
+        byte cacheZoom = getCacheZoom(bounds);
+        byte requestZoom = getRequestZoom(bounds);
+        Rect tileRange = getTileRange(bounds, requestZoom);
+        // Transform provided bounds into tile bounds
+        final int tileLeftX = tileRange.left;
+        final int tileTopY = tileRange.top;
+        final int tileRightX = tileRange.right;
+        final int tileBottomY = tileRange.bottom;
         final int tileGridWidth = tileRightX - tileLeftX + 1;
         final int tileCount = tileGridWidth * (tileBottomY - tileTopY + 1);
+        // Area covered by all tiles
+        final Envelope gridEnvelope = new Envelope(new Tile(tileLeftX,
+                tileTopY, requestZoom).getEnvelope());
+        gridEnvelope.expandToInclude(new Tile(tileRightX, tileBottomY,
+                requestZoom).getEnvelope());
         // Bitset to monitor loading of all data for all required tiles
         final BitSet tileMonitorSet = new BitSet(tileCount);
         tileMonitorSet.set(0, tileCount);
@@ -535,9 +3112,10 @@ public class DataCache {
         // Callback for data of a tile
         final AtomicBoolean active = new AtomicBoolean(true);
         final AtomicInteger progress = new AtomicInteger();
-        final List<SpatialEntity2<? extends Geometry>> measurementsList = new ArrayList<SpatialEntity2<? extends Geometry>>();
+        // Entities delivered so far, guarded by tileMonitorSet
+        final EntitySet deliveredEntities = new EntitySet();
 
-        class IndexedGetDataCallback implements GetDataCallback {
+        class IndexedGetDataCallback implements GetDataCallback, DataCallback {
             private int x, y;
 
             private IndexedGetDataCallback(int x, int y) {
@@ -555,37 +3133,53 @@ public class DataCache {
                 int checkIndex = ((y - tileTopY) * tileGridWidth)
                         + (x - tileLeftX);
 
-                if (tileMonitorSet.get(checkIndex)) {
+                // Serializes deliveries, tiles arrive on several threads
+                synchronized (tileMonitorSet) {
+                    if (!active.get() || !tileMonitorSet.get(checkIndex)) {
+                        return;
+                    }
                     // Still waiting for that tile
                     tileMonitorSet.clear(checkIndex);
                     progress.incrementAndGet();
+                    List<SpatialEntity2<? extends Geometry>> tileData = new ArrayList<SpatialEntity2<? extends Geometry>>();
                     if (data != null) {
                         for (SpatialEntity2<? extends Geometry> entity : data)
-                            if (!measurementsList.contains(entity))
-                                measurementsList.add(entity);
-//                        measurementsList.addAll(data);
+                            if (deliveredEntities.add(entity)) {
+                                tileData.add(entity);
+                            }
                     }
                     callback.onProgressUpdate(progress.get(), tileCount);
+                    if (!tileData.isEmpty()) {
+                        callback.onReceiveTileData(bounds, tileData);
+                    }
                     LOG.debug("Loaded Tile " + x + "," + y);
 
-                }
-                if (tileMonitorSet.isEmpty()) {
-                    // All tiles loaded
-                    LOG.debug("Loaded all Tiles");
-                    // new Thread(new Runnable() {
-                    // public void run() {
-                    if (active.get()) {
-                        callback.onReceiveDataUpdate(bounds, measurementsList);
+                    if (tileMonitorSet.isEmpty()) {
+                        // All tiles loaded
+                        LOG.debug("Loaded all Tiles");
+                        if (assembleOnce) {
+                            List<SpatialEntity2<? extends Geometry>> result = queryEntities(gridEnvelope);
+                            if (!result.isEmpty()) {
+                                callback.onReceiveTileData(bounds, result);
+                            }
+                        }
+                        callback.onDataComplete(bounds);
                     }
-                    // }
-                    // }).run();
                 }
             }
 
+            public void onDataReceived() {
+                // Tile loaded, its data gets assembled later
+                onReceiveMeasurements(null);
+            }
+
             public void onAbort(DataSourceErrorType reason) {
-                callback.onAbort(bounds, reason);
                 if (reason == DataSourceErrorType.CANCELED) {
-                    active.set(false);
+                    // Reported once by the canceled request itself
+                    return;
+                }
+                if (active.get()) {
+                    callback.onAbort(bounds, reason);
                 }
             }
 
@@ -595,24 +3189,338 @@ public class DataCache {
         // Actually request data
 
         LOG.debug("Loading " + tileCount + " Tiles");
+        mVisibleEnvelope = gridEnvelope;
+        // Fetch tiles from the center of the requested area outwards
+        setFocusCenter(gridEnvelope);
+
+        // Tiles to fetch get collected to request adjacent ones at once
+        TileBatch batch = maxBatchTiles > 1 ? new TileBatch(tileLeftX,
+                tileTopY, tileGridWidth, tileBottomY - tileTopY + 1,
+                requestZoom) : null;
         final List<Cancelable> cancelableList = new ArrayList<DataCache.Cancelable>();
         for (int y = tileTopY; y <= tileBottomY; y++)
             for (int x = tileLeftX; x <= tileRightX; x++) {
-                Tile tile = new Tile(x, y, tileZoom);
+                Tile tile = new Tile(x, y, requestZoom);
+                Envelope envelope = tile.getEnvelope();
+                IndexedGetDataCallback tileCallback = new IndexedGetDataCallback(
+                        tile.x, tile.y);
+                DataTile dataTile = findContainingTile(mTileMap, tile);
+                if (dataTile == null && !forceUpdate
+                        && isCoveredByCachedTiles(tile, cacheZoom)) {
+                    // Served by the tiles of this cache, no need to fetch
+                    if (assembleOnce) {
+                        tileCallback.onDataReceived();
+                    } else {
+                        tileCallback
+                                .onReceiveMeasurements(queryEntities(envelope));
+                    }
+                    continue;
+                }
+                if (dataTile == null) {
+                    dataTile = getDataTile(tile);
+                }
 
-                cancelableList
-                        .add(getDataByTile(tile, new IndexedGetDataCallback(
-                                tile.x, tile.y), forceUpdate));
+                if (assembleOnce) {
+                    cancelableList.add(dataTile.awaitData(tileCallback,
+                            forceUpdate, batch));
+                } else {
+                    cancelableList.add(dataTile.getData(envelope,
+                            tileCallback, forceUpdate, batch));
+                }
 
             }
+        if (batch != null) {
+            batch.submit();
+        }
 
         return new Cancelable() {
             public void cancel() {
-                // FIXME deadlock!
+                if (!active.compareAndSet(true, false)) {
+                    return;
+                }
+                // Neither waits for running deliveries nor for fetches, so
+                // callers may cancel while holding their own locks. Tiles
+                // without other requesters cancel their fetches.
                 for (Cancelable cancelable : cancelableList) {
                     cancelable.cancel();
                 }
+                callback.onAbort(bounds, DataSourceErrorType.CANCELED);
             }
         };
     }
+
+    /**
+     * Requests data for concentric bounding boxes one after the other, from
+     * the innermost to the outermost. Outer rings may use a lower zoom level
+     * to request their area by fewer and larger tiles. Tiles covered by the
+     * requests of inner rings are not requested again.
+     * 
+     * The data of each ring gets passed to
+     * {@link GetDataBoundsStreamCallback#onReceiveTileData(MercatorRect, List)}
+     * as soon as all its tiles are loaded, leaving out entities delivered for
+     * inner rings. Failing tiles get reported by
+     * {@link GetDataBoundsStreamCallback#onAbort(MercatorRect, DataSourceErrorType)}
+     * without stopping the request of the outer rings.
+     * 
+     * @param rings
+     *            Bounds of the rings, ordered from the innermost to the
+     *            outermost
+     * @param callback
+     * @return Holder to cancel this request
+     */
+    public Cancelable getDataByRings(MercatorRect[] rings,
+            GetDataBoundsStreamCallback callback) {
+        RingRequest request = new RingRequest(rings, callback);
+        request.requestRing(0);
+        return request;
+    }
+
+    /**
+     * Request of the rings of {@link #getDataByRings}. Callbacks get invoked
+     * without holding the lock of the request, since consumers cancel it
+     * while holding their own locks.
+     */
+    private class RingRequest implements Cancelable {
+        private final MercatorRect[] rings;
+        private final GetDataBoundsStreamCallback callback;
+        // Guarded by this
+        private final EntitySet deliveredEntities = new EntitySet();
+        // Areas covered by the tiles of the rings requested so far
+        private final List<Envelope> requestedEnvelopes = new ArrayList<Envelope>();
+        private final List<Cancelable> cancelableList = new ArrayList<Cancelable>();
+        private List<SpatialEntity2<? extends Geometry>> ringData;
+        private int ring = -1;
+        private boolean ringComplete;
+        private int pendingTiles;
+        private int loadedTiles;
+        private int tileCount;
+        private boolean canceled;
+
+        /**
+         * Callback for the data of a tile of a ring
+         */
+        private class RingTileCallback implements GetDataCallback {
+            private final int tileRing;
+            private boolean done;
+
+            private RingTileCallback(int tileRing) {
+                this.tileRing = tileRing;
+            }
+
+            @Override
+            public void onReceiveMeasurements(
+                    List<? extends SpatialEntity2<? extends Geometry>> data) {
+                List<SpatialEntity2<? extends Geometry>> completedData;
+                int loaded, total;
+                synchronized (RingRequest.this) {
+                    if (!finishTile()) {
+                        return;
+                    }
+                    for (SpatialEntity2<? extends Geometry> entity : data) {
+                        if (deliveredEntities.add(entity)) {
+                            ringData.add(entity);
+                        }
+                    }
+                    loaded = loadedTiles;
+                    total = tileCount;
+                    completedData = takeCompletedRing(tileRing);
+                }
+                callback.onProgressUpdate(loaded, total);
+                if (completedData != null) {
+                    deliverRing(tileRing, completedData);
+                }
+            }
+
+            @Override
+            public void onAbort(DataSourceErrorType reason) {
+                if (reason == DataSourceErrorType.CANCELED) {
+                    // Reported once by the canceled request itself
+                    return;
+                }
+                List<SpatialEntity2<? extends Geometry>> completedData;
+                int loaded, total;
+                synchronized (RingRequest.this) {
+                    if (!finishTile()) {
+                        return;
+                    }
+                    loaded = loadedTiles;
+                    total = tileCount;
+                    completedData = takeCompletedRing(tileRing);
+                }
+                callback.onAbort(rings[tileRing], reason);
+                callback.onProgressUpdate(loaded, total);
+                if (completedData != null) {
+                    deliverRing(tileRing, completedData);
+                }
+            }
+
+            /**
+             * @return false if this tile does not belong to the current
+             *         request anymore
+             */
+            private boolean finishTile() {
+                if (canceled || tileRing != ring || done) {
+                    return false;
+                }
+                done = true;
+                pendingTiles--;
+                loadedTiles++;
+                return true;
+            }
+        }
+
+        private RingRequest(MercatorRect[] rings,
+                GetDataBoundsStreamCallback callback) {
+            this.rings = rings;
+            this.callback = callback;
+        }
+
+        /**
+         * Requests all tiles of a ring which are not covered by inner rings
+         */
+        private void requestRing(int ringIndex) {
+            MercatorRect bounds = rings[ringIndex];
+            byte cacheZoom = getCacheZoom(bounds);
+            byte requestZoom = getRequestZoom(bounds);
+            Rect tileRange = getTileRange(bounds, requestZoom);
+
+            List<Tile> tiles = new ArrayList<Tile>();
+            int loaded, total;
+            synchronized (this) {
+                if (canceled) {
+                    return;
+                }
+                for (int y = tileRange.top; y <= tileRange.bottom; y++) {
+                    for (int x = tileRange.left; x <= tileRange.right; x++) {
+                        Tile tile = new Tile(x, y, requestZoom);
+                        if (!isRequested(tile.getEnvelope())) {
+                            tiles.add(tile);
+                        }
+                    }
+                }
+                Envelope gridEnvelope = new Envelope(new Tile(tileRange.left,
+                        tileRange.top, requestZoom).getEnvelope());
+                gridEnvelope.expandToInclude(new Tile(tileRange.right,
+                        tileRange.bottom, requestZoom).getEnvelope());
+                requestedEnvelopes.add(gridEnvelope);
+                mVisibleEnvelope = gridEnvelope;
+                if (ringIndex == 0) {
+                    setFocusCenter(gridEnvelope);
+                }
+
+                ring = ringIndex;
+                ringComplete = false;
+                ringData = new ArrayList<SpatialEntity2<? extends Geometry>>();
+                cancelableList.clear();
+                // Counted before requesting, as cached tiles answer at once
+                pendingTiles = tiles.size();
+                tileCount += tiles.size();
+                loaded = loadedTiles;
+                total = tileCount;
+            }
+            LOG.debug("Loading ring " + ringIndex + " with " + tiles.size()
+                    + " Tiles");
+            callback.onProgressUpdate(loaded, total);
+
+            TileBatch batch = maxBatchTiles > 1 ? new TileBatch(
+                    tileRange.left, tileRange.top, tileRange.width() + 1,
+                    tileRange.height() + 1, requestZoom) : null;
+            for (Tile tile : tiles) {
+                RingTileCallback tileCallback = new RingTileCallback(ringIndex);
+                Envelope envelope = tile.getEnvelope();
+                DataTile dataTile = findContainingTile(mTileMap, tile);
+                if (dataTile == null && isCoveredByCachedTiles(tile, cacheZoom)) {
+                    tileCallback.onReceiveMeasurements(queryEntities(envelope));
+                    continue;
+                }
+                if (dataTile == null) {
+                    dataTile = getDataTile(tile);
+                }
+                Cancelable cancelable = dataTile.getData(envelope,
+                        tileCallback, false, batch);
+                boolean canceledMeanwhile;
+                synchronized (this) {
+                    canceledMeanwhile = canceled;
+                    if (!canceled && ring == ringIndex) {
+                        cancelableList.add(cancelable);
+                    }
+                }
+                if (canceledMeanwhile) {
+                    cancelable.cancel();
+                    return;
+                }
+            }
+            if (batch != null) {
+                batch.submit();
+            }
+
+            // Rings without own tiles complete immediately
+            List<SpatialEntity2<? extends Geometry>> completedData;
+            synchronized (this) {
+                completedData = takeCompletedRing(ringIndex);
+            }
+            if (completedData != null) {
+                deliverRing(ringIndex, completedData);
+            }
+        }
+
+        private boolean isRequested(Envelope tileEnvelope) {
+            for (Envelope envelope : requestedEnvelopes) {
+                if (envelope.contains(tileEnvelope)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Has to be called while holding the lock of this request
+         * 
+         * @return The data of the specified ring if all of its tiles got
+         *         loaded, once, otherwise null
+         */
+        private List<SpatialEntity2<? extends Geometry>> takeCompletedRing(
+                int ringIndex) {
+            if (canceled || ring != ringIndex || ringComplete
+                    || pendingTiles > 0) {
+                return null;
+            }
+            ringComplete = true;
+            return ringData;
+        }
+
+        /**
+         * Passes the data of a completed ring to the callback and continues
+         * with the next ring
+         */
+        private void deliverRing(int ringIndex,
+                List<SpatialEntity2<? extends Geometry>> data) {
+            LOG.debug("Loaded ring " + ringIndex);
+            if (!data.isEmpty()) {
+                callback.onReceiveTileData(rings[ringIndex], data);
+            }
+            if (ringIndex + 1 < rings.length) {
+                requestRing(ringIndex + 1);
+            } else {
+                callback.onDataComplete(rings[ringIndex]);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            List<Cancelable> cancelables;
+            synchronized (this) {
+                if (canceled) {
+                    return;
+                }
+                canceled = true;
+                cancelables = new ArrayList<Cancelable>(cancelableList);
+            }
+            for (Cancelable cancelable : cancelables) {
+                cancelable.cancel();
+            }
+            callback.onAbort(rings[rings.length - 1],
+                    DataSourceErrorType.CANCELED);
+        }
+    }
 }
@@ -17,6 +17,7 @@ package org.n52.geoar.newdata;
 
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -100,9 +101,18 @@ public class DataSourceHolder implements Parcelable {
 	private final int id = nextId++;
 
 	private byte maxZoomLevel;
+	private int maxBatchTiles;
+	private int maxConcurrentFetches;
+	private int fetchWeight;
+	private int maxRequestsPerMinute;
+	private int hedgePercentile;
+	private int maxHedgedPercent;
+	private int arEntityBudget;
+	private String[] filterRanges;
 	private CheckList<DataSourceInstanceHolder> mDataSourceInstances;
 
 	private long minReloadInterval;
+	private long maxStaleness;
 	private boolean mInstanceable;
 	private byte minZoomLevel;
 	private InstalledPluginHolder mPluginHolder;
@@ -143,9 +153,27 @@ public class DataSourceHolder implements Parcelable {
 		}
 		description = dataSourceAnnotation.description();
 		minReloadInterval = dataSourceAnnotation.minReloadInterval();
+		maxStaleness = Math.max(0, getOptionalAttribute(dataSourceAnnotation,
+				"maxStaleness", Number.class, 0L).longValue());
 		cacheZoomLevel = dataSourceAnnotation.cacheZoomLevel();
 		minZoomLevel = dataSourceAnnotation.minZoomLevel();
 		maxZoomLevel = dataSourceAnnotation.maxZoomLevel();
+		maxBatchTiles = Math.max(1, getOptionalAttribute(dataSourceAnnotation,
+				"maxBatchTiles", 1));
+		maxConcurrentFetches = Math.max(1, getOptionalAttribute(
+				dataSourceAnnotation, "maxConcurrentFetches", 2));
+		fetchWeight = Math.max(1, getOptionalAttribute(dataSourceAnnotation,
+				"fetchWeight", 1));
+		maxRequestsPerMinute = Math.max(0, getOptionalAttribute(
+				dataSourceAnnotation, "maxRequestsPerMinute", 0));
+		hedgePercentile = Math.max(1, Math.min(100, getOptionalAttribute(
+				dataSourceAnnotation, "hedgePercentile", 95)));
+		maxHedgedPercent = Math.max(0, Math.min(100, getOptionalAttribute(
+				dataSourceAnnotation, "maxHedgedPercent", 0)));
+		arEntityBudget = Math.max(0, getOptionalAttribute(
+				dataSourceAnnotation, "arEntityBudget", 0));
+		filterRanges = getOptionalAttribute(dataSourceAnnotation,
+				"filterRanges", new String[0]);
 
 		// Find name callback
 		for (Method method : dataSourceClass.getMethods()) {
@@ -189,6 +217,61 @@ public class DataSourceHolder implements Parcelable {
 
 	}
 
+	/**
+	 * Reads an attribute of an annotation which might not be defined by the
+	 * data source API version the plugin got compiled against
+	 * 
+	 * @param annotation
+	 * @param attributeName
+	 * @param defaultValue
+	 *            Value to use if the annotation does not define the attribute
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> T getOptionalAttribute(Annotation annotation,
+			String attributeName, T defaultValue) {
+		return getOptionalAttribute(annotation, attributeName,
+				(Class<T>) defaultValue.getClass(), defaultValue);
+	}
+
+	/**
+	 * Reads an attribute of an annotation which might not be defined by the
+	 * data source API version the plugin got compiled against, and whose type
+	 * may differ between versions, e.g. {@link Number} for int or long
+	 * attributes
+	 * 
+	 * @param annotation
+	 * @param attributeName
+	 * @param type
+	 *            Accepted type of the attribute
+	 * @param defaultValue
+	 *            Value to use if the annotation does not define the attribute
+	 *            or defines it with another type
+	 * @return
+	 */
+	static <T> T getOptionalAttribute(Annotation annotation,
+			String attributeName, Class<T> type, T defaultValue) {
+		try {
+			Object value = annotation.annotationType()
+					.getMethod(attributeName).invoke(annotation);
+			if (type.isInstance(value)) {
+				return type.cast(value);
+			}
+			LOG.warn("Annotation attribute " + attributeName + " of type "
+					+ value.getClass().getName() + " instead of "
+					+ type.getName() + " ignored");
+		} catch (NoSuchMethodException e) {
+			// Attribute not supported
+		} catch (IllegalAccessException e) {
+			LOG.warn("Annotation attribute " + attributeName
+					+ " not accessible");
+		} catch (InvocationTargetException e) {
+			LOG.warn("Annotation attribute " + attributeName
+					+ " not accessible");
+		}
+		return defaultValue;
+	}
+
 	private void createDefaultInstances() {
 		if (!instanceable()) {
 			return;
@@ -286,10 +369,120 @@ public class DataSourceHolder implements Parcelable {
 		return maxZoomLevel;
 	}
 
+	/**
+	 * Maximum number of adjacent tiles the {@link DataCache} may combine into
+	 * a single request to the data source. Data sources opt in by the
+	 * optional "maxBatchTiles" attribute of {@link Annotations.DataSource},
+	 * otherwise each tile gets requested separately.
+	 * 
+	 * @return
+	 */
+	public int getMaxBatchTiles() {
+		return maxBatchTiles;
+	}
+
+	/**
+	 * Maximum number of requests the {@link DataCache} of each instance of
+	 * this data source performs at once. Set by the optional
+	 * "maxConcurrentFetches" attribute of {@link Annotations.DataSource},
+	 * defaults to 2 so that a slow data source leaves workers to other ones.
+	 * 
+	 * @return
+	 */
+	public int getMaxConcurrentFetches() {
+		return maxConcurrentFetches;
+	}
+
+	/**
+	 * Share of the fetching workers of each instance of this data source
+	 * relative to other data sources, when several of them have requests
+	 * pending. Set by the optional "fetchWeight" attribute of
+	 * {@link Annotations.DataSource}, defaults to 1.
+	 * 
+	 * @return
+	 */
+	public int getFetchWeight() {
+		return fetchWeight;
+	}
+
+	/**
+	 * Sustained rate of requests the {@link DataCache} of each instance of
+	 * this data source may perform, with bursts of up to a tenth of it. Set by
+	 * the optional "maxRequestsPerMinute" attribute of
+	 * {@link Annotations.DataSource}, defaults to 0 for no limit.
+	 * 
+	 * @return
+	 */
+	public int getMaxRequestsPerMinute() {
+		return maxRequestsPerMinute;
+	}
+
+	/**
+	 * Latency percentile of recent requests after which the {@link DataCache}
+	 * issues a duplicate of a still running request. Set by the optional
+	 * "hedgePercentile" attribute of {@link Annotations.DataSource}, defaults
+	 * to 95.
+	 * 
+	 * @return
+	 */
+	public int getHedgePercentile() {
+		return hedgePercentile;
+	}
+
+	/**
+	 * Maximum share of requests in percent which may get duplicated to cut
+	 * their latency. Set by the optional "maxHedgedPercent" attribute of
+	 * {@link Annotations.DataSource}, defaults to 0 to disable duplicate
+	 * requests.
+	 * 
+	 * @return
+	 */
+	public int getMaxHedgedPercent() {
+		return maxHedgedPercent;
+	}
+
+	/**
+	 * Number of entities the AR view aims at showing for this data source, by
+	 * adapting the radius it requests data for. Set by the optional
+	 * "arEntityBudget" attribute of {@link Annotations.DataSource}, defaults
+	 * to 0 to use the default budget of the AR view.
+	 * 
+	 * @return
+	 */
+	public int getArEntityBudget() {
+		return arEntityBudget;
+	}
+
+	/**
+	 * Range fields of the filter of this data source, each as the names of
+	 * its lower and its upper bound field separated by a comma, e.g.
+	 * "minValue,maxValue". Set by the optional "filterRanges" attribute of
+	 * {@link Annotations.DataSource}. Only declared ranges let the
+	 * {@link DataCache} reuse cached data after filter changes.
+	 * 
+	 * @return
+	 */
+	public String[] getFilterRanges() {
+		return filterRanges;
+	}
+
 	public long getMinReloadInterval() {
 		return minReloadInterval;
 	}
 
+	/**
+	 * Time in milliseconds after the reload interval during which expired
+	 * cached data still gets returned immediately, while it gets refreshed in
+	 * the background. Set by the optional "maxStaleness" attribute of
+	 * {@link Annotations.DataSource}, defaults to 0 to wait for refreshed data
+	 * instead.
+	 * 
+	 * @return
+	 */
+	public long getMaxStaleness() {
+		return maxStaleness;
+	}
+
 	public byte getMinZoomLevel() {
 		return minZoomLevel;
 	}
@@ -572,4 +765,4 @@ public class DataSourceHolder implements Parcelable {
 		}
 	}
 
-}
\ No newline at end of file
+}
\ No newline at end of file
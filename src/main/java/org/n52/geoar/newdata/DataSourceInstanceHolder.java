@@ -58,6 +58,7 @@ public class DataSourceInstanceHolder implements Parcelable {
 				// Delayed clearing of cache after datasource has been
 				// deactivated
 				dataCache.clearCache();
+				dataCache.setActive(false);
 				return true;
 			}
 
@@ -74,6 +75,8 @@ public class DataSourceInstanceHolder implements Parcelable {
 	@CheckManager
 	private CheckList<DataSourceInstanceHolder>.Checker mChecker;
 	private Exception lastError;
+	// Guards the data source against requests while it keeps failing
+	private final CircuitBreaker circuitBreaker = new CircuitBreaker();
 	private Set<DataSourceSettingsChangedListener> mSettingsChangedListeners = new HashSet<DataSourceInstanceHolder.DataSourceSettingsChangedListener>(
 			0);
 
@@ -112,6 +115,7 @@ public class DataSourceInstanceHolder implements Parcelable {
 
 		// prevents clearing of cache by removing messages
 		dataSourceHandler.removeMessages(CLEAR_CACHE);
+		dataCache.setActive(true);
 		if (!injected) {
 			parentHolder.perfomInjection(dataSource);
 			injected = true;
@@ -171,8 +175,8 @@ public class DataSourceInstanceHolder implements Parcelable {
 	}
 
 	/**
-	 * It does not only notify listeners, but also clears the current cache.
-	 * TODO
+	 * It does not only notify listeners, but also passes the current filter to
+	 * the cache, which invalidates cached data as far as required.
 	 */
 	void notifySettingsChanged() {
 		dataCache.setFilter(currentFilter);
@@ -290,6 +294,21 @@ public class DataSourceInstanceHolder implements Parcelable {
 		lastError = null;
 	}
 
+	/**
+	 * State of the circuit breaker of this data source instance. While open,
+	 * requests get answered from cached data without accessing the data
+	 * source.
+	 * 
+	 * @return
+	 */
+	public CircuitBreaker.State getCircuitBreakerState() {
+		return circuitBreaker.getState();
+	}
+
+	CircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
 	public String getErrorString() {
 		if (lastError == null) {
 			return null;
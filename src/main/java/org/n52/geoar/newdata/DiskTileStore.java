@@ -0,0 +1,672 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Persistent second level cache for the data of {@link DataCache} tiles.
+ * 
+ * Tiles are stored as records in append-only segment files which get memory
+ * mapped for reading. Each record is keyed by a query hash, i.e. a hash of the
+ * {@link Filter} and the data source settings, and the {@link Tile}
+ * coordinates. Its header is followed by the deflated serialized entities.
+ * Records which got replaced or expired are removed by a background
+ * compaction, which also limits the size of the store. Compaction copies the
+ * records without holding the lock of the store, so that reads and writes
+ * continue meanwhile.
+ * 
+ * There is a single store per directory, shared by all
+ * {@link DataSourceInstanceHolder}s of a data source. Each of them reads with
+ * its own maximum age, records are kept for the largest one.
+ */
+class DiskTileStore {
+
+	/**
+	 * Entities and timestamp of a persisted tile
+	 */
+	static class StoredTile {
+		final List<SpatialEntity2<? extends Geometry>> entities;
+		final long timestamp;
+
+		private StoredTile(List<SpatialEntity2<? extends Geometry>> entities,
+				long timestamp) {
+			this.entities = entities;
+			this.timestamp = timestamp;
+		}
+	}
+
+	private static class RecordKey {
+		private final long queryHash;
+		private final int x;
+		private final int y;
+		private final byte zoom;
+
+		private RecordKey(long queryHash, int x, int y, byte zoom) {
+			this.queryHash = queryHash;
+			this.x = x;
+			this.y = y;
+			this.zoom = zoom;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = (int) (queryHash ^ (queryHash >>> 32));
+			result = 31 * result + x;
+			result = 31 * result + y;
+			return 31 * result + zoom;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof RecordKey)) {
+				return false;
+			}
+			RecordKey other = (RecordKey) o;
+			return queryHash == other.queryHash && x == other.x
+					&& y == other.y && zoom == other.zoom;
+		}
+	}
+
+	private static class RecordLocation {
+		private final Segment segment;
+		private final int offset;
+		private final int length;
+		private final long timestamp;
+
+		private RecordLocation(Segment segment, int offset, int length,
+				long timestamp) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.timestamp = timestamp;
+		}
+	}
+
+	private static class Segment {
+		private final int id;
+		private final File file;
+		private final RandomAccessFile randomAccessFile;
+		private final FileChannel channel;
+		private MappedByteBuffer buffer;
+		private int size;
+
+		private Segment(int id, File file) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.randomAccessFile = new RandomAccessFile(file, "rw");
+			this.channel = randomAccessFile.getChannel();
+			this.size = (int) channel.size();
+		}
+
+		/**
+		 * Returns a read only view of the first bytes of this segment, remaps
+		 * the file if the current mapping is too small
+		 */
+		private ByteBuffer map(int minSize) throws IOException {
+			if (buffer == null || buffer.capacity() < minSize) {
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			}
+			return buffer.duplicate();
+		}
+
+		private void append(ByteBuffer record) throws IOException {
+			int length = record.remaining();
+			while (record.hasRemaining()) {
+				channel.write(record, size + length - record.remaining());
+			}
+			size += length;
+		}
+
+		private void close() {
+			try {
+				channel.close();
+				randomAccessFile.close();
+			} catch (IOException e) {
+				LOG.warn("Unable to close segment " + file, e);
+			}
+		}
+	}
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(DiskTileStore.class);
+
+	// "GART"
+	private static final int RECORD_MAGIC = 0x47415254;
+	// magic, query hash, x, y, zoom, timestamp, entity count, payload length
+	private static final int HEADER_SIZE = 4 + 8 + 4 + 4 + 1 + 8 + 4 + 4;
+	private static final int MAX_SEGMENT_SIZE = 4 * 1024 * 1024;
+	private static final long MAX_STORE_SIZE = 32 * 1024 * 1024;
+	// Fraction of replaced or expired bytes to trigger a compaction
+	private static final float COMPACTION_GARBAGE_RATIO = 0.5f;
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".dat";
+
+	private static final FilenameFilter SEGMENT_FILENAME_FILTER = new FilenameFilter() {
+		@Override
+		public boolean accept(File dir, String fileName) {
+			return fileName.startsWith(SEGMENT_PREFIX)
+					&& fileName.endsWith(SEGMENT_SUFFIX);
+		}
+	};
+	private static final Comparator<Entry<RecordKey, RecordLocation>> NEWEST_FIRST_COMPARATOR = new Comparator<Entry<RecordKey, RecordLocation>>() {
+		@Override
+		public int compare(Entry<RecordKey, RecordLocation> lhs,
+				Entry<RecordKey, RecordLocation> rhs) {
+			long lhsTime = lhs.getValue().timestamp;
+			long rhsTime = rhs.getValue().timestamp;
+			return lhsTime == rhsTime ? 0 : (lhsTime > rhsTime ? -1 : 1);
+		}
+	};
+
+	private static final ExecutorService COMPACTION_EXECUTOR = Executors
+			.newSingleThreadExecutor();
+	private static final Map<File, DiskTileStore> STORES = new HashMap<File, DiskTileStore>();
+
+	private final File directory;
+	private final ClassLoader classLoader;
+	// Largest maximum age of all users of this store
+	private long retentionAge;
+	private final Map<RecordKey, RecordLocation> index = new HashMap<RecordKey, RecordLocation>();
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private boolean opened;
+	private boolean compactionScheduled;
+	private boolean compacting;
+	// Segments for writes get at least this id, to follow the segments
+	// written by a running compaction
+	private int minSegmentId;
+	private boolean serializable = true;
+	private long totalBytes;
+	private long liveBytes;
+
+	private final Runnable compactionRunnable = new Runnable() {
+		@Override
+		public void run() {
+			compact();
+		}
+	};
+
+	private DiskTileStore(File directory, ClassLoader classLoader) {
+		this.directory = directory;
+		this.classLoader = classLoader;
+	}
+
+	/**
+	 * Returns the store for the specified directory. Segment files get lazily
+	 * opened on first access.
+	 * 
+	 * @param directory
+	 * @param classLoader
+	 *            {@link ClassLoader} to resolve the classes of stored entities
+	 * @param maxAge
+	 *            Maximum age of records in milliseconds the caller will read,
+	 *            records are kept at least this long
+	 * @return
+	 */
+	static DiskTileStore getInstance(File directory, ClassLoader classLoader,
+			long maxAge) {
+		DiskTileStore store;
+		synchronized (STORES) {
+			store = STORES.get(directory);
+			if (store == null) {
+				store = new DiskTileStore(directory, classLoader);
+				STORES.put(directory, store);
+			}
+		}
+		synchronized (store) {
+			store.retentionAge = Math.max(store.retentionAge, maxAge);
+		}
+		return store;
+	}
+
+	/**
+	 * Reads the entities of a tile
+	 * 
+	 * @param queryHash
+	 * @param tile
+	 * @param maxAge
+	 *            Maximum age of the record in milliseconds
+	 * @return The stored tile or null if there is no record for the specified
+	 *         key or if it is older than the maximum age
+	 */
+	StoredTile read(long queryHash, Tile tile, long maxAge) {
+		RecordKey key = new RecordKey(queryHash, tile.x, tile.y, tile.zoom);
+		byte[] payload;
+		long timestamp;
+		synchronized (this) {
+			if (!ensureOpened()) {
+				return null;
+			}
+			RecordLocation location = index.get(key);
+			if (location == null) {
+				return null;
+			}
+			if (isExpired(location, maxAge)) {
+				if (isExpired(location, retentionAge)) {
+					removeRecord(key);
+				}
+				return null;
+			}
+			try {
+				ByteBuffer buffer = location.segment.map(location.offset
+						+ location.length);
+				buffer.position(location.offset + HEADER_SIZE);
+				payload = new byte[location.length - HEADER_SIZE];
+				buffer.get(payload);
+			} catch (IOException e) {
+				LOG.warn("Unable to read tile record", e);
+				removeRecord(key);
+				return null;
+			}
+			timestamp = location.timestamp;
+		}
+
+		try {
+			return new StoredTile(decodeEntities(payload), timestamp);
+		} catch (Exception e) {
+			// e.g. changed entity classes
+			LOG.warn("Unable to decode tile record", e);
+			synchronized (this) {
+				removeRecord(key);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Appends the entities of a tile, replacing any previous record for the
+	 * same key. Does nothing if the entities are not serializable.
+	 * 
+	 * @param queryHash
+	 * @param tile
+	 * @param entities
+	 */
+	void write(long queryHash, Tile tile,
+			List<? extends SpatialEntity2<? extends Geometry>> entities) {
+		if (!serializable) {
+			return;
+		}
+
+		byte[] payload;
+		try {
+			payload = encodeEntities(entities);
+		} catch (NotSerializableException e) {
+			LOG.info("Entities of " + directory.getName()
+					+ " are not serializable, disabling disk cache");
+			serializable = false;
+			return;
+		} catch (IOException e) {
+			LOG.warn("Unable to encode tile record", e);
+			return;
+		}
+
+		long timestamp = System.currentTimeMillis();
+		ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+		record.putInt(RECORD_MAGIC).putLong(queryHash).putInt(tile.x)
+				.putInt(tile.y).put(tile.zoom).putLong(timestamp)
+				.putInt(entities.size()).putInt(payload.length).put(payload);
+		record.flip();
+
+		synchronized (this) {
+			if (!ensureOpened()) {
+				return;
+			}
+			try {
+				Segment segment = getWritableSegment(record.remaining());
+				int offset = segment.size;
+				int length = record.remaining();
+				segment.append(record);
+				RecordKey key = new RecordKey(queryHash, tile.x, tile.y,
+						tile.zoom);
+				removeRecord(key);
+				index.put(key, new RecordLocation(segment, offset, length,
+						timestamp));
+				totalBytes += length;
+				liveBytes += length;
+			} catch (IOException e) {
+				LOG.warn("Unable to write tile record", e);
+				return;
+			}
+			scheduleCompactionIfRequired();
+		}
+	}
+
+	private static boolean isExpired(RecordLocation location, long maxAge) {
+		return System.currentTimeMillis() - location.timestamp > maxAge;
+	}
+
+	private void removeRecord(RecordKey key) {
+		RecordLocation location = index.remove(key);
+		if (location != null) {
+			liveBytes -= location.length;
+		}
+	}
+
+	private Segment getWritableSegment(int recordLength) throws IOException {
+		Segment segment = segments.isEmpty() ? null : segments.get(segments
+				.size() - 1);
+		if (segment == null || segment.id < minSegmentId
+				|| segment.size + recordLength > MAX_SEGMENT_SIZE) {
+			int id = segment == null ? minSegmentId : Math.max(
+					segment.id + 1, minSegmentId);
+			segment = new Segment(id, new File(directory, SEGMENT_PREFIX + id
+					+ SEGMENT_SUFFIX));
+			segments.add(segment);
+		}
+		return segment;
+	}
+
+	/**
+	 * Opens all existing segments and rebuilds the index by scanning their
+	 * records. Truncates incomplete records, e.g. after a crash while writing.
+	 * 
+	 * @return false if the store is not usable
+	 */
+	private boolean ensureOpened() {
+		if (opened) {
+			return !segments.isEmpty() || directory.isDirectory();
+		}
+		opened = true;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			LOG.warn("Unable to create disk cache directory " + directory);
+			return false;
+		}
+
+		File[] files = directory.listFiles(SEGMENT_FILENAME_FILTER);
+		List<Segment> existingSegments = new ArrayList<Segment>();
+		for (File file : files) {
+			String name = file.getName();
+			try {
+				int id = Integer.parseInt(name.substring(
+						SEGMENT_PREFIX.length(),
+						name.length() - SEGMENT_SUFFIX.length()));
+				existingSegments.add(new Segment(id, file));
+			} catch (NumberFormatException e) {
+				file.delete();
+			} catch (IOException e) {
+				LOG.warn("Unable to open segment " + file, e);
+			}
+		}
+		Collections.sort(existingSegments, new Comparator<Segment>() {
+			@Override
+			public int compare(Segment lhs, Segment rhs) {
+				return lhs.id < rhs.id ? -1 : (lhs.id == rhs.id ? 0 : 1);
+			}
+		});
+
+		for (Segment segment : existingSegments) {
+			try {
+				scanSegment(segment);
+				segments.add(segment);
+			} catch (IOException e) {
+				LOG.warn("Unable to scan segment " + segment.file, e);
+				segment.close();
+				segment.file.delete();
+			}
+		}
+		LOG.debug("Opened disk cache " + directory + " with " + index.size()
+				+ " tiles");
+		scheduleCompactionIfRequired();
+		return true;
+	}
+
+	private void scanSegment(Segment segment) throws IOException {
+		if (segment.size == 0) {
+			return;
+		}
+		ByteBuffer buffer = segment.map(segment.size);
+		int offset = 0;
+		while (offset + HEADER_SIZE <= segment.size) {
+			buffer.position(offset);
+			if (buffer.getInt() != RECORD_MAGIC) {
+				break;
+			}
+			long queryHash = buffer.getLong();
+			int x = buffer.getInt();
+			int y = buffer.getInt();
+			byte zoom = buffer.get();
+			long timestamp = buffer.getLong();
+			buffer.getInt(); // entity count
+			int length = HEADER_SIZE + buffer.getInt();
+			if (length < HEADER_SIZE || offset + length > segment.size) {
+				break;
+			}
+
+			RecordKey key = new RecordKey(queryHash, x, y, zoom);
+			removeRecord(key);
+			index.put(key, new RecordLocation(segment, offset, length,
+					timestamp));
+			totalBytes += length;
+			liveBytes += length;
+			offset += length;
+		}
+
+		if (offset < segment.size) {
+			LOG.warn("Truncating corrupt segment " + segment.file);
+			segment.channel.truncate(offset);
+			segment.size = offset;
+			segment.buffer = null;
+		}
+	}
+
+	private void scheduleCompactionIfRequired() {
+		if (compactionScheduled || compacting) {
+			return;
+		}
+		if (totalBytes > MAX_STORE_SIZE
+				|| (segments.size() > 1 && totalBytes - liveBytes > totalBytes
+						* COMPACTION_GARBAGE_RATIO)) {
+			compactionScheduled = true;
+			COMPACTION_EXECUTOR.execute(compactionRunnable);
+		}
+	}
+
+	/**
+	 * Rewrites all live and non expired records into new segments and deletes
+	 * the old ones. Keeps only the newest records if the store exceeds its
+	 * maximum size.
+	 * 
+	 * Records get copied without holding the lock of this store. Writes
+	 * meanwhile go to segments with ids above the ones reserved for the
+	 * compaction, so that they stay newer when scanning. Records replaced or
+	 * removed meanwhile are not taken over from the compaction.
+	 */
+	private void compact() {
+		Map<RecordKey, RecordLocation> records;
+		List<Segment> oldSegments;
+		long maxAge;
+		int nextId;
+		synchronized (this) {
+			compactionScheduled = false;
+			if (compacting || segments.isEmpty()) {
+				return;
+			}
+			compacting = true;
+			records = new HashMap<RecordKey, RecordLocation>(index);
+			oldSegments = new ArrayList<Segment>(segments);
+			maxAge = retentionAge;
+			// Ids of new segments have to be larger than old ones to keep the
+			// order of records when scanning. Each record needs at most one
+			// new segment.
+			nextId = oldSegments.get(oldSegments.size() - 1).id + 1;
+			minSegmentId = nextId + records.size();
+		}
+
+		List<Entry<RecordKey, RecordLocation>> sortedRecords = new ArrayList<Entry<RecordKey, RecordLocation>>(
+				records.entrySet());
+		Collections.sort(sortedRecords, NEWEST_FIRST_COMPARATOR);
+		List<Segment> compactedSegments = new ArrayList<Segment>();
+		Map<RecordKey, RecordLocation> compactedIndex = new HashMap<RecordKey, RecordLocation>();
+		// Own mappings, as readers remap the old segments concurrently
+		Map<Segment, ByteBuffer> mappings = new HashMap<Segment, ByteBuffer>();
+		long compactedBytes = 0;
+		Segment segment = null;
+		try {
+			for (Entry<RecordKey, RecordLocation> record : sortedRecords) {
+				RecordLocation location = record.getValue();
+				if (isExpired(location, maxAge)
+						|| compactedBytes + location.length > MAX_STORE_SIZE / 2) {
+					continue;
+				}
+
+				// Old segments do not change anymore, writes go to new ones
+				ByteBuffer mapping = mappings.get(location.segment);
+				if (mapping == null) {
+					mapping = location.segment.channel.map(
+							FileChannel.MapMode.READ_ONLY, 0,
+							location.segment.size);
+					mappings.put(location.segment, mapping);
+				}
+				ByteBuffer buffer = mapping.duplicate();
+				buffer.position(location.offset);
+				buffer.limit(location.offset + location.length);
+
+				if (segment == null
+						|| segment.size + location.length > MAX_SEGMENT_SIZE) {
+					segment = new Segment(nextId, new File(directory,
+							SEGMENT_PREFIX + nextId + SEGMENT_SUFFIX));
+					nextId++;
+					compactedSegments.add(segment);
+				}
+				int offset = segment.size;
+				segment.append(buffer);
+				compactedIndex.put(record.getKey(), new RecordLocation(
+						segment, offset, location.length, location.timestamp));
+				compactedBytes += location.length;
+			}
+		} catch (IOException e) {
+			LOG.warn("Compaction of " + directory + " failed", e);
+			// Keep the old segments, discard the new ones
+			for (Segment newSegment : compactedSegments) {
+				newSegment.close();
+				newSegment.file.delete();
+			}
+			synchronized (this) {
+				compacting = false;
+				minSegmentId = 0;
+			}
+			return;
+		}
+
+		synchronized (this) {
+			long previousBytes = totalBytes;
+			// Segments created by writes during the compaction
+			List<Segment> newSegments = new ArrayList<Segment>(segments);
+			newSegments.removeAll(oldSegments);
+
+			Iterator<Entry<RecordKey, RecordLocation>> iterator = index
+					.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Entry<RecordKey, RecordLocation> entry = iterator.next();
+				RecordLocation location = entry.getValue();
+				if (location != records.get(entry.getKey())) {
+					// Written during the compaction
+					continue;
+				}
+				RecordLocation compactedLocation = compactedIndex.get(entry
+						.getKey());
+				if (compactedLocation != null) {
+					entry.setValue(compactedLocation);
+				} else {
+					iterator.remove();
+				}
+			}
+
+			segments.clear();
+			segments.addAll(compactedSegments);
+			segments.addAll(newSegments);
+			totalBytes = 0;
+			for (Segment currentSegment : segments) {
+				totalBytes += currentSegment.size;
+			}
+			liveBytes = 0;
+			for (RecordLocation location : index.values()) {
+				liveBytes += location.length;
+			}
+			for (Segment oldSegment : oldSegments) {
+				oldSegment.close();
+				oldSegment.file.delete();
+			}
+			compacting = false;
+			minSegmentId = 0;
+			LOG.debug("Compacted disk cache " + directory + " from "
+					+ previousBytes / 1024 + " KiB to " + totalBytes / 1024
+					+ " KiB");
+		}
+	}
+
+	private static byte[] encodeEntities(
+			List<? extends SpatialEntity2<? extends Geometry>> entities)
+			throws IOException {
+		ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+		ObjectOutputStream objectStream = new ObjectOutputStream(
+				new DeflaterOutputStream(byteStream));
+		objectStream.writeInt(entities.size());
+		for (int i = 0, len = entities.size(); i < len; i++) {
+			objectStream.writeObject(entities.get(i));
+		}
+		objectStream.close();
+		return byteStream.toByteArray();
+	}
+
+	private List<SpatialEntity2<? extends Geometry>> decodeEntities(
+			byte[] payload) throws IOException, ClassNotFoundException {
+		PluginStateInputStream objectStream = new PluginStateInputStream(
+				new InflaterInputStream(new ByteArrayInputStream(payload)));
+		objectStream.setPluginClassLoader(classLoader);
+		try {
+			int count = objectStream.readInt();
+			List<SpatialEntity2<? extends Geometry>> entities = new ArrayList<SpatialEntity2<? extends Geometry>>(
+					count);
+			for (int i = 0; i < count; i++) {
+				@SuppressWarnings("unchecked")
+				SpatialEntity2<? extends Geometry> entity = (SpatialEntity2<? extends Geometry>) objectStream
+						.readObject();
+				entities.add(entity);
+			}
+			return entities;
+		} finally {
+			objectStream.close();
+		}
+	}
+}
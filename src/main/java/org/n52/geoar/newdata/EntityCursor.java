@@ -0,0 +1,109 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Access to the optional streaming interface of data sources. Data sources
+ * supply it by a public method "Iterator getMeasurementsCursor(Filter)" of
+ * their class, returning a cursor over the {@link SpatialEntity2}s matching
+ * the filter. Entities get pulled from the cursor while it is read, so that
+ * data sources can parse their responses incrementally instead of
+ * materializing them as a whole. This way it does not depend on the data
+ * source API version a plugin got compiled against. Cursors implementing
+ * {@link Closeable} get closed once they are read or the request got
+ * canceled.
+ */
+final class EntityCursor {
+
+	private static final Method[] NO_METHOD = new Method[0];
+	// Cursor method of each data source class, empty if there is none
+	private static final ConcurrentHashMap<Class<?>, Method[]> METHODS = new ConcurrentHashMap<Class<?>, Method[]>();
+	private static final Logger LOG = LoggerFactory
+			.getLogger(EntityCursor.class);
+
+	private EntityCursor() {
+	}
+
+	/**
+	 * @return A cursor over the entities of the data source matching the
+	 *         filter, or null if the data source does not offer one
+	 * @throws Exception
+	 *             The exception of the data source
+	 */
+	static Iterator<?> open(Object dataSource, Filter filter) throws Exception {
+		Method[] method = getMethod(dataSource.getClass());
+		if (method.length == 0) {
+			return null;
+		}
+		try {
+			Iterator<?> cursor = (Iterator<?>) method[0].invoke(dataSource,
+					filter);
+			if (cursor == null) {
+				throw new IllegalStateException(dataSource.getClass()
+						+ " returned no cursor");
+			}
+			return cursor;
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw e;
+		}
+	}
+
+	static void close(Iterator<?> cursor) {
+		if (cursor instanceof Closeable) {
+			try {
+				((Closeable) cursor).close();
+			} catch (IOException e) {
+				LOG.warn("Closing cursor of data source failed", e);
+			}
+		}
+	}
+
+	private static Method[] getMethod(Class<?> dataSourceClass) {
+		Method[] method = METHODS.get(dataSourceClass);
+		if (method == null) {
+			method = NO_METHOD;
+			try {
+				Method cursorMethod = dataSourceClass.getMethod(
+						"getMeasurementsCursor", Filter.class);
+				if (Iterator.class.isAssignableFrom(cursorMethod
+						.getReturnType())) {
+					method = new Method[] { cursorMethod };
+				}
+			} catch (NoSuchMethodException e) {
+				// No cursor
+			}
+			METHODS.put(dataSourceClass, method);
+		}
+		return method;
+	}
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.n52.geoar.newdata.FilterHelper.EntityPredicate;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Difference between two versions of the cached data of an area. Entities
+ * get matched by their identity if the data source supplies one, see
+ * {@link EntityIdentity}, otherwise by their content. Only entities with an
+ * identity can appear as changed, others appear as removed and added. A new
+ * version of an entity with an identity counts as changed if its class does
+ * not implement hashCode, since its attributes can not be compared then.
+ * 
+ * Consumers holding objects created for the previous entities can remove the
+ * objects of {@link #getRemoved()} and {@link #getReplaced()}, and create
+ * objects for {@link #getAdded()} and {@link #getChanged()}. The cache keeps
+ * the previous instances of unchanged entities, see {@link #getData()}, so
+ * that later deltas refer to the instances consumers hold.
+ */
+public final class EntityDelta {
+
+	private final List<SpatialEntity2<? extends Geometry>> added;
+	private final List<SpatialEntity2<? extends Geometry>> removed;
+	private final List<SpatialEntity2<? extends Geometry>> changed;
+	private final List<SpatialEntity2<? extends Geometry>> replaced;
+	private final List<SpatialEntity2<? extends Geometry>> data;
+
+	private EntityDelta(List<SpatialEntity2<? extends Geometry>> added,
+			List<SpatialEntity2<? extends Geometry>> removed,
+			List<SpatialEntity2<? extends Geometry>> changed,
+			List<SpatialEntity2<? extends Geometry>> replaced,
+			List<SpatialEntity2<? extends Geometry>> data) {
+		this.added = Collections.unmodifiableList(added);
+		this.removed = Collections.unmodifiableList(removed);
+		this.changed = Collections.unmodifiableList(changed);
+		this.replaced = Collections.unmodifiableList(replaced);
+		this.data = data;
+	}
+
+	/**
+	 * @return Entities not contained in the previous data
+	 */
+	public List<SpatialEntity2<? extends Geometry>> getAdded() {
+		return added;
+	}
+
+	/**
+	 * @return Entities of the previous data not contained anymore
+	 */
+	public List<SpatialEntity2<? extends Geometry>> getRemoved() {
+		return removed;
+	}
+
+	/**
+	 * @return New versions of entities whose content changed
+	 */
+	public List<SpatialEntity2<? extends Geometry>> getChanged() {
+		return changed;
+	}
+
+	/**
+	 * @return Previous versions of the changed entities, in the same order as
+	 *         {@link #getChanged()}
+	 */
+	public List<SpatialEntity2<? extends Geometry>> getReplaced() {
+		return replaced;
+	}
+
+	/**
+	 * @return The current data, with the previous instances of entities which
+	 *         did not change
+	 */
+	List<SpatialEntity2<? extends Geometry>> getData() {
+		return data;
+	}
+
+	public boolean isEmpty() {
+		return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+	}
+
+	/**
+	 * Computes the difference between two versions of data
+	 * 
+	 * @param previous
+	 * @param current
+	 * @param predicate
+	 *            Filter the consumers applied to the previous data and apply
+	 *            to the current data, or null
+	 */
+	static EntityDelta compute(
+			List<? extends SpatialEntity2<? extends Geometry>> previous,
+			List<? extends SpatialEntity2<? extends Geometry>> current,
+			EntityPredicate predicate) {
+		List<SpatialEntity2<? extends Geometry>> added = new ArrayList<SpatialEntity2<? extends Geometry>>();
+		List<SpatialEntity2<? extends Geometry>> removed = new ArrayList<SpatialEntity2<? extends Geometry>>();
+		List<SpatialEntity2<? extends Geometry>> changed = new ArrayList<SpatialEntity2<? extends Geometry>>();
+		List<SpatialEntity2<? extends Geometry>> replaced = new ArrayList<SpatialEntity2<? extends Geometry>>();
+		List<SpatialEntity2<? extends Geometry>> data = new ArrayList<SpatialEntity2<? extends Geometry>>(
+				current.size());
+
+		Map<Object, SpatialEntity2<? extends Geometry>> previousByKey = new HashMap<Object, SpatialEntity2<? extends Geometry>>(
+				previous.size() * 2);
+		for (SpatialEntity2<? extends Geometry> entity : previous) {
+			if (predicate != null && !predicate.accept(entity)) {
+				continue;
+			}
+			SpatialEntity2<? extends Geometry> duplicate = previousByKey.put(
+					EntityIdentity.getKey(entity), entity);
+			if (duplicate != null) {
+				removed.add(duplicate);
+			}
+		}
+
+		for (SpatialEntity2<? extends Geometry> entity : current) {
+			if (predicate != null && !predicate.accept(entity)) {
+				data.add(entity);
+				continue;
+			}
+			SpatialEntity2<? extends Geometry> previousEntity = previousByKey
+					.remove(EntityIdentity.getKey(entity));
+			if (previousEntity == null) {
+				added.add(entity);
+				data.add(entity);
+			} else if (previousEntity != entity
+					&& isChanged(previousEntity, entity)) {
+				changed.add(entity);
+				replaced.add(previousEntity);
+				data.add(entity);
+			} else {
+				data.add(previousEntity);
+			}
+		}
+		removed.addAll(previousByKey.values());
+		return new EntityDelta(added, removed, changed, replaced, data);
+	}
+
+	private static boolean isChanged(
+			SpatialEntity2<? extends Geometry> previousEntity,
+			SpatialEntity2<? extends Geometry> entity) {
+		if (EntityFingerprint.hash(previousEntity) != EntityFingerprint
+				.hash(entity)) {
+			return true;
+		}
+		// Equal class and coordinates. Entities matched by their content are
+		// equal as far as the fingerprint can tell, entities matched by their
+		// identity only if their hash code covers their attributes
+		return !EntityFingerprint.hasContentHash(entity.getClass())
+				&& EntityIdentity.get(entity) != null;
+	}
+}
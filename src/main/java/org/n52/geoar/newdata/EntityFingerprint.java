@@ -0,0 +1,93 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Fingerprint of the content of a list of {@link SpatialEntity2}s, to detect
+ * whether refetched data differs from the cached data. Freshly fetched
+ * entities are new objects, so entities are described by their class and
+ * coordinates, and additionally by their hash code if their class implements
+ * one. Independent of the order of the entities.
+ */
+final class EntityFingerprint {
+
+	// Whether entity classes implement hashCode themselves
+	private static final ConcurrentHashMap<Class<?>, Boolean> OWN_HASH_CODE = new ConcurrentHashMap<Class<?>, Boolean>();
+
+	private EntityFingerprint() {
+	}
+
+	static long compute(
+			List<? extends SpatialEntity2<? extends Geometry>> entities) {
+		long fingerprint = entities.size();
+		for (int i = 0, len = entities.size(); i < len; i++) {
+			// Sum of mixed hashes does not depend on the order
+			fingerprint += mix(hash(entities.get(i)));
+		}
+		return fingerprint;
+	}
+
+	/**
+	 * @return Hash of the content of a single entity
+	 */
+	static long hash(SpatialEntity2<? extends Geometry> entity) {
+		long hash = entity.getClass().getName().hashCode();
+		if (hasContentHash(entity.getClass())) {
+			hash = hash * 31 + entity.hashCode();
+		}
+		Geometry geometry = entity.getGeometry();
+		if (geometry != null) {
+			for (Coordinate coordinate : geometry.getCoordinates()) {
+				hash = hash * 31 + Double.doubleToLongBits(coordinate.x);
+				hash = hash * 31 + Double.doubleToLongBits(coordinate.y);
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * @return Whether the hash of entities of the class covers their
+	 *         attributes, i.e. whether the class implements hashCode
+	 */
+	static boolean hasContentHash(Class<?> entityClass) {
+		Boolean ownHashCode = OWN_HASH_CODE.get(entityClass);
+		if (ownHashCode == null) {
+			try {
+				ownHashCode = entityClass.getMethod("hashCode")
+						.getDeclaringClass() != Object.class;
+			} catch (NoSuchMethodException e) {
+				ownHashCode = false;
+			}
+			OWN_HASH_CODE.put(entityClass, ownHashCode);
+		}
+		return ownHashCode;
+	}
+
+	private static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Access to the optional identity of {@link SpatialEntity2}s. Data sources
+ * supply it by a public method "getIdentifier()" of their entity classes,
+ * returning an object which is equal for all versions of the same real
+ * world feature, e.g. a feature id of the remote service. Entity classes
+ * with an identity should implement hashCode over their attributes, otherwise
+ * each refetched version counts as changed, see {@link EntityDelta}. Like
+ * {@link EntityTimeToLive}, this does not depend on the data source API
+ * version a plugin got compiled against.
+ */
+final class EntityIdentity {
+
+	private static final Method[] NO_METHOD = new Method[0];
+	// Identifier method of each entity class, empty if there is none
+	private static final ConcurrentHashMap<Class<?>, Method[]> METHODS = new ConcurrentHashMap<Class<?>, Method[]>();
+	private static final Logger LOG = LoggerFactory
+			.getLogger(EntityIdentity.class);
+
+	private EntityIdentity() {
+	}
+
+	/**
+	 * @return The identifier of the entity, or null if it does not define one
+	 */
+	static Object get(SpatialEntity2<?> entity) {
+		Method[] method = getMethod(entity.getClass());
+		if (method.length == 0) {
+			return null;
+		}
+		try {
+			return method[0].invoke(entity);
+		} catch (IllegalAccessException e) {
+			LOG.warn("Identifier of " + entity.getClass() + " not accessible");
+		} catch (InvocationTargetException e) {
+			LOG.warn("Identifier of " + entity.getClass() + " failed", e);
+		}
+		return null;
+	}
+
+	/**
+	 * @return A key which is equal for all versions of the same entity if it
+	 *         defines an identifier, otherwise for entities with equal content
+	 */
+	static Object getKey(SpatialEntity2<? extends Geometry> entity) {
+		Object identifier = get(entity);
+		if (identifier != null) {
+			return Arrays.asList(entity.getClass(), identifier);
+		}
+		return EntityFingerprint.hash(entity);
+	}
+
+	private static Method[] getMethod(Class<?> entityClass) {
+		Method[] method = METHODS.get(entityClass);
+		if (method == null) {
+			method = NO_METHOD;
+			try {
+				Method identifierMethod = entityClass
+						.getMethod("getIdentifier");
+				if (identifierMethod.getReturnType() != void.class) {
+					method = new Method[] { identifierMethod };
+				}
+			} catch (NoSuchMethodException e) {
+				// No identity
+			}
+			METHODS.put(entityClass, method);
+		}
+		return method;
+	}
+}
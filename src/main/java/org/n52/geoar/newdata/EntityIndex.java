@@ -0,0 +1,347 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.index.ItemVisitor;
+
+/**
+ * Index of cached entities, grouped by the key of the tile they were fetched
+ * for, allowing concurrent access.
+ *
+ * Readers work on immutable {@link Snapshot}s without any locking. Writers
+ * submit {@link Update}s, which get applied to a copy of the current snapshot
+ * while holding the write lock. The resulting snapshot is published
+ * atomically. Updates submitted while another writer holds the lock get
+ * applied together with the updates of that writer in a single batch.
+ *
+ * The number of keys is bounded by the tile limit of the owning
+ * {@link DataCache}, so copying the key map on each batch and scanning all
+ * entries for a query stay cheap compared to the entities of the keys.
+ */
+final class EntityIndex {
+
+	/**
+	 * Modification of the index. Gets applied while holding the write lock of
+	 * the index, possibly by the thread of another writer. A failing update
+	 * does not affect the other updates of its batch, but changes it made to
+	 * the {@link Editor} before failing get published.
+	 */
+	abstract static class Update {
+		// Guarded by the write lock
+		private boolean applied;
+		private Throwable failure;
+
+		abstract void apply(Editor editor);
+	}
+
+	/**
+	 * Unmodifiable list of the first entities of an array. Lists of the
+	 * entries of a key may share their array: appending to the entities of the
+	 * latest entry fills the free end of the array in place, which lists of
+	 * older entries never read. This way appending chunk by chunk does not
+	 * copy all entities for each chunk.
+	 */
+	private static final class EntityList extends
+			AbstractList<SpatialEntity2<? extends Geometry>> implements
+			RandomAccess {
+		private final Object[] elements;
+		private final int size;
+		// Number of used elements of the shared array, guarded by the write
+		// lock
+		private final int[] used;
+
+		private EntityList(Object[] elements, int size, int[] used) {
+			this.elements = elements;
+			this.size = size;
+			this.used = used;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public SpatialEntity2<? extends Geometry> get(int index) {
+			if (index >= size) {
+				throw new IndexOutOfBoundsException();
+			}
+			return (SpatialEntity2<? extends Geometry>) elements[index];
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * @return A list of the entities of this list followed by the
+		 *         specified entities
+		 */
+		private EntityList append(
+				List<? extends SpatialEntity2<? extends Geometry>> entities) {
+			int newSize = size + entities.size();
+			Object[] newElements = elements;
+			int[] newUsed = used;
+			if (used[0] != size || newSize > elements.length) {
+				// Array got extended by another list or is full
+				newElements = new Object[Math.max(newSize, size * 2)];
+				System.arraycopy(elements, 0, newElements, 0, size);
+				newUsed = new int[1];
+			}
+			for (int i = 0; i < entities.size(); i++) {
+				newElements[size + i] = entities.get(i);
+			}
+			newUsed[0] = newSize;
+			return new EntityList(newElements, newSize, newUsed);
+		}
+	}
+
+	/**
+	 * Entities of a single key
+	 */
+	private static final class Entry {
+		private final EntityList entities;
+		// Union of the envelopes of all entities
+		private final Envelope envelope;
+
+		/**
+		 * @param entities
+		 *            Entities of the entry, get copied
+		 */
+		private Entry(List<? extends SpatialEntity2<? extends Geometry>> entities) {
+			Object[] elements = entities.toArray();
+			this.entities = new EntityList(elements, elements.length,
+					new int[] { elements.length });
+			this.envelope = new Envelope();
+			for (SpatialEntity2<? extends Geometry> entity : entities) {
+				envelope.expandToInclude(entity.getEnvelope());
+			}
+		}
+
+		/**
+		 * Creates an entry of the entities of the specified entry followed by
+		 * further entities, without evaluating the envelopes of the existing
+		 * entities again
+		 */
+		private Entry(Entry entry,
+				List<? extends SpatialEntity2<? extends Geometry>> entities) {
+			this.entities = entry.entities.append(entities);
+			this.envelope = new Envelope(entry.envelope);
+			for (SpatialEntity2<? extends Geometry> entity : entities) {
+				envelope.expandToInclude(entity.getEnvelope());
+			}
+		}
+	}
+
+	/**
+	 * Immutable state of the index
+	 */
+	static final class Snapshot {
+		private final Map<Object, Entry> entryMap;
+		private final Entry[] entries;
+
+		private Snapshot(Map<Object, Entry> entryMap) {
+			this.entryMap = entryMap;
+			this.entries = entryMap.values().toArray(
+					new Entry[entryMap.size()]);
+		}
+
+		/**
+		 * Visits all entities of all keys whose entities might intersect the
+		 * specified envelope. Entities cached for several keys get visited
+		 * once per key.
+		 */
+		void query(Envelope envelope, ItemVisitor visitor) {
+			for (Entry entry : entries) {
+				if (!entry.envelope.intersects(envelope)) {
+					continue;
+				}
+				for (SpatialEntity2<? extends Geometry> entity : entry.entities) {
+					visitor.visitItem(entity);
+				}
+			}
+		}
+
+		/**
+		 * @return Unmodifiable list of the entities of the specified key
+		 */
+		List<SpatialEntity2<? extends Geometry>> getEntities(Object key) {
+			Entry entry = entryMap.get(key);
+			if (entry == null) {
+				return Collections.emptyList();
+			}
+			return entry.entities;
+		}
+
+		int getEntryCount() {
+			return entries.length;
+		}
+
+		/**
+		 * @return Union of the envelopes of the entities of an entry
+		 */
+		Envelope getEntryEnvelope(int index) {
+			return entries[index].envelope;
+		}
+
+		List<SpatialEntity2<? extends Geometry>> getEntryEntities(int index) {
+			return entries[index].entities;
+		}
+	}
+
+	/**
+	 * Copy of a {@link Snapshot} to apply {@link Update}s to
+	 */
+	static final class Editor {
+		private final Map<Object, Entry> entryMap;
+
+		private Editor(Snapshot snapshot) {
+			this.entryMap = new HashMap<Object, Entry>(snapshot.entryMap);
+		}
+
+		List<SpatialEntity2<? extends Geometry>> getEntities(Object key) {
+			Entry entry = entryMap.get(key);
+			if (entry == null) {
+				return Collections.emptyList();
+			}
+			return entry.entities;
+		}
+
+		/**
+		 * Replaces the entities of the specified key. The list gets copied.
+		 */
+		void put(Object key,
+				List<? extends SpatialEntity2<? extends Geometry>> entities) {
+			if (entities.isEmpty()) {
+				entryMap.remove(key);
+			} else {
+				entryMap.put(key, new Entry(entities));
+			}
+		}
+
+		/**
+		 * Adds entities to the entities of the specified key, e.g. the next
+		 * chunk of a response being read. The list gets copied. Takes time
+		 * proportional to the added entities on average.
+		 */
+		void append(Object key,
+				List<? extends SpatialEntity2<? extends Geometry>> entities) {
+			Entry entry = entryMap.get(key);
+			if (entry == null) {
+				put(key, entities);
+			} else if (!entities.isEmpty()) {
+				entryMap.put(key, new Entry(entry, entities));
+			}
+		}
+
+		void remove(Object key) {
+			entryMap.remove(key);
+		}
+
+		void clear() {
+			entryMap.clear();
+		}
+	}
+
+	private static final Snapshot EMPTY_SNAPSHOT = new Snapshot(
+			new HashMap<Object, Entry>(0));
+
+	private volatile Snapshot snapshot = EMPTY_SNAPSHOT;
+	private final ConcurrentLinkedQueue<Update> pendingUpdates = new ConcurrentLinkedQueue<Update>();
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	/**
+	 * @return The current state of the index. Never blocks.
+	 */
+	Snapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Applies the specified update and publishes the result. Returns after the
+	 * update is visible to readers. Rethrows any exception the update threw,
+	 * even if it got applied by the thread of another writer.
+	 */
+	void apply(Update update) {
+		pendingUpdates.add(update);
+		Throwable failure;
+		writeLock.lock();
+		try {
+			if (!update.applied) {
+				applyPendingUpdates();
+			}
+			failure = update.failure;
+		} finally {
+			writeLock.unlock();
+		}
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		} else if (failure instanceof Error) {
+			throw (Error) failure;
+		}
+	}
+
+	/**
+	 * Applies all pending updates as a single batch. The updates only get
+	 * marked as applied after publishing their result. Requires holding the
+	 * write lock.
+	 */
+	private void applyPendingUpdates() {
+		List<Update> batch = new ArrayList<Update>();
+		Editor editor = new Editor(snapshot);
+		try {
+			Update pendingUpdate;
+			while ((pendingUpdate = pendingUpdates.poll()) != null) {
+				batch.add(pendingUpdate);
+				try {
+					pendingUpdate.apply(editor);
+				} catch (RuntimeException e) {
+					pendingUpdate.failure = e;
+				} catch (Error e) {
+					pendingUpdate.failure = e;
+				}
+			}
+			snapshot = new Snapshot(editor.entryMap);
+		} catch (RuntimeException e) {
+			failBatch(batch, e);
+		} catch (Error e) {
+			failBatch(batch, e);
+		}
+		for (Update update : batch) {
+			update.applied = true;
+		}
+	}
+
+	/**
+	 * Reports a failure to publish a batch to all of its updates
+	 */
+	private static void failBatch(List<Update> batch, Throwable failure) {
+		for (Update update : batch) {
+			if (update.failure == null) {
+				update.failure = failure;
+			}
+		}
+	}
+}
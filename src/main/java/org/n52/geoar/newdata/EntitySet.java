@@ -0,0 +1,117 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+/**
+ * Hash set of entities using open addressing with linear probing. Used to
+ * deduplicate large numbers of entities while assembling results, without the
+ * entry objects of a {@link java.util.HashSet}.
+ * 
+ * Entities are compared by {@link Object#equals(Object)}, so entities without
+ * an own implementation are compared by identity.
+ */
+final class EntitySet {
+
+	private static final int MIN_CAPACITY = 16;
+
+	private Object[] table;
+	private int size;
+
+	EntitySet() {
+		this(MIN_CAPACITY / 2);
+	}
+
+	/**
+	 * @param expectedSize
+	 *            Number of entities to hold without resizing
+	 */
+	EntitySet(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		table = new Object[capacity];
+	}
+
+	/**
+	 * @param entity
+	 * @return true if the entity was not contained before
+	 */
+	boolean add(Object entity) {
+		int mask = table.length - 1;
+		int index = hash(entity) & mask;
+		Object current;
+		while ((current = table[index]) != null) {
+			if (current == entity || current.equals(entity)) {
+				return false;
+			}
+			index = (index + 1) & mask;
+		}
+
+		table[index] = entity;
+		// Keeps the load factor at 0.5 at most
+		if (++size * 2 > table.length) {
+			resize(table.length << 1);
+		}
+		return true;
+	}
+
+	boolean contains(Object entity) {
+		int mask = table.length - 1;
+		int index = hash(entity) & mask;
+		Object current;
+		while ((current = table[index]) != null) {
+			if (current == entity || current.equals(entity)) {
+				return true;
+			}
+			index = (index + 1) & mask;
+		}
+		return false;
+	}
+
+	int size() {
+		return size;
+	}
+
+	private void resize(int capacity) {
+		Object[] oldTable = table;
+		table = new Object[capacity];
+		int mask = capacity - 1;
+		for (Object entity : oldTable) {
+			if (entity != null) {
+				int index = hash(entity) & mask;
+				while (table[index] != null) {
+					index = (index + 1) & mask;
+				}
+				table[index] = entity;
+			}
+		}
+	}
+
+	/**
+	 * Spreads the bits of hash codes, as identity hash codes and hash codes
+	 * of coordinates tend to cluster
+	 */
+	private static int hash(Object entity) {
+		int h = entity.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Rough estimation of the heap size of cached {@link SpatialEntity2}s. The
+ * values are based on a 32 bit VM and are only meant to compare and limit the
+ * sizes of caches, not to measure them exactly.
+ */
+final class EntitySizeEstimator {
+
+	// Object header, references and the cached envelope of an entity
+	private static final int ENTITY_OVERHEAD = 64;
+	// Geometry object including its internal envelope
+	private static final int GEOMETRY_OVERHEAD = 72;
+	// Coordinate object with three doubles and its array slot
+	private static final int COORDINATE_SIZE = 44;
+	// Quadtree node entry per indexed item
+	private static final int INDEX_ENTRY_SIZE = 24;
+	/**
+	 * Estimated size of a tile without its entities
+	 */
+	static final int TILE_OVERHEAD = 256;
+
+	private EntitySizeEstimator() {
+	}
+
+	static long estimateSize(SpatialEntity2<? extends Geometry> entity) {
+		long size = ENTITY_OVERHEAD + INDEX_ENTRY_SIZE;
+		Geometry geometry = entity.getGeometry();
+		if (geometry != null) {
+			size += GEOMETRY_OVERHEAD * geometry.getNumGeometries()
+					+ COORDINATE_SIZE * geometry.getNumPoints();
+		}
+		return size;
+	}
+
+	static long estimateSize(
+			List<? extends SpatialEntity2<? extends Geometry>> entities) {
+		long size = 0;
+		for (int i = 0, len = entities.size(); i < len; i++) {
+			size += estimateSize(entities.get(i));
+		}
+		return size;
+	}
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Access to the optional time to live of {@link SpatialEntity2}s. Data
+ * sources supply it by a public method "long getTimeToLive()" of their entity
+ * classes, returning the milliseconds an entity stays valid after it got
+ * fetched. This way it does not depend on the data source API version a
+ * plugin got compiled against. Other entities stay valid as long as the data
+ * of their tile.
+ */
+final class EntityTimeToLive {
+
+	private static final Method[] NO_METHOD = new Method[0];
+	// Time to live method of each entity class, empty if there is none
+	private static final ConcurrentHashMap<Class<?>, Method[]> METHODS = new ConcurrentHashMap<Class<?>, Method[]>();
+	private static final Logger LOG = LoggerFactory
+			.getLogger(EntityTimeToLive.class);
+
+	private EntityTimeToLive() {
+	}
+
+	/**
+	 * @return The time to live of the entity in milliseconds, or -1 if it
+	 *         does not define one
+	 */
+	static long get(SpatialEntity2<?> entity) {
+		Method[] method = getMethod(entity.getClass());
+		if (method.length == 0) {
+			return -1;
+		}
+		try {
+			Object timeToLive = method[0].invoke(entity);
+			return timeToLive != null ? Math.max(0,
+					((Number) timeToLive).longValue()) : -1;
+		} catch (IllegalAccessException e) {
+			LOG.warn("Time to live of " + entity.getClass() + " not accessible");
+		} catch (InvocationTargetException e) {
+			LOG.warn("Time to live of " + entity.getClass() + " failed", e);
+		}
+		return -1;
+	}
+
+	private static Method[] getMethod(Class<?> entityClass) {
+		Method[] method = METHODS.get(entityClass);
+		if (method == null) {
+			method = NO_METHOD;
+			try {
+				Method timeToLiveMethod = entityClass.getMethod("getTimeToLive");
+				Class<?> returnType = timeToLiveMethod.getReturnType();
+				if (returnType == long.class || returnType == Long.class) {
+					method = new Method[] { timeToLiveMethod };
+				}
+			} catch (NoSuchMethodException e) {
+				// No time to live
+			}
+			METHODS.put(entityClass, method);
+		}
+		return method;
+	}
+}
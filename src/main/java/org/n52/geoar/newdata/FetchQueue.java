@@ -0,0 +1,498 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Work queue for fetching data, to be used by a
+ * {@link java.util.concurrent.ThreadPoolExecutor}. Hands out the task with the
+ * lowest priority value first. Tasks are kept in a heap per group, ordered by
+ * their priority at the time they got queued. Once a group reports changed
+ * priorities, e.g. because the viewport moved, the priorities of its tasks get
+ * evaluated again on the next take. Obsolete tasks get dropped when they reach
+ * the head of their heap or during that evaluation instead of being searched
+ * and removed on cancellation.
+ * 
+ * Prioritized tasks belong to a {@link Group}, usually one per data source.
+ * Groups limit the number of their tasks executing concurrently, and share the
+ * workers by weighted fair queuing: Each task handed out advances the virtual
+ * time of its group by the inverse of the group weight, and the group with the
+ * lowest virtual time gets served next. Priorities order the tasks within and
+ * across groups of equal virtual time.
+ * 
+ * Tasks not implementing {@link PrioritizedRunnable} get executed before any
+ * prioritized task, in the order of their submission.
+ */
+final class FetchQueue extends AbstractQueue<Runnable> implements
+		BlockingQueue<Runnable> {
+
+	interface PrioritizedRunnable extends Runnable {
+		/**
+		 * @return Priority of this task, lower values get executed first
+		 */
+		double getPriority();
+
+		/**
+		 * Called while the task is queued. An obsolete task gets dropped from
+		 * the queue without being executed.
+		 * 
+		 * @return true if the task is not required anymore
+		 */
+		boolean isObsolete();
+
+		/**
+		 * @return The group of this task, or null to not limit its execution
+		 */
+		Group getGroup();
+	}
+
+	/**
+	 * Tasks sharing a concurrency limit and a share of the workers
+	 */
+	static final class Group {
+		private final int maxConcurrency;
+		private final double weight;
+		// Guarded by the lock of the queue
+		private int running;
+		private double virtualTime;
+		// Incremented whenever the priorities of queued tasks changed
+		private volatile int priorityVersion;
+
+		/**
+		 * @param maxConcurrency
+		 *            Maximum number of tasks of this group executing at once
+		 * @param weight
+		 *            Share of the workers relative to other groups
+		 */
+		Group(int maxConcurrency, double weight) {
+			this.maxConcurrency = Math.max(1, maxConcurrency);
+			this.weight = weight > 0 ? weight : 1;
+		}
+
+		/**
+		 * Makes queues evaluate the priorities of the queued tasks of this
+		 * group again before handing out the next one
+		 */
+		void invalidatePriorities() {
+			priorityVersion++;
+		}
+	}
+
+	/**
+	 * Queued task with the priority it got ordered by
+	 */
+	private static final class Entry implements Comparable<Entry> {
+		private final PrioritizedRunnable task;
+		private final long sequence;
+		private double priority;
+
+		private Entry(PrioritizedRunnable task, double priority, long sequence) {
+			this.task = task;
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Entry other) {
+			int comparison = Double.compare(priority, other.priority);
+			if (comparison != 0) {
+				return comparison;
+			}
+			// Submission order for equal priorities
+			return sequence < other.sequence ? -1
+					: (sequence == other.sequence ? 0 : 1);
+		}
+	}
+
+	/**
+	 * Queued tasks of a group
+	 */
+	private static final class GroupTasks {
+		// null for tasks without a group
+		private final Group group;
+		private final PriorityQueue<Entry> heap = new PriorityQueue<Entry>();
+		private int priorityVersion;
+
+		private GroupTasks(Group group) {
+			this.group = group;
+			this.priorityVersion = group != null ? group.priorityVersion : 0;
+		}
+	}
+
+	/**
+	 * Executes a task of a group and frees its slot afterwards
+	 */
+	private final class GroupTask implements Runnable {
+		private final Runnable task;
+		private final Group group;
+
+		private GroupTask(Runnable task, Group group) {
+			this.task = task;
+			this.group = group;
+		}
+
+		@Override
+		public void run() {
+			try {
+				task.run();
+			} finally {
+				release(group);
+			}
+		}
+	}
+
+	// All fields guarded by lock
+	private final LinkedList<Runnable> plainTasks = new LinkedList<Runnable>();
+	private final Map<Group, GroupTasks> groupTasks = new HashMap<Group, GroupTasks>();
+	private final GroupTasks ungroupedTasks = new GroupTasks(null);
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private int size;
+	private long nextSequence;
+	// Virtual time of the last task handed out
+	private double virtualTime;
+
+	/**
+	 * Finds the group whose head task should be executed next. Requires the
+	 * lock to be held.
+	 * 
+	 * @return The group or null if there is no prioritized task to execute
+	 */
+	private GroupTasks select() {
+		GroupTasks best = getHead(ungroupedTasks) != null ? ungroupedTasks
+				: null;
+		double bestTime = virtualTime;
+		Iterator<GroupTasks> iterator = groupTasks.values().iterator();
+		while (iterator.hasNext()) {
+			GroupTasks tasks = iterator.next();
+			Group group = tasks.group;
+			if (group.running >= group.maxConcurrency) {
+				// Waits for a task of its group to finish
+				continue;
+			}
+			Entry head = getHead(tasks);
+			if (head == null) {
+				iterator.remove();
+				continue;
+			}
+			double time = getStartTime(group);
+			if (best == null || time < bestTime
+					|| (time == bestTime && head.compareTo(best.heap.peek()) < 0)) {
+				best = tasks;
+				bestTime = time;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Evaluates the priorities of the tasks of a group again if they changed,
+	 * and drops obsolete tasks from the head of its heap. Requires the lock to
+	 * be held.
+	 * 
+	 * @return The task of the group to execute next, or null if there is none
+	 */
+	private Entry getHead(GroupTasks tasks) {
+		if (tasks.group != null
+				&& tasks.priorityVersion != tasks.group.priorityVersion) {
+			tasks.priorityVersion = tasks.group.priorityVersion;
+			List<Entry> entries = new ArrayList<Entry>(tasks.heap);
+			tasks.heap.clear();
+			for (Entry entry : entries) {
+				if (entry.task.isObsolete()) {
+					size--;
+				} else {
+					entry.priority = entry.task.getPriority();
+					tasks.heap.add(entry);
+				}
+			}
+		}
+		Entry head;
+		while ((head = tasks.heap.peek()) != null && head.task.isObsolete()) {
+			tasks.heap.poll();
+			size--;
+		}
+		return head;
+	}
+
+	/**
+	 * Virtual time at which the next task of a group would start. Groups
+	 * which were idle do not get credit for the time they did not use.
+	 */
+	private double getStartTime(Group group) {
+		return group != null ? Math.max(group.virtualTime, virtualTime)
+				: virtualTime;
+	}
+
+	/**
+	 * Removes and returns the task to execute next. Requires the lock to be
+	 * held.
+	 * 
+	 * @return The task or null if there is no task to execute
+	 */
+	private Runnable dequeue() {
+		if (!plainTasks.isEmpty()) {
+			size--;
+			return plainTasks.removeFirst();
+		}
+		GroupTasks tasks = select();
+		if (tasks == null) {
+			return null;
+		}
+		Runnable task = tasks.heap.poll().task;
+		size--;
+		Group group = tasks.group;
+		if (group == null) {
+			return task;
+		}
+		if (tasks.heap.isEmpty()) {
+			groupTasks.remove(group);
+		}
+		virtualTime = getStartTime(group);
+		group.virtualTime = virtualTime + 1 / group.weight;
+		group.running++;
+		return new GroupTask(task, group);
+	}
+
+	/**
+	 * Frees the slot of a finished task of a group
+	 */
+	private void release(Group group) {
+		lock.lock();
+		try {
+			group.running--;
+			// Queued tasks of the group might be executable now
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean offer(Runnable task) {
+		if (task == null) {
+			throw new NullPointerException();
+		}
+		PrioritizedRunnable prioritizedTask = null;
+		double priority = 0;
+		if (task instanceof PrioritizedRunnable) {
+			prioritizedTask = (PrioritizedRunnable) task;
+			priority = prioritizedTask.getPriority();
+		}
+		lock.lock();
+		try {
+			if (prioritizedTask == null) {
+				plainTasks.addLast(task);
+			} else {
+				Group group = prioritizedTask.getGroup();
+				GroupTasks tasks = ungroupedTasks;
+				if (group != null) {
+					tasks = groupTasks.get(group);
+					if (tasks == null) {
+						tasks = new GroupTasks(group);
+						groupTasks.put(group, tasks);
+					}
+				}
+				tasks.heap.add(new Entry(prioritizedTask, priority,
+						nextSequence++));
+			}
+			size++;
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void put(Runnable task) {
+		offer(task);
+	}
+
+	@Override
+	public boolean offer(Runnable task, long timeout, TimeUnit unit) {
+		return offer(task);
+	}
+
+	@Override
+	public Runnable take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			Runnable task;
+			while ((task = dequeue()) == null) {
+				notEmpty.await();
+			}
+			return task;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Runnable poll(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			Runnable task;
+			while ((task = dequeue()) == null) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return task;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Runnable poll() {
+		lock.lock();
+		try {
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Runnable peek() {
+		lock.lock();
+		try {
+			if (!plainTasks.isEmpty()) {
+				return plainTasks.getFirst();
+			}
+			GroupTasks tasks = select();
+			return tasks != null ? tasks.heap.peek().task : null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean remove(Object task) {
+		lock.lock();
+		try {
+			if (plainTasks.remove(task) || removeEntry(ungroupedTasks, task)) {
+				size--;
+				return true;
+			}
+			for (GroupTasks tasks : groupTasks.values()) {
+				if (removeEntry(tasks, task)) {
+					size--;
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static boolean removeEntry(GroupTasks tasks, Object task) {
+		Iterator<Entry> iterator = tasks.heap.iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().task == task) {
+				iterator.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int remainingCapacity() {
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public int drainTo(Collection<? super Runnable> collection) {
+		return drainTo(collection, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super Runnable> collection, int maxElements) {
+		lock.lock();
+		try {
+			List<Runnable> drainedTasks = getTasks();
+			int count = Math.min(maxElements, drainedTasks.size());
+			for (int i = 0; i < count; i++) {
+				Runnable task = drainedTasks.get(i);
+				collection.add(task);
+				remove(task);
+			}
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns an iterator over a snapshot of the queued tasks, unprioritized
+	 * tasks first
+	 */
+	@Override
+	public Iterator<Runnable> iterator() {
+		lock.lock();
+		try {
+			return Collections.unmodifiableList(getTasks()).iterator();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return All queued tasks, requires the lock to be held
+	 */
+	private List<Runnable> getTasks() {
+		List<Runnable> tasks = new ArrayList<Runnable>(plainTasks);
+		for (Entry entry : ungroupedTasks.heap) {
+			tasks.add(entry.task);
+		}
+		for (GroupTasks groupQueue : groupTasks.values()) {
+			for (Entry entry : groupQueue.heap) {
+				tasks.add(entry.task);
+			}
+		}
+		return tasks;
+	}
+}
@@ -0,0 +1,277 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fetch state of a cache tile: The callbacks awaiting its data, whether a
+ * fetch of the tile is queued or running, and the {@link Running} fetch
+ * performed for it. A queued fetch without callbacks is obsolete, a running
+ * fetch gets canceled once none of its tiles has callbacks left.
+ * 
+ * The monitor of a fetch state guards the state, owners may guard further
+ * fields of their tile by it.
+ */
+final class FetchState<C> {
+
+	private static final int IDLE = 0;
+	private static final int QUEUED = 1;
+	private static final int RUNNING = 2;
+
+	/**
+	 * A fetch running for one or several tiles on the current thread. Serves
+	 * as future of these tiles: Once none of them has callbacks left, the HTTP
+	 * requests of the fetching thread on the shared client get aborted, see
+	 * {@link HttpRequestTracker}, and a running request gets interrupted.
+	 * Interrupts are limited to requests, as they would close the channels of
+	 * the disk cache.
+	 */
+	static class Running {
+		private final FetchState<?>[] states;
+		private final Thread thread = Thread.currentThread();
+		// Guarded by this
+		private boolean canceled;
+		private boolean requesting;
+		private boolean finished;
+		private HttpRequestTracker.Tracking tracking;
+
+		Running(FetchState<?>... states) {
+			this.states = states;
+			for (FetchState<?> state : states) {
+				state.running = this;
+			}
+			// Callbacks might have been removed before
+			cancelIfUnused();
+		}
+
+		synchronized boolean isCanceled() {
+			return canceled;
+		}
+
+		/**
+		 * Cancels this fetch if none of its tiles has callbacks left
+		 */
+		void cancelIfUnused() {
+			for (FetchState<?> state : states) {
+				if (state.hasCallbacks()) {
+					return;
+				}
+			}
+			synchronized (this) {
+				if (canceled || finished) {
+					// The thread might already perform other work
+					return;
+				}
+				canceled = true;
+				if (requesting) {
+					abortRequest();
+					onCanceled();
+				}
+			}
+		}
+
+		/**
+		 * Called while holding the lock of this fetch once it got canceled
+		 * during a request
+		 */
+		void onCanceled() {
+		}
+
+		/**
+		 * Starts an interruptible request on the fetching thread, tracking its
+		 * HTTP requests
+		 * 
+		 * @return false if this fetch got canceled already
+		 */
+		synchronized boolean beginRequest() {
+			if (canceled) {
+				return false;
+			}
+			requesting = true;
+			tracking = HttpRequestTracker.begin();
+			return true;
+		}
+
+		/**
+		 * Aborts the HTTP requests of the running request and interrupts the
+		 * fetching thread. Requires the lock of this fetch.
+		 */
+		void abortRequest() {
+			tracking.abort();
+			thread.interrupt();
+		}
+
+		/**
+		 * Ends the request started by {@link #beginRequest()}, has to be
+		 * called by the fetching thread. Clears an interrupt of canceling.
+		 * 
+		 * @return true if this fetch got canceled
+		 */
+		synchronized boolean endRequest() {
+			requesting = false;
+			tracking.end();
+			tracking = null;
+			if (canceled) {
+				Thread.interrupted();
+			}
+			return canceled;
+		}
+
+		/**
+		 * Has to be called by the fetching thread after the fetch
+		 */
+		void finish() {
+			for (FetchState<?> state : states) {
+				if (state.running == this) {
+					state.running = null;
+				}
+			}
+			synchronized (this) {
+				finished = true;
+			}
+		}
+	}
+
+	private final List<C> callbacks = new ArrayList<C>();
+	private int state = IDLE;
+	// Fetch currently performed for the tile, if any
+	private volatile Running running;
+
+	/**
+	 * Adds a callback awaiting the data of the tile
+	 * 
+	 * @return true if a fetch of the tile has to be queued
+	 */
+	synchronized boolean addCallback(C callback) {
+		callbacks.add(callback);
+		if (state == IDLE) {
+			// A queued fetch which is about to be dropped gets reused
+			state = QUEUED;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Removes a callback. A queued fetch without callbacks gets dropped by
+	 * the queue, a running fetch gets canceled.
+	 */
+	void removeCallback(C callback) {
+		Running fetch = null;
+		synchronized (this) {
+			callbacks.remove(callback);
+			if (callbacks.isEmpty()) {
+				fetch = running;
+			}
+		}
+		if (fetch != null) {
+			fetch.cancelIfUnused();
+		}
+	}
+
+	synchronized boolean hasCallbacks() {
+		return !callbacks.isEmpty();
+	}
+
+	synchronized boolean isRunning() {
+		return state == RUNNING;
+	}
+
+	/**
+	 * @return The fetch currently performed for the tile, or null
+	 */
+	Running getRunning() {
+		return running;
+	}
+
+	/**
+	 * Removes all callbacks to answer them, the tile becomes idle
+	 * 
+	 * @return The removed callbacks
+	 */
+	synchronized List<C> takeCallbacks() {
+		List<C> takenCallbacks = new ArrayList<C>(callbacks);
+		callbacks.clear();
+		state = IDLE;
+		return takenCallbacks;
+	}
+
+	/**
+	 * Marks a queued fetch as running
+	 * 
+	 * @return false if the fetch is not required anymore or already running
+	 */
+	synchronized boolean beginFetch() {
+		if (state != QUEUED) {
+			return false;
+		}
+		if (callbacks.isEmpty()) {
+			state = IDLE;
+			return false;
+		}
+		state = RUNNING;
+		return true;
+	}
+
+	/**
+	 * @return true if a queued fetch can be dropped, as all callbacks got
+	 *         removed or the tile got fetched otherwise
+	 */
+	synchronized boolean isFetchObsolete() {
+		if (state != QUEUED) {
+			return true;
+		}
+		if (callbacks.isEmpty()) {
+			state = IDLE;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Marks a running fetch as queued again, e.g. to retry it later
+	 * 
+	 * @return false if no fetch is running
+	 */
+	synchronized boolean requeue() {
+		if (state != RUNNING) {
+			return false;
+		}
+		// Keeps the tile from being queued twice meanwhile
+		state = QUEUED;
+		return true;
+	}
+
+	/**
+	 * Ends a canceled running fetch. The tile becomes idle, unless callbacks
+	 * got added meanwhile.
+	 * 
+	 * @return true if the fetch has to be queued again
+	 */
+	synchronized boolean endCanceledFetch() {
+		if (state != RUNNING) {
+			return false;
+		}
+		if (callbacks.isEmpty()) {
+			state = IDLE;
+			return false;
+		}
+		state = QUEUED;
+		return true;
+	}
+}
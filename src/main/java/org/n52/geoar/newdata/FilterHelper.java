@@ -0,0 +1,458 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+import org.n52.geoar.newdata.Annotations.Setting;
+import org.n52.geoar.utils.GeoLocationRect;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Helper methods to compare {@link Filter}s and other settings objects of
+ * data sources independently of their actual implementation.
+ * 
+ * Data sources can declare range fields of their filters to allow
+ * {@link DataCache} to reuse cached data after filter changes, see
+ * {@link DataSourceHolder#getFilterRanges()}. Changes of any other field make
+ * filters incomparable. Bound values have to be {@link Number}s,
+ * {@link Date}s or {@link Calendar}s, null means unbounded. Filters can
+ * additionally provide a public method <code>boolean accept(SpatialEntity2
+ * entity)</code> to evaluate a filter on already fetched entities.
+ */
+public final class FilterHelper {
+
+	/**
+	 * Relation of the results of a new filter to those of a previous filter
+	 */
+	public enum FilterRelation {
+		/**
+		 * Both filters select the same entities
+		 */
+		EQUAL,
+		/**
+		 * The new filter selects a subset of the previous entities
+		 */
+		NARROWER,
+		/**
+		 * The new filter selects a superset of the previous entities
+		 */
+		WIDER,
+		/**
+		 * The filters are not comparable
+		 */
+		DIFFERENT
+	}
+
+	/**
+	 * Result of comparing two filters
+	 */
+	public static class FilterChange {
+		private static final FilterChange DIFFERENT = new FilterChange(
+				FilterRelation.DIFFERENT, null);
+		private static final FilterChange EQUAL = new FilterChange(
+				FilterRelation.EQUAL, null);
+		private static final FilterChange NARROWER = new FilterChange(
+				FilterRelation.NARROWER, null);
+
+		private final FilterRelation relation;
+		private final List<Filter> deltaFilters;
+
+		private FilterChange(FilterRelation relation, List<Filter> deltaFilters) {
+			this.relation = relation;
+			this.deltaFilters = deltaFilters;
+		}
+
+		public FilterRelation getRelation() {
+			return relation;
+		}
+
+		/**
+		 * Returns filters which together select exactly the entities selected
+		 * by the new but not by the previous filter, plus possibly some
+		 * entities at the range borders.
+		 * 
+		 * @return The delta filters or null if the relation is not
+		 *         {@link FilterRelation#WIDER} or if the delta can not be
+		 *         expressed by the filter, e.g. because a range has no
+		 *         counterpart bound
+		 */
+		public List<Filter> getDeltaFilters() {
+			return deltaFilters;
+		}
+	}
+
+	/**
+	 * Evaluates a filter on a single entity
+	 */
+	public interface EntityPredicate {
+		boolean accept(SpatialEntity2<? extends Geometry> entity);
+	}
+
+	private static final int BOUND_NONE = 0;
+	private static final int BOUND_LOWER = 1;
+	private static final int BOUND_UPPER = 2;
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private static final Comparator<Field> FIELD_NAME_COMPARATOR = new Comparator<Field>() {
+		@Override
+		public int compare(Field lhs, Field rhs) {
+			return lhs.getName().compareTo(rhs.getName());
+		}
+	};
+
+	private FilterHelper() {
+	}
+
+	/**
+	 * Returns all fields of a settings object which contribute to its state,
+	 * i.e. all non static and non transient fields of its class hierarchy
+	 * except its bounding box, sorted by name.
+	 * 
+	 * @param settingsClass
+	 * @return
+	 */
+	static List<Field> getStateFields(Class<?> settingsClass) {
+		List<Field> fields = new ArrayList<Field>();
+		Class<?> currentClass = settingsClass;
+		while (currentClass != null && currentClass != Object.class) {
+			for (Field field : currentClass.getDeclaredFields()) {
+				int modifiers = field.getModifiers();
+				if (Modifier.isStatic(modifiers)
+						|| Modifier.isTransient(modifiers)
+						|| GeoLocationRect.class.isAssignableFrom(field
+								.getType())) {
+					continue;
+				}
+				field.setAccessible(true);
+				fields.add(field);
+			}
+			currentClass = currentClass.getSuperclass();
+		}
+		Collections.sort(fields, FIELD_NAME_COMPARATOR);
+		return fields;
+	}
+
+	/**
+	 * Computes a hash of the state of a settings object, e.g. a {@link Filter}
+	 * or a {@link DataSource}. The hash is independent of the bounding box and
+	 * stable across application starts, so that it can be used as a key for
+	 * persisted data.
+	 * 
+	 * @param settingsObject
+	 * @return
+	 */
+	public static long getCanonicalHash(Object settingsObject) {
+		long hash = FNV_OFFSET_BASIS;
+		if (settingsObject == null) {
+			return hash;
+		}
+		hash = hash(hash, settingsObject.getClass().getName());
+		for (Field field : getStateFields(settingsObject.getClass())) {
+			hash = hash(hash, field.getName());
+			try {
+				hash = hash(hash, toCanonicalString(field.get(settingsObject)));
+			} catch (IllegalAccessException e) {
+				throw new RuntimeException("Field " + field.getName()
+						+ " not accessible");
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * Computes a hash of all {@link Setting} fields of a settings object, e.g.
+	 * of an instance of a {@link DataSource}. Like
+	 * {@link #getCanonicalHash(Object)} the hash is stable across application
+	 * starts.
+	 * 
+	 * @param settingsObject
+	 * @return
+	 */
+	public static long getSettingsHash(Object settingsObject) {
+		long hash = FNV_OFFSET_BASIS;
+		for (Field field : getStateFields(settingsObject.getClass())) {
+			if (!field.isAnnotationPresent(Setting.class)) {
+				continue;
+			}
+			hash = hash(hash, field.getName());
+			try {
+				hash = hash(hash, toCanonicalString(field.get(settingsObject)));
+			} catch (IllegalAccessException e) {
+				throw new RuntimeException("Field " + field.getName()
+						+ " not accessible");
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * Compares a new filter to a previous one based on their declared range
+	 * fields, see {@link FilterHelper}. Any change of a field which is not a
+	 * declared bound makes the filters {@link FilterRelation#DIFFERENT}.
+	 * 
+	 * @param previousFilter
+	 * @param newFilter
+	 * @param ranges
+	 *            Declared ranges, see {@link DataSourceHolder#getFilterRanges()}
+	 * @return
+	 */
+	public static FilterChange compareFilters(Filter previousFilter,
+			Filter newFilter, String[] ranges) {
+		if (previousFilter == null || newFilter == null
+				|| previousFilter.getClass() != newFilter.getClass()) {
+			return FilterChange.DIFFERENT;
+		}
+
+		List<Field> fields = getStateFields(newFilter.getClass());
+		List<Field> widenedFields = new ArrayList<Field>();
+		boolean narrowed = false;
+		try {
+			for (Field field : fields) {
+				Object previousValue = field.get(previousFilter);
+				Object newValue = field.get(newFilter);
+				if (toCanonicalString(previousValue).equals(
+						toCanonicalString(newValue))) {
+					continue;
+				}
+
+				int boundType = getBoundType(field.getName(), ranges);
+				if (boundType == BOUND_NONE
+						|| !isBoundValue(previousValue)
+						|| !isBoundValue(newValue)) {
+					return FilterChange.DIFFERENT;
+				}
+
+				boolean widened;
+				if (previousValue == null) {
+					// unbounded before
+					widened = false;
+				} else if (newValue == null) {
+					// unbounded now
+					widened = true;
+				} else {
+					int comparison = compareBoundValues(newValue,
+							previousValue);
+					widened = boundType == BOUND_LOWER ? comparison < 0
+							: comparison > 0;
+				}
+
+				if (widened) {
+					widenedFields.add(field);
+				} else {
+					narrowed = true;
+				}
+			}
+		} catch (IllegalAccessException e) {
+			return FilterChange.DIFFERENT;
+		}
+
+		if (narrowed) {
+			return widenedFields.isEmpty() ? FilterChange.NARROWER
+					: FilterChange.DIFFERENT;
+		} else if (widenedFields.isEmpty()) {
+			return FilterChange.EQUAL;
+		}
+
+		return new FilterChange(FilterRelation.WIDER, createDeltaFilters(
+				previousFilter, newFilter, fields, widenedFields, ranges));
+	}
+
+	/**
+	 * Creates a filter for each widened bound which selects the range between
+	 * its new and its previous value. All other fields keep their new values,
+	 * so that the union of the resulting filters covers the whole difference.
+	 * 
+	 * @return the filters or null if a widened bound has no counterpart
+	 */
+	private static List<Filter> createDeltaFilters(Filter previousFilter,
+			Filter newFilter, List<Field> fields, List<Field> widenedFields,
+			String[] ranges) {
+		List<Filter> deltaFilters = new ArrayList<Filter>(widenedFields.size());
+		try {
+			for (Field widenedField : widenedFields) {
+				Field counterpartField = getCounterpartField(widenedField,
+						fields, ranges);
+				if (counterpartField == null) {
+					return null;
+				}
+				Filter deltaFilter = newFilter.clone();
+				counterpartField.set(deltaFilter,
+						widenedField.get(previousFilter));
+				deltaFilters.add(deltaFilter);
+			}
+		} catch (IllegalAccessException e) {
+			return null;
+		} catch (IllegalArgumentException e) {
+			// Bounds of different types
+			return null;
+		}
+		return deltaFilters;
+	}
+
+	/**
+	 * Returns a predicate to evaluate the specified filter on entities, if the
+	 * filter declares an accept method
+	 * 
+	 * @param filter
+	 * @return the predicate or null
+	 */
+	public static EntityPredicate getEntityPredicate(final Filter filter) {
+		if (filter == null) {
+			return null;
+		}
+		for (final Method method : filter.getClass().getMethods()) {
+			Class<?>[] parameterTypes = method.getParameterTypes();
+			if (!method.getName().equals("accept")
+					|| parameterTypes.length != 1
+					|| !parameterTypes[0]
+							.isAssignableFrom(SpatialEntity2.class)
+					|| (method.getReturnType() != boolean.class && method
+							.getReturnType() != Boolean.class)) {
+				continue;
+			}
+
+			return new EntityPredicate() {
+				@Override
+				public boolean accept(SpatialEntity2<? extends Geometry> entity) {
+					try {
+						return Boolean.TRUE.equals(method.invoke(filter, entity));
+					} catch (IllegalAccessException e) {
+						return true;
+					} catch (InvocationTargetException e) {
+						// Do not hide data because of a faulty filter
+						return true;
+					}
+				}
+			};
+		}
+		return null;
+	}
+
+	private static int getBoundType(String fieldName, String[] ranges) {
+		for (String range : ranges) {
+			String[] bounds = range.split(",");
+			if (bounds.length != 2) {
+				continue;
+			}
+			if (bounds[0].trim().equals(fieldName)) {
+				return BOUND_LOWER;
+			} else if (bounds[1].trim().equals(fieldName)) {
+				return BOUND_UPPER;
+			}
+		}
+		return BOUND_NONE;
+	}
+
+	/**
+	 * Finds the field for the other end of the declared range of a bound
+	 * field, e.g. "maxValue" for "minValue"
+	 */
+	private static Field getCounterpartField(Field boundField,
+			List<Field> fields, String[] ranges) {
+		String name = boundField.getName();
+		for (String range : ranges) {
+			String[] bounds = range.split(",");
+			if (bounds.length != 2) {
+				continue;
+			}
+			String counterpart;
+			if (bounds[0].trim().equals(name)) {
+				counterpart = bounds[1].trim();
+			} else if (bounds[1].trim().equals(name)) {
+				counterpart = bounds[0].trim();
+			} else {
+				continue;
+			}
+			for (Field field : fields) {
+				if (field.getName().equals(counterpart)) {
+					return field;
+				}
+			}
+		}
+		return null;
+	}
+
+	private static boolean isBoundValue(Object value) {
+		return value == null || value instanceof Number
+				|| value instanceof Date || value instanceof Calendar;
+	}
+
+	private static int compareBoundValues(Object lhs, Object rhs) {
+		if (lhs instanceof Number && rhs instanceof Number) {
+			return Double.compare(((Number) lhs).doubleValue(),
+					((Number) rhs).doubleValue());
+		}
+		return Long.valueOf(toMillis(lhs)).compareTo(toMillis(rhs));
+	}
+
+	private static long toMillis(Object value) {
+		if (value instanceof Calendar) {
+			return ((Calendar) value).getTimeInMillis();
+		} else if (value instanceof Date) {
+			return ((Date) value).getTime();
+		}
+		throw new IllegalArgumentException("Not a time value " + value);
+	}
+
+	/**
+	 * Returns a representation of a field value which does not depend on
+	 * object identity or the default time zone
+	 */
+	static String toCanonicalString(Object value) {
+		if (value == null) {
+			return "null";
+		} else if (value instanceof Calendar) {
+			return Long.toString(((Calendar) value).getTimeInMillis());
+		} else if (value instanceof Date) {
+			return Long.toString(((Date) value).getTime());
+		} else if (value instanceof Enum<?>) {
+			return ((Enum<?>) value).name();
+		} else if (value.getClass().isArray()) {
+			StringBuilder builder = new StringBuilder("[");
+			for (int i = 0, len = Array.getLength(value); i < len; i++) {
+				builder.append(toCanonicalString(Array.get(value, i))).append(
+						',');
+			}
+			return builder.append(']').toString();
+		}
+		return value.toString();
+	}
+
+	private static long hash(long hash, String value) {
+		for (int i = 0, len = value.length(); i < len; i++) {
+			hash ^= value.charAt(i);
+			hash *= FNV_PRIME;
+		}
+		// Separator to distinguish "ab","c" from "a","bc"
+		hash ^= 0xff;
+		hash *= FNV_PRIME;
+		return hash;
+	}
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.client.methods.AbortableHttpRequest;
+
+/**
+ * Tracks the HTTP requests a thread executes on the shared HTTP client of
+ * {@link PluginLoader#getSharedHttpClient()}. This allows to abort the
+ * requests of a data source from another thread, even while their responses
+ * are still being read.
+ */
+final class HttpRequestTracker {
+
+	/**
+	 * Requests of a single thread, from {@link #begin()} until
+	 * {@link #end()}
+	 */
+	static final class Tracking {
+		private final Thread thread = Thread.currentThread();
+		private final List<AbortableHttpRequest> requests = new ArrayList<AbortableHttpRequest>();
+		private boolean aborted;
+
+		private synchronized void add(AbortableHttpRequest request) {
+			if (aborted) {
+				// Requests started after aborting fail right away
+				request.abort();
+			} else {
+				requests.add(request);
+			}
+		}
+
+		/**
+		 * Aborts all tracked requests, and all further requests of the thread
+		 * until the tracking ends
+		 */
+		synchronized void abort() {
+			if (aborted) {
+				return;
+			}
+			aborted = true;
+			for (AbortableHttpRequest request : requests) {
+				request.abort();
+			}
+			requests.clear();
+		}
+
+		/**
+		 * Stops tracking, has to be called by the tracked thread
+		 */
+		void end() {
+			TRACKINGS.remove(thread, this);
+			synchronized (this) {
+				requests.clear();
+			}
+		}
+	}
+
+	private static final ConcurrentHashMap<Thread, Tracking> TRACKINGS = new ConcurrentHashMap<Thread, Tracking>();
+
+	private HttpRequestTracker() {
+	}
+
+	/**
+	 * Starts tracking the requests of the current thread
+	 */
+	static Tracking begin() {
+		Tracking tracking = new Tracking();
+		TRACKINGS.put(tracking.thread, tracking);
+		return tracking;
+	}
+
+	/**
+	 * Called by the shared HTTP client for each request it executes
+	 */
+	static void track(HttpRequest request) {
+		if (!(request instanceof AbortableHttpRequest)) {
+			return;
+		}
+		Tracking tracking = TRACKINGS.get(Thread.currentThread());
+		if (tracking != null) {
+			tracking.add((AbortableHttpRequest) request);
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+import java.util.Arrays;
+
+/**
+ * Latency distribution of the most recent requests to a data source, to
+ * derive percentiles from while requests are running.
+ */
+final class LatencyTracker {
+
+	private static final int WINDOW_SIZE = 128;
+	// Percentiles of fewer samples are not meaningful
+	private static final int MIN_SAMPLES = 20;
+
+	// Ring buffer of the latest samples
+	private final long[] samples = new long[WINDOW_SIZE];
+	private int count;
+	private int next;
+
+	synchronized void record(long latency) {
+		samples[next] = latency;
+		next = (next + 1) % WINDOW_SIZE;
+		count = Math.min(count + 1, WINDOW_SIZE);
+	}
+
+	/**
+	 * @param percentile
+	 *            Percentile, from 1 to 100
+	 * @return The latency in milliseconds below which the specified share of
+	 *         the recent requests completed, or -1 if there are too few
+	 *         samples yet
+	 */
+	synchronized long getPercentile(int percentile) {
+		if (count < MIN_SAMPLES) {
+			return -1;
+		}
+		long[] sorted = Arrays.copyOf(samples, count);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+		return sorted[Math.max(0, Math.min(count - 1, index))];
+	}
+
+	/**
+	 * @return Mean latency of the recent requests slower than the specified
+	 *         threshold, or the threshold itself if there are none
+	 */
+	synchronized long getTailMean(long threshold) {
+		long sum = 0;
+		int tailCount = 0;
+		for (int i = 0; i < count; i++) {
+			if (samples[i] > threshold) {
+				sum += samples[i];
+				tailCount++;
+			}
+		}
+		return tailCount == 0 ? threshold : sum / tailCount;
+	}
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import org.n52.geoar.newdata.FilterHelper.EntityPredicate;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Best-first search for the cached entities nearest to a location. Returns
+ * entities lazily in ascending distance: the entries of the entity index are
+ * queued by the minimum distance of their envelopes, and the entities of an
+ * entry only get queued once the entry is the nearest candidate. An entity is
+ * returned as soon as no queued candidate can be nearer.
+ * 
+ * Distances are in meters, measured to the envelopes of the entities using
+ * an equirectangular approximation around the location, which is accurate
+ * for the short distances AR views are interested in. Works on a snapshot of
+ * the cache, so that later changes of the cache are not visible.
+ */
+public final class NearestEntityIterator implements
+		Iterator<SpatialEntity2<? extends Geometry>> {
+
+	private static final double METERS_PER_DEGREE = 111320;
+	private static final Comparator<Candidate> DISTANCE_COMPARATOR = new Comparator<Candidate>() {
+		@Override
+		public int compare(Candidate lhs, Candidate rhs) {
+			return Double.compare(lhs.distance, rhs.distance);
+		}
+	};
+
+	/**
+	 * Entry of the index or single entity queued by its minimum distance
+	 */
+	private static final class Candidate {
+		private final double distance;
+		// Index of the entry, -1 for an entity
+		private final int entryIndex;
+		private final SpatialEntity2<? extends Geometry> entity;
+
+		private Candidate(double distance, int entryIndex,
+				SpatialEntity2<? extends Geometry> entity) {
+			this.distance = distance;
+			this.entryIndex = entryIndex;
+			this.entity = entity;
+		}
+	}
+
+	private final EntityIndex.Snapshot snapshot;
+	private final double latitude;
+	private final double longitude;
+	// Meters per degree of longitude at the location
+	private final double longitudeScale;
+	private final double maxDistance;
+	private final EntityPredicate filterPredicate;
+	private final EntityPredicate predicate;
+	private final PriorityQueue<Candidate> queue;
+	// Entities cached for several tiles get returned once
+	private final EntitySet visitedEntities = new EntitySet();
+	private Candidate next;
+	private double distance = Double.NaN;
+
+	/**
+	 * @param snapshot
+	 * @param latitude
+	 * @param longitude
+	 * @param maxDistance
+	 *            Maximum distance in meters
+	 * @param filterPredicate
+	 *            Predicate of the current filter of the cache, or null
+	 * @param predicate
+	 *            Additional predicate of the caller, or null
+	 */
+	NearestEntityIterator(EntityIndex.Snapshot snapshot, double latitude,
+			double longitude, double maxDistance,
+			EntityPredicate filterPredicate, EntityPredicate predicate) {
+		this.snapshot = snapshot;
+		this.latitude = latitude;
+		this.longitude = longitude;
+		this.longitudeScale = METERS_PER_DEGREE
+				* Math.cos(Math.toRadians(latitude));
+		this.maxDistance = maxDistance;
+		this.filterPredicate = filterPredicate;
+		this.predicate = predicate;
+
+		int entryCount = snapshot.getEntryCount();
+		queue = new PriorityQueue<Candidate>(Math.max(1, entryCount),
+				DISTANCE_COMPARATOR);
+		for (int i = 0; i < entryCount; i++) {
+			double entryDistance = getDistance(snapshot.getEntryEnvelope(i));
+			if (entryDistance <= maxDistance) {
+				queue.add(new Candidate(entryDistance, i, null));
+			}
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next == null) {
+			next = findNext();
+		}
+		return next != null;
+	}
+
+	@Override
+	public SpatialEntity2<? extends Geometry> next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		Candidate candidate = next;
+		next = null;
+		distance = candidate.distance;
+		return candidate.entity;
+	}
+
+	/**
+	 * @return The distance in meters of the entity last returned by
+	 *         {@link #next()}
+	 */
+	public double getDistance() {
+		return distance;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	private Candidate findNext() {
+		Candidate candidate;
+		while ((candidate = queue.poll()) != null) {
+			if (candidate.entity == null) {
+				// Nearest candidate is an entry, expand it
+				List<SpatialEntity2<? extends Geometry>> entities = snapshot
+						.getEntryEntities(candidate.entryIndex);
+				for (int i = 0, len = entities.size(); i < len; i++) {
+					SpatialEntity2<? extends Geometry> entity = entities.get(i);
+					double entityDistance = getDistance(entity.getEnvelope());
+					if (entityDistance <= maxDistance) {
+						queue.add(new Candidate(entityDistance, -1, entity));
+					}
+				}
+				continue;
+			}
+			SpatialEntity2<? extends Geometry> entity = candidate.entity;
+			// Predicates only get evaluated for entities in result order
+			if (visitedEntities.add(entity)
+					&& (filterPredicate == null || filterPredicate
+							.accept(entity))
+					&& (predicate == null || predicate.accept(entity))) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return Minimum distance in meters between the location and the
+	 *         envelope
+	 */
+	private double getDistance(Envelope envelope) {
+		double dx = 0;
+		if (longitude < envelope.getMinX()) {
+			dx = envelope.getMinX() - longitude;
+		} else if (longitude > envelope.getMaxX()) {
+			dx = longitude - envelope.getMaxX();
+		}
+		double dy = 0;
+		if (latitude < envelope.getMinY()) {
+			dy = envelope.getMinY() - latitude;
+		} else if (latitude > envelope.getMaxY()) {
+			dy = latitude - envelope.getMaxY();
+		}
+		dx *= longitudeScale;
+		dy *= METERS_PER_DEGREE;
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+}
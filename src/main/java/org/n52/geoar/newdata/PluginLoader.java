@@ -33,7 +33,19 @@ import java.util.zip.ZipFile;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
+import org.apache.http.ConnectionReuseStrategy;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.AuthenticationHandler;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.client.RedirectHandler;
+import org.apache.http.client.RequestDirector;
+import org.apache.http.client.UserTokenHandler;
 import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoutePlanner;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
@@ -43,6 +55,9 @@ import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpProcessor;
+import org.apache.http.protocol.HttpRequestExecutor;
 import org.n52.geoar.GeoARApplication;
 import org.n52.geoar.ar.view.IntroController;
 import org.n52.geoar.newdata.CheckList.OnCheckedChangedListener;
@@ -145,7 +160,9 @@ public class PluginLoader {
 
 	/**
 	 * Returns a thread safe {@link DefaultHttpClient} instance to be reused
-	 * among different parts of the application
+	 * among different parts of the application. Its requests get tracked by
+	 * {@link HttpRequestTracker}, so that the data cache can abort requests of
+	 * canceled fetches.
 	 * 
 	 * @return
 	 */
@@ -162,7 +179,36 @@ public class PluginLoader {
 			HttpConnectionParams.setConnectionTimeout(httpParameters, 20000);
 			ClientConnectionManager cm = new ThreadSafeClientConnManager(
 					httpParameters, registry);
-			mHttpClient = new DefaultHttpClient(cm, httpParameters);
+			mHttpClient = new DefaultHttpClient(cm, httpParameters) {
+				@Override
+				protected RequestDirector createClientRequestDirector(
+						HttpRequestExecutor requestExec,
+						ClientConnectionManager conman,
+						ConnectionReuseStrategy reustrat,
+						ConnectionKeepAliveStrategy kastrat,
+						HttpRoutePlanner rouplan, HttpProcessor httpProcessor,
+						HttpRequestRetryHandler retryHandler,
+						RedirectHandler redirectHandler,
+						AuthenticationHandler targetAuthHandler,
+						AuthenticationHandler proxyAuthHandler,
+						UserTokenHandler stateHandler, HttpParams params) {
+					final RequestDirector director = super
+							.createClientRequestDirector(requestExec, conman,
+									reustrat, kastrat, rouplan, httpProcessor,
+									retryHandler, redirectHandler,
+									targetAuthHandler, proxyAuthHandler,
+									stateHandler, params);
+					return new RequestDirector() {
+						@Override
+						public HttpResponse execute(HttpHost target,
+								HttpRequest request, HttpContext context)
+								throws HttpException, IOException {
+							HttpRequestTracker.track(request);
+							return director.execute(target, request, context);
+						}
+					};
+				}
+			};
 		}
 
 		return mHttpClient;
@@ -42,7 +42,8 @@ public class PluginStateInputStream extends ObjectInputStream {
 	protected Class<?> resolveClass(ObjectStreamClass osClass)
 			throws IOException, ClassNotFoundException {
 		if (pluginClassLoader != null) {
-			return pluginClassLoader.loadClass(osClass.getName());
+			// Class.forName also resolves array classes
+			return Class.forName(osClass.getName(), false, pluginClassLoader);
 		} else {
 			return super.resolveClass(osClass);
 		}
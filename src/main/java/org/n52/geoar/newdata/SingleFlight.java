@@ -0,0 +1,199 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Process wide registry of running tile requests. Ensures that concurrent
+ * requests for the same tile, or for a tile contained in a tile currently
+ * requested, share a single call to {@link DataSource#getMeasurements(Filter)}
+ * , even across different {@link DataCache}s of equally configured data
+ * source instances.
+ * 
+ * Requests are identified by a data source key, the query hash of filter and
+ * settings and the {@link Tile}.
+ */
+final class SingleFlight {
+
+	/**
+	 * Receives the result of a flight joined by
+	 * {@link SingleFlight#join(String, long, Tile, FlightListener)}
+	 */
+	interface FlightListener {
+		/**
+		 * Called with the data of a completed flight. The data must not be
+		 * modified.
+		 * 
+		 * @param data
+		 * @param flightTile
+		 *            The tile requested by the flight, which contains the
+		 *            tile of the listener
+		 */
+		void onFlightCompleted(
+				List<? extends SpatialEntity2<? extends Geometry>> data,
+				Tile flightTile);
+
+		void onFlightFailed(Exception e);
+	}
+
+	private static final class FlightKey {
+		private final String sourceKey;
+		private final long queryHash;
+		private final int x;
+		private final int y;
+		private final byte zoom;
+
+		private FlightKey(String sourceKey, long queryHash, int x, int y,
+				byte zoom) {
+			this.sourceKey = sourceKey;
+			this.queryHash = queryHash;
+			this.x = x;
+			this.y = y;
+			this.zoom = zoom;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = sourceKey.hashCode();
+			result = 31 * result + (int) (queryHash ^ (queryHash >>> 32));
+			result = 31 * result + x;
+			result = 31 * result + y;
+			return 31 * result + zoom;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof FlightKey)) {
+				return false;
+			}
+			FlightKey other = (FlightKey) o;
+			return queryHash == other.queryHash && x == other.x
+					&& y == other.y && zoom == other.zoom
+					&& sourceKey.equals(other.sourceKey);
+		}
+	}
+
+	/**
+	 * A running request. The caller of
+	 * {@link SingleFlight#join(String, long, Tile, FlightListener)} which
+	 * received this object performs the request and has to finally call
+	 * {@link #complete(List)} or {@link #fail(Exception)}. Only the first of
+	 * these calls reaches the listeners.
+	 */
+	static final class Flight {
+		private final FlightKey key;
+		private final Tile tile;
+		// Guarded by FLIGHTS
+		private final List<FlightListener> listeners = new ArrayList<FlightListener>();
+		private boolean landed;
+
+		private Flight(FlightKey key, Tile tile) {
+			this.key = key;
+			this.tile = tile;
+		}
+
+		/**
+		 * Passes the result to all joined listeners. Has to be called before
+		 * the data gets modified by the caller.
+		 * 
+		 * @param data
+		 */
+		void complete(List<? extends SpatialEntity2<? extends Geometry>> data) {
+			for (FlightListener listener : land()) {
+				try {
+					listener.onFlightCompleted(data, tile);
+				} catch (RuntimeException e) {
+					LOG.error("Flight listener failed", e);
+				}
+			}
+		}
+
+		void fail(Exception exception) {
+			for (FlightListener listener : land()) {
+				try {
+					listener.onFlightFailed(exception);
+				} catch (RuntimeException e) {
+					LOG.error("Flight listener failed", e);
+				}
+			}
+		}
+
+		private List<FlightListener> land() {
+			synchronized (FLIGHTS) {
+				if (landed) {
+					return Collections.emptyList();
+				}
+				landed = true;
+				if (FLIGHTS.get(key) == this) {
+					FLIGHTS.remove(key);
+				}
+				return new ArrayList<FlightListener>(listeners);
+			}
+		}
+	}
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(SingleFlight.class);
+	private static final Map<FlightKey, Flight> FLIGHTS = new HashMap<FlightKey, Flight>();
+
+	private SingleFlight() {
+	}
+
+	/**
+	 * Joins a running flight for the specified tile or for any tile of a
+	 * lower zoom level containing it. Otherwise registers a new flight.
+	 * 
+	 * @param sourceKey
+	 *            Identifies the data source
+	 * @param queryHash
+	 *            Hash of filter and data source settings
+	 * @param tile
+	 * @param listener
+	 *            Listener to call when a running flight completes
+	 * @return A new {@link Flight} which has to be performed by the caller, or
+	 *         null if the listener joined a running flight
+	 */
+	static Flight join(String sourceKey, long queryHash, Tile tile,
+			FlightListener listener) {
+		synchronized (FLIGHTS) {
+			for (int shift = 0; shift <= tile.zoom; shift++) {
+				Flight flight = FLIGHTS.get(new FlightKey(sourceKey,
+						queryHash, tile.x >> shift, tile.y >> shift,
+						(byte) (tile.zoom - shift)));
+				if (flight != null) {
+					flight.listeners.add(listener);
+					return null;
+				}
+			}
+
+			FlightKey key = new FlightKey(sourceKey, queryHash, tile.x,
+					tile.y, tile.zoom);
+			Flight flight = new Flight(key, tile);
+			FLIGHTS.put(key, flight);
+			return flight;
+		}
+	}
+}
@@ -31,9 +31,44 @@ import android.graphics.RectF;
  */
 public class Tile {
 
+	// Bits per coordinate in packed keys, supports zoom levels up to 28
+	private static final int KEY_COORDINATE_BITS = 28;
+	private static final long KEY_COORDINATE_MASK = (1L << KEY_COORDINATE_BITS) - 1;
+
+	/**
+	 * Geometries of a tile, computed at once for the key they belong to
+	 */
+	private static final class Bounds {
+		private final long key;
+		private final Envelope envelope;
+		private final RectF llBBox;
+		private final MercatorRect mercatorRect;
+
+		private Bounds(Tile tile) {
+			this.key = tile.getKey();
+			double top = MercatorProj.transformTileYToLat(tile.y, tile.zoom);
+			double bottom = MercatorProj.transformTileYToLat(tile.y + 1,
+					tile.zoom);
+			double left = MercatorProj.transformTileXToLon(tile.x, tile.zoom);
+			double right = MercatorProj.transformTileXToLon(tile.x + 1,
+					tile.zoom);
+			this.envelope = new Envelope((float) left, (float) right,
+					(float) top, (float) bottom);
+			this.llBBox = new RectF((float) left, (float) top, (float) right,
+					(float) bottom);
+			this.mercatorRect = new MercatorRect(
+					MercatorProj.transformTileXToPixelX(tile.x),
+					MercatorProj.transformTileYToPixelY(tile.y),
+					MercatorProj.transformTileXToPixelX(tile.x + 1),
+					MercatorProj.transformTileYToPixelY(tile.y + 1), tile.zoom);
+		}
+	}
+
 	public int x;
 	public int y;
 	public byte zoom;
+	// Lazily computed, replaced if the coordinates got changed
+	private Bounds bounds;
 
 	public Tile(int x, int y, byte zoom) {
 		this.x = x;
@@ -41,23 +76,47 @@ public class Tile {
 		this.zoom = zoom;
 	}
 
+	/**
+	 * Packs the coordinates of a tile into a single value, unique for all
+	 * tiles up to zoom level 28
+	 * 
+	 * @param x
+	 * @param y
+	 * @param zoom
+	 * @return
+	 */
+	public static long getKey(int x, int y, byte zoom) {
+		return ((long) zoom << (2 * KEY_COORDINATE_BITS))
+				| ((x & KEY_COORDINATE_MASK) << KEY_COORDINATE_BITS)
+				| (y & KEY_COORDINATE_MASK);
+	}
+
+	public long getKey() {
+		return getKey(x, y, zoom);
+	}
+
 	@Override
 	public int hashCode() {
-		return x ^ y ^ zoom;
+		return TileKeyMap.hash(getKey());
+	}
+
+	private Bounds getBounds() {
+		Bounds result = bounds;
+		if (result == null || result.key != getKey()) {
+			result = new Bounds(this);
+			bounds = result;
+		}
+		return result;
 	}
 
 	/**
-	 * Gets Lon Lat Bounding Box from that tile
+	 * Gets Lon Lat Bounding Box from that tile. The returned object is shared
+	 * and must not be modified.
 	 * 
 	 * @return
 	 */
 	public RectF getLLBBox() {
-		RectF bb = new RectF();
-		bb.top = (float) MercatorProj.transformTileYToLat(y, zoom);
-		bb.bottom = (float) MercatorProj.transformTileYToLat(y + 1, zoom);
-		bb.left = (float) MercatorProj.transformTileXToLon(x, zoom);
-		bb.right = (float) MercatorProj.transformTileXToLon(x + 1, zoom);
-		return bb;
+		return getBounds().llBBox;
 	}
 
 	public GeoLocationRect getGeoLocationRect() {
@@ -68,19 +127,19 @@ public class Tile {
 		return new GeoLocationRect(left, top, right, bottom);
 	}
 
+	/**
+	 * @return The shared {@link MercatorRect} of this tile, must not be
+	 *         modified
+	 */
 	public MercatorRect getMercatorRect() {
-		return new MercatorRect(MercatorProj.transformTileXToPixelX(x),
-				MercatorProj.transformTileYToPixelY(y),
-				MercatorProj.transformTileXToPixelX(x + 1),
-				MercatorProj.transformTileYToPixelY(y + 1), zoom);
+		return getBounds().mercatorRect;
 	}
 
+	/**
+	 * @return The shared {@link Envelope} of this tile, must not be modified
+	 */
 	public Envelope getEnvelope() {
-		float top = (float) MercatorProj.transformTileYToLat(y, zoom);
-		float bottom = (float) MercatorProj.transformTileYToLat(y + 1, zoom);
-		float left = (float) MercatorProj.transformTileXToLon(x, zoom);
-		float right = (float) MercatorProj.transformTileXToLon(x + 1, zoom);
-		return new Envelope(left, right, top, bottom);
+		return getBounds().envelope;
 	}
 
 	@Override
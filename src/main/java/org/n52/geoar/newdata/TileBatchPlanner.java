@@ -0,0 +1,85 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import android.graphics.Rect;
+
+/**
+ * Combines adjacent tiles of a tile grid into rectangles, so that the data of
+ * each rectangle can be requested at once.
+ * 
+ */
+final class TileBatchPlanner {
+
+	private TileBatchPlanner() {
+	}
+
+	/**
+	 * Greedily covers all marked cells of a grid by disjoint rectangles,
+	 * starting at the top left cell. Rectangles are kept close to squares, as
+	 * their bounding boxes get used for requests.
+	 * 
+	 * @param cells
+	 *            Marked cells, indexed row by row
+	 * @param gridWidth
+	 * @param gridHeight
+	 * @param maxCells
+	 *            Maximum number of cells per rectangle
+	 * @return Rectangles in grid coordinates, right and bottom exclusive
+	 */
+	static List<Rect> plan(BitSet cells, int gridWidth, int gridHeight,
+			int maxCells) {
+		List<Rect> result = new ArrayList<Rect>();
+		BitSet remaining = (BitSet) cells.clone();
+		int maxWidth = Math.max(1, (int) Math.ceil(Math.sqrt(maxCells)));
+
+		for (int index = remaining.nextSetBit(0); index >= 0; index = remaining
+				.nextSetBit(index + 1)) {
+			int left = index % gridWidth;
+			int top = index / gridWidth;
+
+			int right = left + 1;
+			while (right < gridWidth && right - left < maxWidth
+					&& remaining.get(top * gridWidth + right)) {
+				right++;
+			}
+			int width = right - left;
+
+			int bottom = top + 1;
+			while (bottom < gridHeight
+					&& (bottom - top + 1) * width <= maxCells
+					&& isRowMarked(remaining, bottom * gridWidth + left, width)) {
+				bottom++;
+			}
+
+			for (int y = top; y < bottom; y++) {
+				remaining.clear(y * gridWidth + left, y * gridWidth + right);
+			}
+			result.add(new Rect(left, top, right, bottom));
+		}
+
+		return result;
+	}
+
+	private static boolean isRowMarked(BitSet cells, int fromIndex, int length) {
+		int nextClear = cells.nextClearBit(fromIndex);
+		return nextClear >= fromIndex + length;
+	}
+}
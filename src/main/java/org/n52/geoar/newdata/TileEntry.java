@@ -0,0 +1,212 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Entry of a cache tile in the {@link EntityIndex}, whose estimated size is
+ * charged to the {@link CacheStatistics} of the cache. The response of a
+ * data source cursor can replace the entities of the entry chunk by chunk,
+ * see {@link #append(EntityIndex.Editor, List, long)}. The replaced entities
+ * are kept until the response is complete, to restore them if the request
+ * fails. Each chunk gets charged once it arrives, so that least recently used
+ * tiles make room while the response is still being read.
+ * 
+ * Has to be used within updates of the entity index, whose write lock guards
+ * the entry. Changes of a removed entry have no effect, as tiles may get
+ * evicted while their data arrives.
+ */
+final class TileEntry {
+
+	private final Object key;
+	private final CacheStatistics statistics;
+	private boolean removed;
+	// Read without lock for estimates
+	private int numEntities;
+	// Estimated size of the entities charged to the statistics
+	private long estimatedSize;
+	// Entities replaced by the response currently streaming into this entry
+	// and their estimated size
+	private List<SpatialEntity2<? extends Geometry>> replacedData;
+	private long replacedSize;
+
+	/**
+	 * @param key
+	 *            Key of the entry in the entity index
+	 * @param statistics
+	 */
+	TileEntry(Object key, CacheStatistics statistics) {
+		this.key = key;
+		this.statistics = statistics;
+	}
+
+	boolean isRemoved() {
+		return removed;
+	}
+
+	int getEntityCount() {
+		return numEntities;
+	}
+
+	long getEstimatedSize() {
+		return estimatedSize;
+	}
+
+	/**
+	 * Replaces the entities of this entry
+	 * 
+	 * @param editor
+	 * @param entities
+	 * @param size
+	 *            Estimated size of the entities, including the overhead of
+	 *            the entry
+	 */
+	void put(EntityIndex.Editor editor,
+			List<? extends SpatialEntity2<? extends Geometry>> entities,
+			long size) {
+		if (removed) {
+			return;
+		}
+		editor.put(key, entities);
+		numEntities = entities.size();
+		// Replaced entities of a streaming response stay charged
+		long chargedSize = replacedSize + size;
+		statistics.charge(chargedSize - estimatedSize);
+		estimatedSize = chargedSize;
+	}
+
+	/**
+	 * Replaces the entities of this entry by a modified version of them, e.g.
+	 * without expired entities
+	 * 
+	 * @param editor
+	 * @param entities
+	 * @param sizeChange
+	 *            Change of the estimated size by the modification
+	 */
+	void update(EntityIndex.Editor editor,
+			List<? extends SpatialEntity2<? extends Geometry>> entities,
+			long sizeChange) {
+		if (removed) {
+			return;
+		}
+		editor.put(key, entities);
+		numEntities = entities.size();
+		estimatedSize += sizeChange;
+		statistics.charge(sizeChange);
+	}
+
+	/**
+	 * Stores a chunk of a response streamed into this entry. The first chunk
+	 * replaces the entities of the entry, which are kept until
+	 * {@link #commit(EntityIndex.Editor)} or
+	 * {@link #revert(EntityIndex.Editor)}. Readers of the index see the
+	 * entities growing.
+	 * 
+	 * @param editor
+	 * @param chunk
+	 * @param size
+	 *            Estimated size of the chunk
+	 */
+	void append(EntityIndex.Editor editor,
+			List<? extends SpatialEntity2<? extends Geometry>> chunk, long size) {
+		if (removed) {
+			return;
+		}
+		long chargedSize = size;
+		if (replacedData == null) {
+			replacedData = editor.getEntities(key);
+			replacedSize = estimatedSize;
+			editor.put(key, chunk);
+			chargedSize += EntitySizeEstimator.TILE_OVERHEAD;
+		} else {
+			editor.append(key, chunk);
+		}
+		numEntities = editor.getEntities(key).size();
+		estimatedSize += chargedSize;
+		statistics.charge(chargedSize);
+	}
+
+	/**
+	 * Completes the response streamed into this entry and releases the
+	 * replaced entities. An empty response removes the entities of the entry.
+	 * 
+	 * @param editor
+	 * @return The replaced entities, or null if the entry got removed
+	 */
+	List<SpatialEntity2<? extends Geometry>> commit(EntityIndex.Editor editor) {
+		if (removed) {
+			return null;
+		}
+		List<SpatialEntity2<? extends Geometry>> previousData = replacedData;
+		if (previousData == null) {
+			// Empty response, nothing got streamed
+			previousData = editor.getEntities(key);
+			editor.remove(key);
+			numEntities = 0;
+			statistics.charge(EntitySizeEstimator.TILE_OVERHEAD
+					- estimatedSize);
+			estimatedSize = EntitySizeEstimator.TILE_OVERHEAD;
+		} else {
+			statistics.release(replacedSize);
+			estimatedSize -= replacedSize;
+			replacedData = null;
+			replacedSize = 0;
+		}
+		return previousData;
+	}
+
+	/**
+	 * Restores the entities replaced by a response which failed or got
+	 * canceled, and releases the chunks streamed so far
+	 * 
+	 * @param editor
+	 */
+	void revert(EntityIndex.Editor editor) {
+		if (removed || replacedData == null) {
+			return;
+		}
+		editor.put(key, replacedData);
+		numEntities = replacedData.size();
+		statistics.release(estimatedSize - replacedSize);
+		estimatedSize = replacedSize;
+		replacedData = null;
+		replacedSize = 0;
+	}
+
+	/**
+	 * Removes this entry and releases its estimated size
+	 * 
+	 * @param editor
+	 * @return The released size, or -1 if the entry was already removed
+	 */
+	long remove(EntityIndex.Editor editor) {
+		if (removed) {
+			return -1;
+		}
+		removed = true;
+		editor.remove(key);
+		long releasedSize = estimatedSize;
+		statistics.release(releasedSize);
+		estimatedSize = 0;
+		replacedData = null;
+		replacedSize = 0;
+		return releasedSize;
+	}
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+/**
+ * Hash map from packed tile keys, see {@link Tile#getKey()}, to values. Uses
+ * open addressing with linear probing on primitive keys, so lookups neither
+ * box keys nor allocate entries.
+ *
+ * Not thread safe.
+ *
+ * @param <V>
+ */
+final class TileKeyMap<V> {
+
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] keys;
+	// Free slots have a null value
+	private Object[] values;
+	private int size;
+
+	TileKeyMap() {
+		keys = new long[MIN_CAPACITY];
+		values = new Object[MIN_CAPACITY];
+	}
+
+	/**
+	 * Creates a copy of the specified map
+	 */
+	TileKeyMap(TileKeyMap<V> map) {
+		keys = map.keys.clone();
+		values = map.values.clone();
+		size = map.size;
+	}
+
+	@SuppressWarnings("unchecked")
+	V get(long key) {
+		int mask = keys.length - 1;
+		int index = hash(key) & mask;
+		while (values[index] != null) {
+			if (keys[index] == key) {
+				return (V) values[index];
+			}
+			index = (index + 1) & mask;
+		}
+		return null;
+	}
+
+	/**
+	 * @param key
+	 * @param value
+	 *            Value to store, not null
+	 * @return The previous value of the key, or null
+	 */
+	@SuppressWarnings("unchecked")
+	V put(long key, V value) {
+		int mask = keys.length - 1;
+		int index = hash(key) & mask;
+		while (values[index] != null) {
+			if (keys[index] == key) {
+				V previous = (V) values[index];
+				values[index] = value;
+				return previous;
+			}
+			index = (index + 1) & mask;
+		}
+
+		keys[index] = key;
+		values[index] = value;
+		// Keeps the load factor at 0.5 at most
+		if (++size * 2 > keys.length) {
+			resize(keys.length << 1);
+		}
+		return null;
+	}
+
+	/**
+	 * @return The removed value, or null
+	 */
+	@SuppressWarnings("unchecked")
+	V remove(long key) {
+		int mask = keys.length - 1;
+		int index = hash(key) & mask;
+		while (values[index] != null) {
+			if (keys[index] == key) {
+				V previous = (V) values[index];
+				values[index] = null;
+				size--;
+				closeGap(index);
+				return previous;
+			}
+			index = (index + 1) & mask;
+		}
+		return null;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Moves entries following a removed one back, so that no probe sequence
+	 * gets interrupted by the free slot
+	 */
+	private void closeGap(int freeIndex) {
+		int mask = keys.length - 1;
+		int index = (freeIndex + 1) & mask;
+		while (values[index] != null) {
+			int homeIndex = hash(keys[index]) & mask;
+			// Entry may move if its home slot is not within (free, index]
+			if (((index - homeIndex) & mask) >= ((index - freeIndex) & mask)) {
+				keys[freeIndex] = keys[index];
+				values[freeIndex] = values[index];
+				values[index] = null;
+				freeIndex = index;
+			}
+			index = (index + 1) & mask;
+		}
+	}
+
+	private void resize(int capacity) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new long[capacity];
+		values = new Object[capacity];
+		int mask = capacity - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] != null) {
+				int index = hash(oldKeys[i]) & mask;
+				while (values[index] != null) {
+					index = (index + 1) & mask;
+				}
+				keys[index] = oldKeys[i];
+				values[index] = oldValues[i];
+			}
+		}
+	}
+
+	/**
+	 * Spreads the bits of a packed tile key, as neighbouring tiles only differ
+	 * in their lowest bits
+	 */
+	static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+}
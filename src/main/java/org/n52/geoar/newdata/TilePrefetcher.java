@@ -0,0 +1,206 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import org.n52.geoar.alg.proj.MercatorProj;
+import org.n52.geoar.tracking.location.LocationHandler.OnLocationUpdateListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.location.Location;
+import android.os.SystemClock;
+
+/**
+ * Warms {@link DataCache}s along the predicted path of the user. Estimates
+ * speed and bearing from recent location fixes and prefetches the tiles
+ * around the positions expected within the lookahead time, before the
+ * visualization requests them. Tiles already cached are skipped, and the
+ * number of prefetch requests is limited by a budget.
+ * 
+ */
+public class TilePrefetcher implements OnLocationUpdateListener {
+
+	private static final int MAX_FIXES = 5;
+	private static final long MAX_FIX_AGE = 30000;
+	// Minimum speed in m/s to assume that the user moves
+	private static final float MIN_SPEED = 0.5f;
+	private static final double METERS_PER_DEGREE = 111320;
+	private static final Logger LOG = LoggerFactory
+			.getLogger(TilePrefetcher.class);
+
+	private final byte zoom;
+	private final float radius;
+	private long lookaheadTime = 60000;
+	private int requestBudget = 8;
+	private long budgetInterval = 60000;
+
+	private final LinkedList<Location> fixes = new LinkedList<Location>();
+	private final Set<DataCache> caches = new LinkedHashSet<DataCache>();
+	private long budgetIntervalStart;
+	private int budgetUsed;
+
+	/**
+	 * @param zoom
+	 *            Zoom level of the tiles to prefetch
+	 * @param radius
+	 *            Radius in meters around each predicted position to prefetch
+	 *            tiles for
+	 */
+	public TilePrefetcher(byte zoom, float radius) {
+		this.zoom = zoom;
+		this.radius = radius;
+	}
+
+	public synchronized void addCache(DataCache cache) {
+		caches.add(cache);
+	}
+
+	public synchronized void removeCache(DataCache cache) {
+		caches.remove(cache);
+	}
+
+	/**
+	 * Sets the maximum number of prefetch requests per interval, shared by
+	 * all caches
+	 * 
+	 * @param requests
+	 * @param intervalMillis
+	 */
+	public synchronized void setRequestBudget(int requests, long intervalMillis) {
+		this.requestBudget = requests;
+		this.budgetInterval = intervalMillis;
+	}
+
+	/**
+	 * @param lookaheadMillis
+	 *            Time span to predict the path of the user for
+	 */
+	public synchronized void setLookaheadTime(long lookaheadMillis) {
+		this.lookaheadTime = lookaheadMillis;
+	}
+
+	@Override
+	public synchronized void onLocationChanged(Location location) {
+		if (location == null) {
+			return;
+		}
+		// Copy, as manual locations get modified
+		Location fix = new Location(location);
+		fixes.addLast(fix);
+		while (fixes.size() > MAX_FIXES
+				|| fix.getTime() - fixes.getFirst().getTime() > MAX_FIX_AGE) {
+			fixes.removeFirst();
+		}
+
+		float speed;
+		float bearing;
+		if (fix.hasSpeed() && fix.hasBearing()) {
+			speed = fix.getSpeed();
+			bearing = fix.getBearing();
+		} else {
+			Location oldestFix = fixes.getFirst();
+			long timeDelta = fix.getTime() - oldestFix.getTime();
+			if (timeDelta <= 0) {
+				return;
+			}
+			speed = oldestFix.distanceTo(fix) / (timeDelta / 1000f);
+			bearing = oldestFix.bearingTo(fix);
+		}
+		if (speed < MIN_SPEED || caches.isEmpty()) {
+			return;
+		}
+
+		prefetch(fix, speed, bearing);
+	}
+
+	private void prefetch(Location fix, float speed, float bearing) {
+		double pathLength = speed * lookaheadTime / 1000d;
+		double step = Math.max(radius, 1);
+		double bearingRad = Math.toRadians(bearing);
+
+		// Tiles around the predicted positions, nearest first
+		Set<Tile> tiles = new LinkedHashSet<Tile>();
+		for (double distance = Math.min(step, pathLength); distance <= pathLength; distance += step) {
+			double latitude = fix.getLatitude() + distance
+					* Math.cos(bearingRad) / METERS_PER_DEGREE;
+			double longitude = fix.getLongitude()
+					+ distance
+					* Math.sin(bearingRad)
+					/ (METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude)));
+			addTiles(tiles, latitude, longitude);
+		}
+
+		List<DataCache> targetCaches = new ArrayList<DataCache>(caches);
+		int requests = 0;
+		for (Tile tile : tiles) {
+			for (DataCache cache : targetCaches) {
+				if (!hasBudget()) {
+					LOG.debug("Prefetch budget exhausted");
+					return;
+				}
+				if (cache.prefetchTile(tile)) {
+					budgetUsed++;
+					requests++;
+				}
+			}
+		}
+		if (requests > 0) {
+			LOG.debug("Prefetching " + requests + " tiles");
+		}
+	}
+
+	/**
+	 * Adds all tiles within the radius around the specified position
+	 */
+	private void addTiles(Set<Tile> tiles, double latitude, double longitude) {
+		double meterPerPixel = MercatorProj.getGroundResolution(latitude,
+				zoom);
+		double pixelRadius = radius / meterPerPixel;
+		double centerPixelX = MercatorProj.transformLonToPixelX(longitude,
+				zoom);
+		double centerPixelY = MercatorProj
+				.transformLatToPixelY(latitude, zoom);
+
+		int tileLeftX = (int) MercatorProj.transformPixelXToTileX(
+				centerPixelX - pixelRadius, zoom);
+		int tileRightX = (int) MercatorProj.transformPixelXToTileX(
+				centerPixelX + pixelRadius, zoom);
+		int tileTopY = (int) MercatorProj.transformPixelYToTileY(centerPixelY
+				- pixelRadius, zoom);
+		int tileBottomY = (int) MercatorProj.transformPixelYToTileY(
+				centerPixelY + pixelRadius, zoom);
+		for (int y = tileTopY; y <= tileBottomY; y++) {
+			for (int x = tileLeftX; x <= tileRightX; x++) {
+				tiles.add(new Tile(x, y, zoom));
+			}
+		}
+	}
+
+	private boolean hasBudget() {
+		long now = SystemClock.uptimeMillis();
+		if (now - budgetIntervalStart >= budgetInterval) {
+			budgetIntervalStart = now;
+			budgetUsed = 0;
+		}
+		return budgetUsed < requestBudget;
+	}
+}
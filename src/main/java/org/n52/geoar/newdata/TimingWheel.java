@@ -0,0 +1,158 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+import java.util.List;
+
+/**
+ * Hashed timing wheel for scheduling large numbers of expirations. Timeouts
+ * get hashed by their deadline tick into a fixed number of slots, so that
+ * scheduling and canceling take constant time. Advancing the wheel visits
+ * only the slots of the elapsed ticks, where timeouts of later rounds are
+ * skipped.
+ *
+ * Times are based on {@link android.os.SystemClock#uptimeMillis()}. Thread
+ * safe, expired tasks get returned to be run without holding the lock of the
+ * wheel.
+ */
+final class TimingWheel {
+
+	/**
+	 * Scheduled task, can be scheduled again after it expired or got canceled
+	 */
+	static final class Timeout {
+		private final Runnable task;
+		// Guarded by the wheel
+		private long deadlineTick;
+		private Timeout previous;
+		private Timeout next;
+		private boolean scheduled;
+
+		Timeout(Runnable task) {
+			this.task = task;
+		}
+	}
+
+	private final long tickDuration;
+	private final Timeout[] slots;
+	private final int mask;
+	// Last processed tick
+	private long currentTick;
+	private int size;
+	// Whether the owner advances this wheel
+	private boolean active;
+
+	/**
+	 * @param tickDuration
+	 *            Resolution in milliseconds
+	 * @param slotCount
+	 *            Number of slots, a power of two
+	 * @param now
+	 */
+	TimingWheel(long tickDuration, int slotCount, long now) {
+		this.tickDuration = tickDuration;
+		this.slots = new Timeout[slotCount];
+		this.mask = slotCount - 1;
+		this.currentTick = now / tickDuration;
+	}
+
+	/**
+	 * Schedules a timeout, replacing its previous deadline if it is already
+	 * scheduled
+	 *
+	 * @param timeout
+	 * @param deadline
+	 *            Uptime to run the task at, rounded up to the next tick
+	 * @return true if the wheel was inactive, so that the caller has to start
+	 *         advancing it
+	 */
+	synchronized boolean schedule(Timeout timeout, long deadline) {
+		if (timeout.scheduled) {
+			unlink(timeout);
+		}
+		long deadlineTick = (deadline + tickDuration - 1) / tickDuration;
+		timeout.deadlineTick = Math.max(deadlineTick, currentTick + 1);
+
+		int slot = (int) (timeout.deadlineTick & mask);
+		timeout.previous = null;
+		timeout.next = slots[slot];
+		if (slots[slot] != null) {
+			slots[slot].previous = timeout;
+		}
+		slots[slot] = timeout;
+		timeout.scheduled = true;
+		size++;
+
+		boolean activate = !active;
+		active = true;
+		return activate;
+	}
+
+	/**
+	 * @return true if the timeout was scheduled
+	 */
+	synchronized boolean cancel(Timeout timeout) {
+		if (!timeout.scheduled) {
+			return false;
+		}
+		unlink(timeout);
+		return true;
+	}
+
+	/**
+	 * Processes all ticks up to the specified time
+	 *
+	 * @param now
+	 * @param expired
+	 *            Receives the tasks of all expired timeouts
+	 * @return true if timeouts are left and the wheel has to be advanced
+	 *         again, false if the wheel became inactive
+	 */
+	synchronized boolean advance(long now, List<Runnable> expired) {
+		long targetTick = now / tickDuration;
+		// Each slot needs to be visited only once, even after long pauses
+		long steps = Math.min(targetTick - currentTick, slots.length);
+		for (long i = 1; i <= steps; i++) {
+			Timeout timeout = slots[(int) ((currentTick + i) & mask)];
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.deadlineTick <= targetTick) {
+					unlink(timeout);
+					expired.add(timeout.task);
+				}
+				timeout = next;
+			}
+		}
+		currentTick = Math.max(currentTick, targetTick);
+		active = size > 0;
+		return active;
+	}
+
+	private void unlink(Timeout timeout) {
+		if (timeout.previous != null) {
+			timeout.previous.next = timeout.next;
+		} else {
+			slots[(int) (timeout.deadlineTick & mask)] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.previous = timeout.previous;
+		}
+		timeout.previous = null;
+		timeout.next = null;
+		timeout.scheduled = false;
+		size--;
+	}
+}
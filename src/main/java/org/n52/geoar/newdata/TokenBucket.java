@@ -0,0 +1,61 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+import android.os.SystemClock;
+
+/**
+ * Token bucket limiting the rate of requests to a data source. Allows bursts
+ * up to the capacity of the bucket, which refills at a constant rate.
+ */
+final class TokenBucket {
+
+	private final int capacity;
+	// Tokens per millisecond
+	private final double refillRate;
+	private double tokens;
+	private long lastRefill;
+
+	/**
+	 * @param requestsPerMinute
+	 *            Sustained rate of requests
+	 * @param capacity
+	 *            Maximum number of requests at once
+	 */
+	TokenBucket(int requestsPerMinute, int capacity) {
+		this.capacity = Math.max(1, capacity);
+		this.refillRate = requestsPerMinute / 60000.0;
+		this.tokens = this.capacity;
+		this.lastRefill = SystemClock.uptimeMillis();
+	}
+
+	/**
+	 * Takes a token if available
+	 *
+	 * @return 0 if a token got taken, otherwise the milliseconds until the
+	 *         next token will be available
+	 */
+	synchronized long tryAcquire() {
+		long now = SystemClock.uptimeMillis();
+		tokens = Math.min(capacity, tokens + (now - lastRefill) * refillRate);
+		lastRefill = now;
+		if (tokens >= 1) {
+			tokens--;
+			return 0;
+		}
+		return (long) Math.ceil((1 - tokens) / refillRate);
+	}
+}
@@ -28,6 +28,13 @@ public class Settings {
 	public static final int SIZE_AR_INTERPOLATION = 1500;
 	// Threshold in position to request new interpolation
 	public static final int RELOAD_DIST_AR = 50;
+	// Bounds of the radius in meters adapted to the density of a data source
+	public static final int MIN_SIZE_AR_INTERPOLATION = 250;
+	public static final int MAX_SIZE_AR_INTERPOLATION = 5000;
+	// Number of entities per data source the AR view radius aims at
+	public static final int AR_ENTITY_BUDGET = 300;
+	// Number of rings the AR view area gets loaded in, from near to far
+	public static final int AR_RINGS = 3;
 	// Zoom used in AR view for interpolation, please make sure it fits somehow
 	// with SIZE_AR_INTERPOLATION...
 	public static final byte ZOOM_AR = 12;
@@ -0,0 +1,444 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Checks storing the response of a data source cursor chunk by chunk into
+ * the {@link TileEntry} of a tile, as {@link DataCache} does, and compares it
+ * with reading the whole response into a list first and indexing it
+ * afterwards.
+ */
+public class CursorStreamingTest {
+
+	// Chunk size of DataCache
+	private static final int CHUNK_SIZE = 500;
+	private static final int RESPONSE_SIZE = 200000;
+	private static final String TILE = "tile";
+
+	private final EntityIndex entryIndex = new EntityIndex();
+	private final CacheStatistics statistics = new CacheStatistics(null,
+			Long.MAX_VALUE);
+	private final TileEntry entry = new TileEntry(TILE, statistics);
+
+	/**
+	 * Cursor parsing entities only when they get read, like a data source
+	 * reading its response incrementally
+	 */
+	private static final class PointCursor implements
+			Iterator<SpatialEntity2<? extends Geometry>> {
+		private final Random random = new Random(25);
+		private int remaining;
+
+		private PointCursor(int size) {
+			this.remaining = size;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return remaining > 0;
+		}
+
+		@Override
+		public SpatialEntity2<? extends Geometry> next() {
+			if (remaining == 0) {
+				throw new NoSuchElementException();
+			}
+			remaining--;
+			return TestEntities.point(7.6 + random.nextDouble() * 0.1,
+					51.9 + random.nextDouble() * 0.1);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Stores each chunk in the index once it is read
+	 */
+	private static void stream(EntityIndex index,
+			Iterator<SpatialEntity2<? extends Geometry>> cursor,
+			int[] chunkSizes) {
+		final List<SpatialEntity2<? extends Geometry>> chunk = new ArrayList<SpatialEntity2<? extends Geometry>>(
+				CHUNK_SIZE);
+		int chunkCount = 0;
+		while (cursor.hasNext()) {
+			for (int i = 0; i < CHUNK_SIZE && cursor.hasNext(); i++) {
+				chunk.add(cursor.next());
+			}
+			index.apply(new EntityIndex.Update() {
+				@Override
+				void apply(EntityIndex.Editor editor) {
+					editor.append(TILE, chunk);
+				}
+			});
+			chunk.clear();
+			if (chunkSizes != null) {
+				chunkSizes[chunkCount++] = index.getSnapshot()
+						.getEntities(TILE).size();
+			}
+		}
+	}
+
+	/**
+	 * Reads the whole response before storing it in the index
+	 * 
+	 * @return The list holding the response
+	 */
+	private static List<SpatialEntity2<? extends Geometry>> readAndStore(
+			EntityIndex index,
+			Iterator<SpatialEntity2<? extends Geometry>> cursor) {
+		final List<SpatialEntity2<? extends Geometry>> data = new ArrayList<SpatialEntity2<? extends Geometry>>();
+		while (cursor.hasNext()) {
+			data.add(cursor.next());
+		}
+		index.apply(new EntityIndex.Update() {
+			@Override
+			void apply(EntityIndex.Editor editor) {
+				editor.put(TILE, data);
+			}
+		});
+		return data;
+	}
+
+	@Test
+	public void streamedDataMatchesStoredData() {
+		EntityIndex streamedIndex = new EntityIndex();
+		int chunkCount = (RESPONSE_SIZE + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		int[] chunkSizes = new int[chunkCount];
+		stream(streamedIndex, new PointCursor(RESPONSE_SIZE), chunkSizes);
+		// Readers see the data growing by chunks
+		for (int i = 0; i < chunkCount; i++) {
+			assertEquals(Math.min(RESPONSE_SIZE, (i + 1) * CHUNK_SIZE),
+					chunkSizes[i]);
+		}
+
+		EntityIndex storedIndex = new EntityIndex();
+		readAndStore(storedIndex, new PointCursor(RESPONSE_SIZE));
+
+		EntityIndex.Snapshot streamed = streamedIndex.getSnapshot();
+		EntityIndex.Snapshot stored = storedIndex.getSnapshot();
+		assertEquals(1, streamed.getEntryCount());
+		assertEquals(stored.getEntryEnvelope(0), streamed.getEntryEnvelope(0));
+		List<SpatialEntity2<? extends Geometry>> streamedEntities = streamed
+				.getEntities(TILE);
+		List<SpatialEntity2<? extends Geometry>> storedEntities = stored
+				.getEntities(TILE);
+		assertEquals(storedEntities.size(), streamedEntities.size());
+		for (int i = 0; i < storedEntities.size(); i++) {
+			assertEquals(storedEntities.get(i).getEnvelope(), streamedEntities
+					.get(i).getEnvelope());
+		}
+	}
+
+	@Test
+	public void appendKeepsExistingEntities() {
+		EntityIndex index = new EntityIndex();
+		final SpatialEntity2<? extends Geometry> first = TestEntities.point(
+				0, 0);
+		final SpatialEntity2<? extends Geometry> second = TestEntities.point(
+				1, 1);
+		index.apply(new EntityIndex.Update() {
+			@Override
+			void apply(EntityIndex.Editor editor) {
+				editor.append(TILE, Collections
+						.<SpatialEntity2<? extends Geometry>> singletonList(first));
+				editor.append(TILE, Collections
+						.<SpatialEntity2<? extends Geometry>> emptyList());
+				editor.append(TILE, Collections
+						.<SpatialEntity2<? extends Geometry>> singletonList(second));
+			}
+		});
+		List<SpatialEntity2<? extends Geometry>> entities = index
+				.getSnapshot().getEntities(TILE);
+		assertEquals(2, entities.size());
+		assertSame(first, entities.get(0));
+		assertSame(second, entities.get(1));
+		assertEquals(0, index.getSnapshot().getEntryEnvelope(0).getMinX(), 0);
+		assertEquals(1, index.getSnapshot().getEntryEnvelope(0).getMaxX(), 0);
+	}
+
+	@Test
+	public void snapshotsKeepTheirEntities() {
+		EntityIndex index = new EntityIndex();
+		stream(index, new PointCursor(CHUNK_SIZE * 3), null);
+		List<SpatialEntity2<? extends Geometry>> entities = index
+				.getSnapshot().getEntities(TILE);
+		List<SpatialEntity2<? extends Geometry>> copy = new ArrayList<SpatialEntity2<? extends Geometry>>(
+				entities);
+		// Fills the free end of the shared array of the entry
+		stream(index, new PointCursor(CHUNK_SIZE), null);
+		assertEquals(copy, entities);
+		List<SpatialEntity2<? extends Geometry>> extended = index
+				.getSnapshot().getEntities(TILE);
+		assertEquals(CHUNK_SIZE * 4, extended.size());
+		assertEquals(copy, extended.subList(0, copy.size()));
+		try {
+			entities.get(copy.size());
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void committedResponseReplacesData() {
+		List<SpatialEntity2<? extends Geometry>> previousData = putEntry(3);
+		long previousSize = statistics.getUsedBytes();
+
+		List<SpatialEntity2<? extends Geometry>> response = new ArrayList<SpatialEntity2<? extends Geometry>>();
+		long responseSize = 0;
+		for (int i = 0; i < 3; i++) {
+			List<SpatialEntity2<? extends Geometry>> chunk = readChunk(i);
+			appendEntry(chunk);
+			response.addAll(chunk);
+			responseSize += EntitySizeEstimator.estimateSize(chunk);
+			// Readers see the response growing, the replaced data stays
+			// charged until the response is complete
+			assertEquals(response, getEntities());
+			assertEquals(response.size(), entry.getEntityCount());
+			assertEquals(previousSize + EntitySizeEstimator.TILE_OVERHEAD
+					+ responseSize, statistics.getUsedBytes());
+			assertCharged();
+		}
+
+		assertEquals(previousData, commitEntry());
+		assertEquals(response, getEntities());
+		assertEquals(EntitySizeEstimator.TILE_OVERHEAD + responseSize,
+				statistics.getUsedBytes());
+		assertCharged();
+	}
+
+	@Test
+	public void revertedResponseRestoresData() {
+		List<SpatialEntity2<? extends Geometry>> previousData = putEntry(3);
+		long previousSize = statistics.getUsedBytes();
+		appendEntry(readChunk(0));
+		appendEntry(readChunk(1));
+
+		revertEntry();
+		assertEquals(previousData, getEntities());
+		assertEquals(previousData.size(), entry.getEntityCount());
+		assertEquals(previousSize, statistics.getUsedBytes());
+		assertCharged();
+
+		// Nothing left to revert
+		revertEntry();
+		assertEquals(previousSize, statistics.getUsedBytes());
+	}
+
+	@Test
+	public void emptyResponseRemovesData() {
+		List<SpatialEntity2<? extends Geometry>> previousData = putEntry(3);
+
+		assertEquals(previousData, commitEntry());
+		assertTrue(getEntities().isEmpty());
+		assertEquals(0, entry.getEntityCount());
+		assertEquals(EntitySizeEstimator.TILE_OVERHEAD,
+				statistics.getUsedBytes());
+		assertCharged();
+	}
+
+	@Test
+	public void evictionWhileStreamingReleasesAllData() {
+		putEntry(3);
+		appendEntry(readChunk(0));
+		final long chargedSize = statistics.getUsedBytes();
+
+		entryIndex.apply(new EntityIndex.Update() {
+			@Override
+			void apply(EntityIndex.Editor editor) {
+				assertEquals(chargedSize, entry.remove(editor));
+				assertEquals(-1, entry.remove(editor));
+			}
+		});
+		assertEquals(0, statistics.getUsedBytes());
+
+		// Chunks arriving after the eviction get dropped
+		appendEntry(readChunk(1));
+		revertEntry();
+		assertNull(commitEntry());
+		assertTrue(getEntities().isEmpty());
+		assertEquals(0, statistics.getUsedBytes());
+	}
+
+	@Test
+	public void replacingDataWhileStreamingKeepsReplacedDataCharged() {
+		putEntry(3);
+		long previousSize = statistics.getUsedBytes();
+		appendEntry(readChunk(0));
+
+		List<SpatialEntity2<? extends Geometry>> data = readChunk(1);
+		long dataSize = EntitySizeEstimator.TILE_OVERHEAD
+				+ EntitySizeEstimator.estimateSize(data);
+		putEntry(data, dataSize);
+		assertEquals(previousSize + dataSize, statistics.getUsedBytes());
+		assertCharged();
+
+		commitEntry();
+		assertEquals(data, getEntities());
+		assertEquals(dataSize, statistics.getUsedBytes());
+		assertCharged();
+	}
+
+	/**
+	 * Measures the heap in use once the response is complete, and the time to
+	 * read and store it
+	 */
+	@Test
+	@Category(Benchmark.class)
+	public void streamingBenchmark() {
+		// Warm up
+		stream(new EntityIndex(), new PointCursor(RESPONSE_SIZE), null);
+		readAndStore(new EntityIndex(), new PointCursor(RESPONSE_SIZE));
+
+		long baseline = getUsedHeap();
+		EntityIndex streamedIndex = new EntityIndex();
+		long start = System.nanoTime();
+		stream(streamedIndex, new PointCursor(RESPONSE_SIZE), null);
+		long streamedNanos = System.nanoTime() - start;
+		long streamedPeak = getUsedHeap() - baseline;
+		assertEquals(RESPONSE_SIZE, streamedIndex.getSnapshot()
+				.getEntities(TILE).size());
+		streamedIndex = null;
+
+		baseline = getUsedHeap();
+		EntityIndex storedIndex = new EntityIndex();
+		start = System.nanoTime();
+		List<SpatialEntity2<? extends Geometry>> data = readAndStore(
+				storedIndex, new PointCursor(RESPONSE_SIZE));
+		long storedNanos = System.nanoTime() - start;
+		// Response list and index both hold the response
+		long storedPeak = getUsedHeap() - baseline;
+		assertEquals(RESPONSE_SIZE, data.size());
+		assertEquals(RESPONSE_SIZE, storedIndex.getSnapshot()
+				.getEntities(TILE).size());
+
+		TestEntities.report("Cursor of " + RESPONSE_SIZE + " entities",
+				"chunks of " + CHUNK_SIZE + " " + streamedNanos / 1000000
+						+ " ms, peak " + streamedPeak / 1024 + " KB; read first "
+						+ storedNanos / 1000000 + " ms, peak " + storedPeak
+						/ 1024 + " KB");
+	}
+
+	private List<SpatialEntity2<? extends Geometry>> putEntry(int size) {
+		List<SpatialEntity2<? extends Geometry>> data = new ArrayList<SpatialEntity2<? extends Geometry>>();
+		for (int i = 0; i < size; i++) {
+			data.add(TestEntities.point(i, i));
+		}
+		putEntry(data,
+				EntitySizeEstimator.TILE_OVERHEAD
+						+ EntitySizeEstimator.estimateSize(data));
+		return data;
+	}
+
+	private void putEntry(
+			final List<SpatialEntity2<? extends Geometry>> data,
+			final long size) {
+		entryIndex.apply(new EntityIndex.Update() {
+			@Override
+			void apply(EntityIndex.Editor editor) {
+				entry.put(editor, data, size);
+			}
+		});
+	}
+
+	/**
+	 * @return A chunk of a response, distinct from other chunks
+	 */
+	private static List<SpatialEntity2<? extends Geometry>> readChunk(
+			int index) {
+		List<SpatialEntity2<? extends Geometry>> chunk = new ArrayList<SpatialEntity2<? extends Geometry>>();
+		PointCursor cursor = new PointCursor(CHUNK_SIZE * (index + 1));
+		for (int i = 0; cursor.hasNext(); i++) {
+			SpatialEntity2<? extends Geometry> entity = cursor.next();
+			if (i >= CHUNK_SIZE * index) {
+				chunk.add(entity);
+			}
+		}
+		return chunk;
+	}
+
+	private void appendEntry(
+			final List<SpatialEntity2<? extends Geometry>> chunk) {
+		final long size = EntitySizeEstimator.estimateSize(chunk);
+		entryIndex.apply(new EntityIndex.Update() {
+			@Override
+			void apply(EntityIndex.Editor editor) {
+				entry.append(editor, chunk, size);
+			}
+		});
+	}
+
+	private List<SpatialEntity2<? extends Geometry>> commitEntry() {
+		final List<List<SpatialEntity2<? extends Geometry>>> previousData = new ArrayList<List<SpatialEntity2<? extends Geometry>>>(
+				1);
+		entryIndex.apply(new EntityIndex.Update() {
+			@Override
+			void apply(EntityIndex.Editor editor) {
+				previousData.add(entry.commit(editor));
+			}
+		});
+		return previousData.get(0);
+	}
+
+	private void revertEntry() {
+		entryIndex.apply(new EntityIndex.Update() {
+			@Override
+			void apply(EntityIndex.Editor editor) {
+				entry.revert(editor);
+			}
+		});
+	}
+
+	private List<SpatialEntity2<? extends Geometry>> getEntities() {
+		return entryIndex.getSnapshot().getEntities(TILE);
+	}
+
+	/**
+	 * Asserts that the estimated size of the entry is what got charged
+	 */
+	private void assertCharged() {
+		assertEquals(entry.getEstimatedSize(), statistics.getUsedBytes());
+	}
+
+	private static long getUsedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
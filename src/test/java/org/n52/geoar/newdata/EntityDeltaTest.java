@@ -0,0 +1,156 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * Checks which refetched entities {@link EntityDelta} reports as changed
+ */
+public class EntityDeltaTest {
+
+	private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+	/**
+	 * Entity with an identity, but without a hash code over its value
+	 */
+	public static class IdentifiedEntity extends SpatialEntity2<Point> {
+		private final String identifier;
+		final int value;
+
+		IdentifiedEntity(String identifier, int value) {
+			super(GEOMETRY_FACTORY.createPoint(new Coordinate(7.6, 51.9)));
+			this.identifier = identifier;
+			this.value = value;
+		}
+
+		public String getIdentifier() {
+			return identifier;
+		}
+	}
+
+	/**
+	 * Entity with an identity and a hash code over its value
+	 */
+	public static class HashedEntity extends IdentifiedEntity {
+
+		HashedEntity(String identifier, int value) {
+			super(identifier, value);
+		}
+
+		@Override
+		public int hashCode() {
+			return value;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof HashedEntity
+					&& ((HashedEntity) o).getIdentifier().equals(
+							getIdentifier()) && ((HashedEntity) o).value == value;
+		}
+	}
+
+	@Test
+	public void identifiedEntitiesWithoutHashCodeAreChanged() {
+		IdentifiedEntity previous = new IdentifiedEntity("a", 1);
+		IdentifiedEntity current = new IdentifiedEntity("a", 2);
+
+		EntityDelta delta = compute(previous, current);
+
+		assertEquals(Collections.singletonList(current), delta.getChanged());
+		assertEquals(Collections.singletonList(previous), delta.getReplaced());
+		assertTrue(delta.getAdded().isEmpty());
+		assertTrue(delta.getRemoved().isEmpty());
+	}
+
+	@Test
+	public void hashedEntitiesAreComparedByValue() {
+		HashedEntity previous = new HashedEntity("a", 1);
+
+		assertTrue(compute(previous, new HashedEntity("a", 1)).isEmpty());
+
+		HashedEntity current = new HashedEntity("a", 2);
+		EntityDelta delta = compute(previous, current);
+		assertEquals(Collections.singletonList(current), delta.getChanged());
+		assertSame(previous, delta.getReplaced().get(0));
+	}
+
+	@Test
+	public void entitiesWithoutIdentityAreMatchedByContent() {
+		assertTrue(compute(TestEntities.point(7.6, 51.9),
+				TestEntities.point(7.6, 51.9)).isEmpty());
+
+		EntityDelta delta = compute(TestEntities.point(7.6, 51.9),
+				TestEntities.point(7.7, 51.9));
+		assertTrue(delta.getChanged().isEmpty());
+		assertEquals(1, delta.getAdded().size());
+		assertEquals(1, delta.getRemoved().size());
+	}
+
+	@Test
+	public void dataKeepsPreviousInstancesOfUnchangedEntities() {
+		HashedEntity unchanged = new HashedEntity("a", 1);
+		IdentifiedEntity changed = new IdentifiedEntity("b", 1);
+		SpatialEntity2<Point> point = TestEntities.point(7.6, 51.9);
+		List<SpatialEntity2<? extends Geometry>> previousData = Arrays
+				.<SpatialEntity2<? extends Geometry>> asList(unchanged,
+						changed, point);
+
+		IdentifiedEntity changedVersion = new IdentifiedEntity("b", 1);
+		SpatialEntity2<Point> added = TestEntities.point(7.7, 51.9);
+		EntityDelta delta = EntityDelta.compute(previousData, Arrays
+				.<SpatialEntity2<? extends Geometry>> asList(new HashedEntity(
+						"a", 1), changedVersion, TestEntities.point(7.6, 51.9),
+						added), null);
+
+		List<SpatialEntity2<? extends Geometry>> data = delta.getData();
+		assertEquals(4, data.size());
+		assertSame(unchanged, data.get(0));
+		assertSame(changedVersion, data.get(1));
+		assertSame(point, data.get(2));
+		assertSame(added, data.get(3));
+	}
+
+	@Test
+	public void sameInstanceIsUnchanged() {
+		IdentifiedEntity entity = new IdentifiedEntity("a", 1);
+		assertTrue(compute(entity, entity).isEmpty());
+	}
+
+	private static EntityDelta compute(
+			SpatialEntity2<? extends Geometry> previous,
+			SpatialEntity2<? extends Geometry> current) {
+		List<SpatialEntity2<? extends Geometry>> previousData = Arrays
+				.<SpatialEntity2<? extends Geometry>> asList(previous);
+		List<SpatialEntity2<? extends Geometry>> currentData = Arrays
+				.<SpatialEntity2<? extends Geometry>> asList(current);
+		return EntityDelta.compute(previousData, currentData, null);
+	}
+}
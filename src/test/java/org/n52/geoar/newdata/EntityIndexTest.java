@@ -0,0 +1,304 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.index.ItemVisitor;
+
+public class EntityIndexTest {
+
+	// Tile limit of a DataCache
+	private static final int KEY_COUNT = 75;
+	private static final int ENTITIES_PER_KEY = 100;
+	private static final int WRITER_COUNT = 4;
+	private static final long BENCHMARK_MILLIS = 1000;
+
+	private static final Envelope WORLD = new Envelope(-180, 180, -90, 90);
+
+	/**
+	 * Update replacing the entities of a key
+	 */
+	private static class PutUpdate extends EntityIndex.Update {
+		private final Object key;
+		private final List<SpatialEntity2<? extends Geometry>> entities;
+
+		private PutUpdate(Object key,
+				List<SpatialEntity2<? extends Geometry>> entities) {
+			this.key = key;
+			this.entities = entities;
+		}
+
+		@Override
+		void apply(EntityIndex.Editor editor) {
+			editor.put(key, entities);
+		}
+	}
+
+	private static List<SpatialEntity2<? extends Geometry>> createEntities(
+			int key) {
+		List<SpatialEntity2<? extends Geometry>> entities = new ArrayList<SpatialEntity2<? extends Geometry>>();
+		double longitude = -180 + 360.0 * key / KEY_COUNT;
+		for (int i = 0; i < ENTITIES_PER_KEY; i++) {
+			entities.add(TestEntities.point(longitude, -90 + 180.0 * i
+					/ ENTITIES_PER_KEY));
+		}
+		return entities;
+	}
+
+	@Test
+	public void failingUpdateDoesNotAffectItsBatch() throws Exception {
+		final EntityIndex index = new EntityIndex();
+		final CountDownLatch blocking = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final RuntimeException failure = new IllegalStateException();
+
+		// Holds the write lock until the other updates are queued, so that
+		// all of them get applied in its batch
+		Thread batchWriter = new Thread() {
+			@Override
+			public void run() {
+				index.apply(new PutUpdate("first", createEntities(0)) {
+					@Override
+					void apply(EntityIndex.Editor editor) {
+						super.apply(editor);
+						blocking.countDown();
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				});
+			}
+		};
+		batchWriter.start();
+		blocking.await();
+
+		final AtomicReference<Throwable> failingResult = new AtomicReference<Throwable>();
+		Thread failingWriter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					index.apply(new EntityIndex.Update() {
+						@Override
+						void apply(EntityIndex.Editor editor) {
+							throw failure;
+						}
+					});
+				} catch (Throwable e) {
+					failingResult.set(e);
+				}
+			}
+		};
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				index.apply(new PutUpdate("last", createEntities(1)));
+			}
+		};
+		failingWriter.start();
+		awaitBlocked(failingWriter);
+		writer.start();
+		awaitBlocked(writer);
+		release.countDown();
+
+		batchWriter.join();
+		failingWriter.join();
+		writer.join();
+		assertSame(failure, failingResult.get());
+		EntityIndex.Snapshot snapshot = index.getSnapshot();
+		assertEquals(2, snapshot.getEntryCount());
+		assertEquals(ENTITIES_PER_KEY, snapshot.getEntities("first").size());
+		assertEquals(ENTITIES_PER_KEY, snapshot.getEntities("last").size());
+	}
+
+	@Test
+	public void failureIsRethrownToSubmitter() {
+		EntityIndex index = new EntityIndex();
+		try {
+			index.apply(new EntityIndex.Update() {
+				@Override
+				void apply(EntityIndex.Editor editor) {
+					editor.put("key", createEntities(0));
+					throw new IllegalStateException();
+				}
+			});
+			fail();
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		// Changes made before failing get published
+		assertEquals(ENTITIES_PER_KEY, index.getSnapshot().getEntities("key")
+				.size());
+		index.apply(new PutUpdate("other", createEntities(1)));
+		assertEquals(2, index.getSnapshot().getEntryCount());
+	}
+
+	/**
+	 * Compares several writers and a single reader on the index with the
+	 * same threads sharing a map behind a single lock, the way the Quadtree
+	 * indexes were accessed before. Verifies that readers never see a
+	 * partially written key.
+	 */
+	@Test
+	@Category(Benchmark.class)
+	public void contentionBenchmark() throws Exception {
+		final EntityIndex index = new EntityIndex();
+		final List<List<SpatialEntity2<? extends Geometry>>> entities = new ArrayList<List<SpatialEntity2<? extends Geometry>>>();
+		for (int i = 0; i < KEY_COUNT; i++) {
+			entities.add(createEntities(i));
+			index.apply(new PutUpdate(i, entities.get(i)));
+		}
+
+		long[] snapshotCounts = runBenchmark(new Store() {
+			@Override
+			public void put(int key) {
+				index.apply(new PutUpdate(key, entities.get(key)));
+			}
+
+			@Override
+			public void query() {
+				final int[] count = new int[1];
+				EntityIndex.Snapshot snapshot = index.getSnapshot();
+				snapshot.query(WORLD, new ItemVisitor() {
+					@Override
+					public void visitItem(Object item) {
+						count[0]++;
+					}
+				});
+				assertEquals(KEY_COUNT * ENTITIES_PER_KEY, count[0]);
+			}
+		});
+
+		final Map<Object, List<SpatialEntity2<? extends Geometry>>> lockedMap = new HashMap<Object, List<SpatialEntity2<? extends Geometry>>>();
+		for (int i = 0; i < KEY_COUNT; i++) {
+			lockedMap.put(i, entities.get(i));
+		}
+		long[] lockedCounts = runBenchmark(new Store() {
+			@Override
+			public void put(int key) {
+				synchronized (lockedMap) {
+					lockedMap.remove(key);
+					lockedMap.put(key,
+							new ArrayList<SpatialEntity2<? extends Geometry>>(
+									entities.get(key)));
+				}
+			}
+
+			@Override
+			public void query() {
+				int count = 0;
+				synchronized (lockedMap) {
+					for (List<SpatialEntity2<? extends Geometry>> keyEntities : lockedMap
+							.values()) {
+						for (int i = 0; i < keyEntities.size(); i++) {
+							if (keyEntities.get(i).getEnvelope()
+									.intersects(WORLD)) {
+								count++;
+							}
+						}
+					}
+				}
+				assertEquals(KEY_COUNT * ENTITIES_PER_KEY, count);
+			}
+		});
+
+		TestEntities.report("EntityIndex " + WRITER_COUNT
+				+ " writers, 1 reader", "snapshots " + snapshotCounts[0]
+				+ " writes, " + snapshotCounts[1] + " queries; single lock "
+				+ lockedCounts[0] + " writes, " + lockedCounts[1]
+				+ " queries in " + BENCHMARK_MILLIS + " ms");
+	}
+
+	private interface Store {
+		void put(int key);
+
+		void query();
+	}
+
+	/**
+	 * @return Number of writes and queries completed
+	 */
+	private static long[] runBenchmark(final Store store) throws Exception {
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicLong writes = new AtomicLong();
+		final AtomicLong queries = new AtomicLong();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < WRITER_COUNT; i++) {
+			final int writer = i;
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					int key = writer;
+					while (running.get()) {
+						store.put(key);
+						key = (key + WRITER_COUNT) % KEY_COUNT;
+						writes.incrementAndGet();
+					}
+				}
+			});
+		}
+		threads.add(new Thread() {
+			@Override
+			public void run() {
+				try {
+					while (running.get()) {
+						store.query();
+						queries.incrementAndGet();
+					}
+				} catch (Throwable e) {
+					failure.set(e);
+				}
+			}
+		});
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		Thread.sleep(BENCHMARK_MILLIS);
+		running.set(false);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+		return new long[] { writes.get(), queries.get() };
+	}
+
+	private static void awaitBlocked(Thread thread) {
+		while (thread.getState() != Thread.State.WAITING) {
+			Thread.yield();
+		}
+	}
+}
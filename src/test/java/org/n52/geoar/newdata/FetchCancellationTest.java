@@ -0,0 +1,322 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.http.client.methods.HttpGet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Pans quickly across viewports while the data source does not respond, the
+ * way a user swiping the map does with a slow connection. Fetches of tiles
+ * leaving the viewport have to be dropped from the queue or interrupted by
+ * their {@link FetchState}, so that no worker thread, no HTTP request and no
+ * {@link SingleFlight} registration is left to tiles nobody is interested
+ * in.
+ */
+public class FetchCancellationTest {
+
+	private static final String SOURCE_KEY = "FetchCancellationTest";
+	private static final long QUERY_HASH = 42;
+	private static final byte ZOOM = 12;
+	private static final int POOL_SIZE = 3;
+	private static final int VIEWPORT_COUNT = 50;
+	// Tiles per side of a viewport
+	private static final int VIEWPORT_SIZE = 3;
+	private static final long TIMEOUT_MILLIS = 5000;
+
+	// Outcomes of fetches
+	private static final int PENDING = 0;
+	private static final int DROPPED = 1;
+	private static final int CANCELED = 2;
+	private static final int COMPLETED = 3;
+
+	private FetchQueue queue;
+	private ThreadPoolExecutor pool;
+	private FetchQueue.Group group;
+	// Released once the pan ends, until then the data source does not respond
+	private final CountDownLatch dataSourceLatch = new CountDownLatch(1);
+	private volatile double focusX;
+	private volatile double focusY;
+	private final AtomicInteger runningCount = new AtomicInteger();
+	// First failure on a worker thread, asserted by the test thread
+	private final AtomicReference<Throwable> workerFailure = new AtomicReference<Throwable>();
+
+	/**
+	 * Fetch of a single tile, running the way the fetches of
+	 * {@link DataCache.DataTile} do, with a data source which issues one HTTP
+	 * request and waits for the end of the pan
+	 */
+	private final class TileFetch implements FetchQueue.PrioritizedRunnable {
+		private final Tile tile;
+		private final FetchState<Object> fetchState = new FetchState<Object>();
+		private final Object callback = new Object();
+		private final HttpGet request = new HttpGet("http://localhost/");
+		private final CountDownLatch finished = new CountDownLatch(1);
+		private final AtomicInteger outcome = new AtomicInteger(PENDING);
+
+		private TileFetch(Tile tile) {
+			this.tile = tile;
+			assertTrue(fetchState.addCallback(callback));
+		}
+
+		@Override
+		public double getPriority() {
+			return Math.hypot(tile.x - focusX, tile.y - focusY);
+		}
+
+		@Override
+		public boolean isObsolete() {
+			if (fetchState.isFetchObsolete()) {
+				finish(DROPPED);
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public FetchQueue.Group getGroup() {
+			return group;
+		}
+
+		@Override
+		public void run() {
+			if (!fetchState.beginFetch()) {
+				finish(DROPPED);
+				return;
+			}
+			runningCount.incrementAndGet();
+			int result;
+			FetchState.Running fetch = new FetchState.Running(fetchState);
+			try {
+				result = request(fetch);
+			} catch (Throwable e) {
+				workerFailure.compareAndSet(null, e);
+				result = CANCELED;
+			} finally {
+				fetch.finish();
+			}
+			fetchState.takeCallbacks();
+			runningCount.decrementAndGet();
+			finish(result);
+		}
+
+		private int request(FetchState.Running fetch) {
+			SingleFlight.Flight flight = SingleFlight.join(SOURCE_KEY,
+					QUERY_HASH, tile, new SingleFlight.FlightListener() {
+						@Override
+						public void onFlightCompleted(
+								List<? extends SpatialEntity2<? extends Geometry>> data,
+								Tile flightTile) {
+						}
+
+						@Override
+						public void onFlightFailed(Exception e) {
+						}
+					});
+			assertNotNull("Tiles of a pan do not overlap", flight);
+			if (!fetch.beginRequest()) {
+				flight.fail(new CancellationException());
+				return CANCELED;
+			}
+			boolean interrupted = false;
+			try {
+				HttpRequestTracker.track(request);
+				dataSourceLatch.await();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			} finally {
+				fetch.endRequest();
+			}
+			if (interrupted) {
+				assertTrue("HTTP request of a canceled fetch not aborted",
+						request.isAborted());
+				flight.fail(new CancellationException());
+				return CANCELED;
+			}
+			flight.complete(Collections
+					.<SpatialEntity2<? extends Geometry>> emptyList());
+			return COMPLETED;
+		}
+
+		/**
+		 * Requests of the tile got canceled
+		 * 
+		 * @return true if the fetch was running
+		 */
+		boolean cancel() {
+			boolean running = fetchState.isRunning();
+			fetchState.removeCallback(callback);
+			return running;
+		}
+
+		private void finish(int result) {
+			if (outcome.compareAndSet(PENDING, result)) {
+				finished.countDown();
+			}
+		}
+	}
+
+	@Before
+	public void setUp() {
+		queue = new FetchQueue();
+		group = new FetchQueue.Group(POOL_SIZE, 1);
+		pool = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 0,
+				TimeUnit.MILLISECONDS, queue);
+		pool.prestartAllCoreThreads();
+	}
+
+	@After
+	public void tearDown() {
+		dataSourceLatch.countDown();
+		pool.shutdownNow();
+	}
+
+	@Test
+	public void fastPanLeavesNoOrphanedFetches() throws Throwable {
+		Map<Long, TileFetch> viewportFetches = new HashMap<Long, TileFetch>();
+		List<TileFetch> allFetches = new ArrayList<TileFetch>();
+		for (int viewport = 0; viewport < VIEWPORT_COUNT; viewport++) {
+			// Each pan moves the viewport by a single tile
+			int left = 1000 + viewport;
+			int top = 1000;
+			focusX = left + VIEWPORT_SIZE / 2;
+			focusY = top + VIEWPORT_SIZE / 2;
+			group.invalidatePriorities();
+
+			Map<Long, TileFetch> nextFetches = new HashMap<Long, TileFetch>();
+			for (int x = left; x < left + VIEWPORT_SIZE; x++) {
+				for (int y = top; y < top + VIEWPORT_SIZE; y++) {
+					long key = Tile.getKey(x, y, ZOOM);
+					TileFetch fetch = viewportFetches.remove(key);
+					if (fetch == null) {
+						fetch = new TileFetch(new Tile(x, y, ZOOM));
+						allFetches.add(fetch);
+						pool.execute(fetch);
+					}
+					nextFetches.put(key, fetch);
+				}
+			}
+			// Tiles which left the viewport
+			List<TileFetch> interrupted = new ArrayList<TileFetch>();
+			for (TileFetch fetch : viewportFetches.values()) {
+				if (fetch.cancel()) {
+					interrupted.add(fetch);
+				}
+			}
+			for (TileFetch fetch : interrupted) {
+				assertTrue("Interrupted fetch did not finish",
+						fetch.finished.await(TIMEOUT_MILLIS,
+								TimeUnit.MILLISECONDS));
+			}
+			viewportFetches = nextFetches;
+			awaitBusyWorkers();
+		}
+
+		dataSourceLatch.countDown();
+		for (TileFetch fetch : allFetches) {
+			assertTrue("Fetch did not finish",
+					fetch.finished.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+		}
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while ((pool.getActiveCount() > 0 || !queue.isEmpty())
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertNoWorkerFailure();
+
+		int dropped = 0;
+		int canceled = 0;
+		int completed = 0;
+		for (TileFetch fetch : allFetches) {
+			boolean visible = viewportFetches.containsValue(fetch);
+			switch (fetch.outcome.get()) {
+			case DROPPED:
+				dropped++;
+				break;
+			case CANCELED:
+				canceled++;
+				break;
+			case COMPLETED:
+				assertTrue("Fetch of a tile left behind completed", visible);
+				completed++;
+				break;
+			default:
+				throw new AssertionError("Fetch still pending");
+			}
+			assertNull("Running fetch left", fetch.fetchState.getRunning());
+		}
+		assertEquals(VIEWPORT_SIZE * VIEWPORT_SIZE, completed);
+		assertEquals(allFetches.size(), dropped + canceled + completed);
+		assertEquals(0, pool.getActiveCount());
+		assertTrue(queue.isEmpty());
+
+		// A flight left registered would be joined instead of performed
+		for (TileFetch fetch : allFetches) {
+			SingleFlight.Flight flight = SingleFlight.join(SOURCE_KEY,
+					QUERY_HASH, fetch.tile, null);
+			assertNotNull("Orphaned flight", flight);
+			flight.complete(Collections
+					.<SpatialEntity2<? extends Geometry>> emptyList());
+		}
+		assertTrue("Fetches of left tiles got interrupted", canceled > 0);
+		TestEntities.report("Pan across " + VIEWPORT_COUNT + " viewports",
+				allFetches.size() + " fetches, " + dropped + " dropped, "
+						+ canceled + " interrupted, " + completed
+						+ " completed");
+	}
+
+	/**
+	 * Waits until the workers freed by interrupted fetches picked up the
+	 * tiles of the current viewport
+	 */
+	private void awaitBusyWorkers() throws Throwable {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (runningCount.get() < POOL_SIZE) {
+			assertNoWorkerFailure();
+			assertTrue("Workers not freed",
+					System.currentTimeMillis() < deadline);
+			Thread.sleep(1);
+		}
+	}
+
+	private void assertNoWorkerFailure() throws Throwable {
+		Throwable failure = workerFailure.get();
+		if (failure != null) {
+			throw failure;
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.http.client.methods.HttpGet;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Checks the transitions of {@link FetchState} and the cancellation of
+ * {@link FetchState.Running} fetches, as used by the tiles of
+ * {@link DataCache}
+ */
+public class FetchStateTest {
+
+	private final FetchState<Object> fetchState = new FetchState<Object>();
+	private final Object callback = new Object();
+
+	@After
+	public void tearDown() {
+		// Clears an interrupt of a failed test
+		Thread.interrupted();
+	}
+
+	@Test
+	public void queuedFetchWithoutCallbacksIsObsolete() {
+		assertTrue(fetchState.addCallback(callback));
+		Object otherCallback = new Object();
+		assertFalse("Fetch queued twice", fetchState.addCallback(otherCallback));
+		assertFalse(fetchState.isFetchObsolete());
+
+		fetchState.removeCallback(callback);
+		fetchState.removeCallback(otherCallback);
+		assertTrue(fetchState.isFetchObsolete());
+		assertFalse(fetchState.beginFetch());
+		assertTrue("Idle tile not queued", fetchState.addCallback(callback));
+	}
+
+	@Test
+	public void queuedFetchGetsReusedByNewCallbacks() {
+		assertTrue(fetchState.addCallback(callback));
+		fetchState.removeCallback(callback);
+		assertFalse(fetchState.addCallback(callback));
+		assertTrue(fetchState.beginFetch());
+		assertFalse("Fetch started twice", fetchState.beginFetch());
+		assertTrue(fetchState.isRunning());
+	}
+
+	@Test
+	public void cancelAbortsRequestAndInterrupts() {
+		FetchState.Running fetch = startFetch();
+		assertTrue(fetch.beginRequest());
+		HttpGet request = new HttpGet("http://localhost/");
+		HttpRequestTracker.track(request);
+
+		fetchState.removeCallback(callback);
+		assertTrue(fetch.isCanceled());
+		assertTrue(request.isAborted());
+		assertTrue(Thread.currentThread().isInterrupted());
+
+		assertTrue(fetch.endRequest());
+		assertFalse("Interrupt not cleared", Thread.interrupted());
+		fetch.finish();
+		assertNull(fetchState.getRunning());
+		assertFalse(fetchState.endCanceledFetch());
+		assertFalse(fetchState.isRunning());
+	}
+
+	@Test
+	public void requestAfterCancelDoesNotStart() {
+		FetchState.Running fetch = startFetch();
+		fetchState.removeCallback(callback);
+		assertTrue(fetch.isCanceled());
+		assertFalse(fetch.beginRequest());
+		assertFalse(Thread.currentThread().isInterrupted());
+		fetch.finish();
+	}
+
+	@Test
+	public void callbacksRemovedBeforeFetchStartsCancelIt() {
+		assertTrue(fetchState.addCallback(callback));
+		assertTrue(fetchState.beginFetch());
+		fetchState.removeCallback(callback);
+
+		FetchState.Running fetch = new FetchState.Running(fetchState);
+		assertTrue(fetch.isCanceled());
+		fetch.finish();
+	}
+
+	@Test
+	public void sharedFetchRunsWhileAnyTileIsRequested() {
+		FetchState<Object> otherState = new FetchState<Object>();
+		Object otherCallback = new Object();
+		assertTrue(fetchState.addCallback(callback));
+		assertTrue(otherState.addCallback(otherCallback));
+		assertTrue(fetchState.beginFetch());
+		assertTrue(otherState.beginFetch());
+		FetchState.Running fetch = new FetchState.Running(fetchState,
+				otherState);
+		assertSame(fetch, otherState.getRunning());
+
+		fetchState.removeCallback(callback);
+		assertFalse(fetch.isCanceled());
+		otherState.removeCallback(otherCallback);
+		assertTrue(fetch.isCanceled());
+		fetch.finish();
+	}
+
+	@Test
+	public void canceledFetchGetsQueuedAgainIfRequestedMeanwhile() {
+		FetchState.Running fetch = startFetch();
+		fetchState.removeCallback(callback);
+		assertFalse("Running tile queued", fetchState.addCallback(callback));
+		fetch.finish();
+
+		assertTrue(fetchState.endCanceledFetch());
+		assertTrue(fetchState.beginFetch());
+	}
+
+	@Test
+	public void finishedFetchIsNotCanceled() {
+		FetchState.Running fetch = startFetch();
+		fetch.finish();
+		assertSame(callback, fetchState.takeCallbacks().get(0));
+		assertFalse(fetchState.isRunning());
+
+		fetchState.removeCallback(callback);
+		assertFalse(fetch.isCanceled());
+	}
+
+	@Test
+	public void retriedFetchIsQueued() {
+		FetchState.Running fetch = startFetch();
+		fetch.finish();
+		assertTrue(fetchState.requeue());
+		assertFalse(fetchState.requeue());
+		assertFalse(fetchState.addCallback(new Object()));
+		assertTrue(fetchState.beginFetch());
+	}
+
+	private FetchState.Running startFetch() {
+		assertTrue(fetchState.addCallback(callback));
+		assertTrue(fetchState.beginFetch());
+		FetchState.Running fetch = new FetchState.Running(fetchState);
+		assertSame(fetch, fetchState.getRunning());
+		assertFalse(fetch.isCanceled());
+		return fetch;
+	}
+}
@@ -0,0 +1,273 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.n52.geoar.newdata.FilterHelper.EntityPredicate;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.index.ItemVisitor;
+
+/**
+ * Compares the order of {@link NearestEntityIterator} with sorting all
+ * entities by distance, and the time to find the nearest entities with
+ * sorting the entities of a bounding box, as the AR view did before.
+ */
+public class NearestEntityIteratorTest {
+
+	private static final double METERS_PER_DEGREE = 111320;
+	private static final double LATITUDE = 51.9636;
+	private static final double LONGITUDE = 7.6136;
+	// Tiles per side of the cached area
+	private static final int GRID_SIZE = 5;
+	private static final double TILE_SIZE = 0.01;
+	private static final int ENTITIES_PER_TILE = 400;
+	// Entities on the border to the next tile, indexed for both tiles
+	private static final int SHARED_PER_TILE = 20;
+	private static final double MAX_DISTANCE = 1000;
+	// Side length of the bounding box queried by the AR view in meters
+	private static final double BBOX_SIZE = 1500;
+	private static final int NEAREST_COUNT = 20;
+	private static final int BENCHMARK_RUNS = 100;
+
+	private static EntityIndex index;
+	private static List<SpatialEntity2<? extends Geometry>> allEntities;
+
+	/**
+	 * Entity and its distance to the location
+	 */
+	private static final class Neighbour {
+		private final SpatialEntity2<? extends Geometry> entity;
+		private final double distance;
+
+		private Neighbour(SpatialEntity2<? extends Geometry> entity) {
+			this.entity = entity;
+			this.distance = getDistance(entity);
+		}
+	}
+
+	private static final Comparator<Neighbour> DISTANCE_COMPARATOR = new Comparator<Neighbour>() {
+		@Override
+		public int compare(Neighbour lhs, Neighbour rhs) {
+			return Double.compare(lhs.distance, rhs.distance);
+		}
+	};
+
+	private static final EntityPredicate EVEN_LONGITUDE_PREDICATE = new EntityPredicate() {
+		@Override
+		public boolean accept(SpatialEntity2<? extends Geometry> entity) {
+			return ((long) (entity.getLongitude() * 1E6)) % 2 == 0;
+		}
+	};
+
+	@BeforeClass
+	public static void setUpIndex() {
+		Random random = new Random(22);
+		final List<List<SpatialEntity2<? extends Geometry>>> tileEntities = new ArrayList<List<SpatialEntity2<? extends Geometry>>>();
+		allEntities = new ArrayList<SpatialEntity2<? extends Geometry>>();
+		double minLongitude = LONGITUDE - GRID_SIZE * TILE_SIZE / 2;
+		double minLatitude = LATITUDE - GRID_SIZE * TILE_SIZE / 2;
+		for (int x = 0; x < GRID_SIZE; x++) {
+			for (int y = 0; y < GRID_SIZE; y++) {
+				List<SpatialEntity2<? extends Geometry>> entities = new ArrayList<SpatialEntity2<? extends Geometry>>();
+				for (int i = 0; i < ENTITIES_PER_TILE; i++) {
+					entities.add(TestEntities.point(minLongitude
+							+ (x + random.nextDouble()) * TILE_SIZE,
+							minLatitude + (y + random.nextDouble())
+									* TILE_SIZE));
+				}
+				allEntities.addAll(entities);
+				tileEntities.add(entities);
+			}
+		}
+		// Shares entities on the border with the tile above
+		for (int x = 0; x < GRID_SIZE; x++) {
+			for (int y = 0; y < GRID_SIZE - 1; y++) {
+				for (int i = 0; i < SHARED_PER_TILE; i++) {
+					SpatialEntity2<? extends Geometry> entity = TestEntities
+							.point(minLongitude + (x + random.nextDouble())
+									* TILE_SIZE, minLatitude + (y + 1)
+									* TILE_SIZE);
+					tileEntities.get(x * GRID_SIZE + y).add(entity);
+					tileEntities.get(x * GRID_SIZE + y + 1).add(entity);
+					allEntities.add(entity);
+				}
+			}
+		}
+		index = new EntityIndex();
+		index.apply(new EntityIndex.Update() {
+			@Override
+			void apply(EntityIndex.Editor editor) {
+				for (int i = 0; i < tileEntities.size(); i++) {
+					editor.put(i, tileEntities.get(i));
+				}
+			}
+		});
+	}
+
+	private static double getDistance(SpatialEntity2<? extends Geometry> entity) {
+		double dx = (entity.getLongitude() - LONGITUDE) * METERS_PER_DEGREE
+				* Math.cos(Math.toRadians(LATITUDE));
+		double dy = (entity.getLatitude() - LATITUDE) * METERS_PER_DEGREE;
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+
+	/**
+	 * @return All entities within the maximum distance matching the predicate,
+	 *         sorted by distance
+	 */
+	private static List<Neighbour> sortAll(EntityPredicate predicate) {
+		List<Neighbour> neighbours = new ArrayList<Neighbour>();
+		for (SpatialEntity2<? extends Geometry> entity : allEntities) {
+			Neighbour neighbour = new Neighbour(entity);
+			if (neighbour.distance <= MAX_DISTANCE
+					&& (predicate == null || predicate.accept(entity))) {
+				neighbours.add(neighbour);
+			}
+		}
+		Collections.sort(neighbours, DISTANCE_COMPARATOR);
+		return neighbours;
+	}
+
+	private static NearestEntityIterator queryNearest(EntityPredicate predicate) {
+		return new NearestEntityIterator(index.getSnapshot(), LATITUDE,
+				LONGITUDE, MAX_DISTANCE, null, predicate);
+	}
+
+	private static void assertSameOrder(List<Neighbour> expected,
+			NearestEntityIterator iterator) {
+		Map<Object, Boolean> returned = new IdentityHashMap<Object, Boolean>();
+		for (Neighbour neighbour : expected) {
+			assertTrue(iterator.hasNext());
+			SpatialEntity2<? extends Geometry> entity = iterator.next();
+			// Points at equal distances may be returned in either order
+			assertEquals(neighbour.distance, iterator.getDistance(), 1E-6);
+			assertEquals(iterator.getDistance(), getDistance(entity), 1E-6);
+			assertFalse("Entity returned twice",
+					returned.containsKey(entity));
+			returned.put(entity, Boolean.TRUE);
+		}
+		assertFalse(iterator.hasNext());
+	}
+
+	@Test
+	public void returnsEntitiesInDistanceOrder() {
+		List<Neighbour> expected = sortAll(null);
+		assertTrue(expected.size() > NEAREST_COUNT);
+		assertSameOrder(expected, queryNearest(null));
+	}
+
+	@Test
+	public void appliesPredicate() {
+		assertSameOrder(sortAll(EVEN_LONGITUDE_PREDICATE),
+				queryNearest(EVEN_LONGITUDE_PREDICATE));
+	}
+
+	@Test
+	public void returnsNearestFirst() {
+		Neighbour nearest = sortAll(null).get(0);
+		NearestEntityIterator iterator = queryNearest(null);
+		assertSame(nearest.entity, iterator.next());
+	}
+
+	/**
+	 * Nearest entities by sorting the entities of a bounding box around the
+	 * location
+	 */
+	private static List<Neighbour> queryBoundingBox(int count) {
+		double halfSize = BBOX_SIZE / 2;
+		double longitudeDelta = halfSize
+				/ (METERS_PER_DEGREE * Math.cos(Math.toRadians(LATITUDE)));
+		double latitudeDelta = halfSize / METERS_PER_DEGREE;
+		final Envelope envelope = new Envelope(LONGITUDE - longitudeDelta,
+				LONGITUDE + longitudeDelta, LATITUDE - latitudeDelta,
+				LATITUDE + latitudeDelta);
+		final List<Neighbour> neighbours = new ArrayList<Neighbour>();
+		final EntitySet resultSet = new EntitySet();
+		index.getSnapshot().query(envelope, new ItemVisitor() {
+			@Override
+			public void visitItem(Object item) {
+				@SuppressWarnings("unchecked")
+				SpatialEntity2<? extends Geometry> entity = (SpatialEntity2<? extends Geometry>) item;
+				if (envelope.intersects(entity.getEnvelope())
+						&& resultSet.add(entity)) {
+					neighbours.add(new Neighbour(entity));
+				}
+			}
+		});
+		Collections.sort(neighbours, DISTANCE_COMPARATOR);
+		return neighbours.subList(0, Math.min(count, neighbours.size()));
+	}
+
+	private static List<SpatialEntity2<? extends Geometry>> queryNearest(
+			int count) {
+		List<SpatialEntity2<? extends Geometry>> nearest = new ArrayList<SpatialEntity2<? extends Geometry>>();
+		NearestEntityIterator iterator = queryNearest(null);
+		while (nearest.size() < count && iterator.hasNext()) {
+			nearest.add(iterator.next());
+		}
+		return nearest;
+	}
+
+	@Test
+	@Category(Benchmark.class)
+	public void nearestBenchmark() {
+		List<Neighbour> expected = queryBoundingBox(NEAREST_COUNT);
+		List<SpatialEntity2<? extends Geometry>> nearest = queryNearest(NEAREST_COUNT);
+		assertEquals(expected.size(), nearest.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).distance,
+					getDistance(nearest.get(i)), 1E-6);
+		}
+
+		// Warm up
+		for (int i = 0; i < BENCHMARK_RUNS; i++) {
+			queryBoundingBox(NEAREST_COUNT);
+			queryNearest(NEAREST_COUNT);
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < BENCHMARK_RUNS; i++) {
+			queryBoundingBox(NEAREST_COUNT);
+		}
+		long boundingBoxNanos = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i = 0; i < BENCHMARK_RUNS; i++) {
+			queryNearest(NEAREST_COUNT);
+		}
+		long nearestNanos = System.nanoTime() - start;
+
+		TestEntities.report("Nearest " + NEAREST_COUNT + " of "
+				+ allEntities.size() + " entities", "bbox and sort "
+				+ boundingBoxNanos / BENCHMARK_RUNS / 1000 + " us, kNN "
+				+ nearestNanos / BENCHMARK_RUNS / 1000 + " us");
+	}
+}
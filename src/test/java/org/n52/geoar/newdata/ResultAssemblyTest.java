@@ -0,0 +1,203 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.index.ItemVisitor;
+
+/**
+ * Compares the assembly of bounding box results by a single index query with
+ * set based deduplication to the previous per tile queries deduplicated by
+ * {@link List#contains(Object)}.
+ */
+public class ResultAssemblyTest {
+
+	// Tiles per side of the requested grid
+	private static final int GRID_SIZE = 5;
+	private static final double TILE_SIZE = 10;
+	private static final int ENTITIES_PER_TILE = 760;
+	// Entities on the border to the next tile, indexed for both tiles
+	private static final int SHARED_PER_TILE = 40;
+
+	private static EntityIndex index;
+	private static List<Envelope> tileEnvelopes;
+	private static Envelope gridEnvelope;
+
+	@BeforeClass
+	public static void setUpIndex() {
+		Random random = new Random(8);
+		index = new EntityIndex();
+		tileEnvelopes = new ArrayList<Envelope>();
+		gridEnvelope = new Envelope();
+		final List<List<SpatialEntity2<? extends Geometry>>> tileEntities = new ArrayList<List<SpatialEntity2<? extends Geometry>>>();
+		for (int x = 0; x < GRID_SIZE; x++) {
+			for (int y = 0; y < GRID_SIZE; y++) {
+				Envelope envelope = new Envelope(x * TILE_SIZE, (x + 1)
+						* TILE_SIZE, y * TILE_SIZE, (y + 1) * TILE_SIZE);
+				tileEnvelopes.add(envelope);
+				gridEnvelope.expandToInclude(envelope);
+				List<SpatialEntity2<? extends Geometry>> entities = new ArrayList<SpatialEntity2<? extends Geometry>>();
+				for (int i = 0; i < ENTITIES_PER_TILE; i++) {
+					entities.add(TestEntities.point(envelope.getMinX()
+							+ random.nextDouble() * TILE_SIZE,
+							envelope.getMinY() + random.nextDouble()
+									* TILE_SIZE));
+				}
+				tileEntities.add(entities);
+			}
+		}
+		// Shares entities on the border with the tile to the right
+		for (int x = 0; x < GRID_SIZE - 1; x++) {
+			for (int y = 0; y < GRID_SIZE; y++) {
+				Envelope envelope = tileEnvelopes.get(x * GRID_SIZE + y);
+				for (int i = 0; i < SHARED_PER_TILE; i++) {
+					SpatialEntity2<? extends Geometry> entity = TestEntities
+							.point(envelope.getMaxX(), envelope.getMinY()
+									+ random.nextDouble() * TILE_SIZE);
+					tileEntities.get(x * GRID_SIZE + y).add(entity);
+					tileEntities.get((x + 1) * GRID_SIZE + y).add(entity);
+				}
+			}
+		}
+		index.apply(new EntityIndex.Update() {
+			@Override
+			void apply(EntityIndex.Editor editor) {
+				for (int i = 0; i < tileEntities.size(); i++) {
+					editor.put(i, tileEntities.get(i));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Assembly by querying each tile and deduplicating by the result list
+	 */
+	private static List<SpatialEntity2<? extends Geometry>> assemblePerTile() {
+		final List<SpatialEntity2<? extends Geometry>> result = new ArrayList<SpatialEntity2<? extends Geometry>>();
+		EntityIndex.Snapshot snapshot = index.getSnapshot();
+		for (final Envelope tileEnvelope : tileEnvelopes) {
+			snapshot.query(tileEnvelope, new ItemVisitor() {
+				@Override
+				public void visitItem(Object item) {
+					@SuppressWarnings("unchecked")
+					SpatialEntity2<? extends Geometry> entity = (SpatialEntity2<? extends Geometry>) item;
+					if (tileEnvelope.intersects(entity.getEnvelope())
+							&& !result.contains(entity)) {
+						result.add(entity);
+					}
+				}
+			});
+		}
+		return result;
+	}
+
+	/**
+	 * Assembly by a single query over the grid, like
+	 * {@link DataCache#getDataByBBox} with a bounds callback
+	 */
+	private static List<SpatialEntity2<? extends Geometry>> assembleByUnion() {
+		final List<SpatialEntity2<? extends Geometry>> result = new ArrayList<SpatialEntity2<? extends Geometry>>();
+		final EntitySet resultSet = new EntitySet();
+		index.getSnapshot().query(gridEnvelope, new ItemVisitor() {
+			@Override
+			public void visitItem(Object item) {
+				@SuppressWarnings("unchecked")
+				SpatialEntity2<? extends Geometry> entity = (SpatialEntity2<? extends Geometry>) item;
+				if (gridEnvelope.intersects(entity.getEnvelope())
+						&& resultSet.add(entity)) {
+					result.add(entity);
+				}
+			}
+		});
+		return result;
+	}
+
+	@Test
+	public void entitySetMatchesListDeduplication() {
+		List<SpatialEntity2<? extends Geometry>> input = new ArrayList<SpatialEntity2<? extends Geometry>>();
+		EntityIndex.Snapshot snapshot = index.getSnapshot();
+		for (int i = 0; i < snapshot.getEntryCount(); i++) {
+			input.addAll(snapshot.getEntryEntities(i));
+		}
+
+		List<Object> listResult = new ArrayList<Object>();
+		for (Object entity : input) {
+			if (!listResult.contains(entity)) {
+				listResult.add(entity);
+			}
+		}
+		List<Object> setResult = new ArrayList<Object>();
+		EntitySet set = new EntitySet();
+		for (Object entity : input) {
+			if (set.add(entity)) {
+				setResult.add(entity);
+			}
+		}
+
+		assertEquals(listResult, setResult);
+		assertEquals(listResult.size(), set.size());
+		for (Object entity : input) {
+			assertTrue(set.contains(entity));
+		}
+		assertFalse(set.contains(TestEntities.point(0, 0)));
+	}
+
+	@Test
+	@Category(Benchmark.class)
+	public void assemblyBenchmark() {
+		// Warm up
+		assemblePerTile();
+		assembleByUnion();
+
+		long start = System.nanoTime();
+		List<SpatialEntity2<? extends Geometry>> perTile = assemblePerTile();
+		long perTileNanos = System.nanoTime() - start;
+		start = System.nanoTime();
+		List<SpatialEntity2<? extends Geometry>> union = assembleByUnion();
+		long unionNanos = System.nanoTime() - start;
+
+		int expectedSize = GRID_SIZE * GRID_SIZE * ENTITIES_PER_TILE
+				+ (GRID_SIZE - 1) * GRID_SIZE * SHARED_PER_TILE;
+		assertEquals(expectedSize, perTile.size());
+		assertEquals(perTile.size(), union.size());
+		Map<Object, Boolean> perTileEntities = new IdentityHashMap<Object, Boolean>();
+		for (Object entity : perTile) {
+			perTileEntities.put(entity, Boolean.TRUE);
+		}
+		for (Object entity : union) {
+			assertTrue(perTileEntities.containsKey(entity));
+		}
+
+		TestEntities.report("Assembly of " + expectedSize + " entities",
+				"per tile " + perTileNanos / 1000000 + " ms, single query "
+						+ unionNanos / 1000000 + " ms");
+	}
+}
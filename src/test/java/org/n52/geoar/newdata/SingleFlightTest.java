@@ -0,0 +1,88 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Checks that a {@link SingleFlight.Flight} lands once, as a batch fetch
+ * fails the flights of tiles which failed to store their data, even if they
+ * already got completed
+ */
+public class SingleFlightTest {
+
+	private static final String SOURCE_KEY = "SingleFlightTest";
+	private static final long QUERY_HASH = 42;
+
+	private final AtomicInteger completed = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final SingleFlight.FlightListener listener = new SingleFlight.FlightListener() {
+		@Override
+		public void onFlightCompleted(
+				List<? extends SpatialEntity2<? extends Geometry>> data,
+				Tile flightTile) {
+			completed.incrementAndGet();
+		}
+
+		@Override
+		public void onFlightFailed(Exception e) {
+			failed.incrementAndGet();
+		}
+	};
+
+	@Test
+	public void flightLandsOnce() {
+		Tile tile = new Tile(100, 200, (byte) 10);
+		SingleFlight.Flight flight = SingleFlight.join(SOURCE_KEY,
+				QUERY_HASH, tile, null);
+		assertNotNull(flight);
+		assertNull(SingleFlight.join(SOURCE_KEY, QUERY_HASH, tile, listener));
+
+		flight.complete(Collections
+				.<SpatialEntity2<? extends Geometry>> emptyList());
+		flight.fail(new IllegalStateException());
+		assertEquals(1, completed.get());
+		assertEquals(0, failed.get());
+	}
+
+	@Test
+	public void landedFlightKeepsNextFlight() {
+		Tile tile = new Tile(300, 400, (byte) 10);
+		SingleFlight.Flight flight = SingleFlight.join(SOURCE_KEY,
+				QUERY_HASH, tile, null);
+		flight.complete(Collections
+				.<SpatialEntity2<? extends Geometry>> emptyList());
+		SingleFlight.Flight nextFlight = SingleFlight.join(SOURCE_KEY,
+				QUERY_HASH, tile, null);
+		assertNotNull(nextFlight);
+
+		flight.fail(new IllegalStateException());
+		assertNull("Next flight got unregistered",
+				SingleFlight.join(SOURCE_KEY, QUERY_HASH, tile, listener));
+		nextFlight.fail(new IllegalStateException());
+		assertEquals(1, failed.get());
+	}
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * Entities and helpers shared by the tests of the cache classes
+ */
+final class TestEntities {
+
+	private static final Logger LOG = LoggerFactory.getLogger(TestEntities.class);
+	private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+	private TestEntities() {
+	}
+
+	static SpatialEntity2<Point> point(double longitude, double latitude) {
+		return new SpatialEntity2<Point>(
+				GEOMETRY_FACTORY.createPoint(new Coordinate(longitude,
+						latitude)));
+	}
+
+	/**
+	 * Logs the result of a benchmark. Timings are not asserted since they
+	 * depend on the machine running the tests.
+	 */
+	static void report(String benchmark, String result) {
+		LOG.info(benchmark + ": " + result);
+	}
+}
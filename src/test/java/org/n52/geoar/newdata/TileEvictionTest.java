@@ -0,0 +1,232 @@
+/**
+ * Copyright 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.geoar.newdata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Checks the tile map and the access order used for evicting tiles with 10k
+ * cached tiles, and compares eviction from the access order with the
+ * previous eviction by sorting all tiles by their last usage.
+ */
+public class TileEvictionTest {
+
+	private static final int TILE_COUNT = 10000;
+	// Number of distinct tiles accessed, more than fit into the cache
+	private static final int ACCESSED_TILE_COUNT = 12000;
+	private static final int ACCESS_COUNT = 200000;
+	private static final int HIGH_WATER_MARK = TILE_COUNT;
+	private static final int LOW_WATER_MARK = TILE_COUNT * 9 / 10;
+	// Calls between the checks of the previous eviction
+	private static final int SORT_INTERVAL = 50;
+	private static final byte ZOOM = 17;
+
+	/**
+	 * Cached tile as seen by the eviction
+	 */
+	private static final class CachedTile {
+		private final long key;
+		private final AccessOrder.Node<CachedTile> node = new AccessOrder.Node<CachedTile>(
+				this);
+		private long lastUsage;
+
+		private CachedTile(long key) {
+			this.key = key;
+		}
+	}
+
+	private static final Comparator<CachedTile> LAST_USAGE_COMPARATOR = new Comparator<CachedTile>() {
+		@Override
+		public int compare(CachedTile lhs, CachedTile rhs) {
+			return lhs.lastUsage < rhs.lastUsage ? -1
+					: (lhs.lastUsage == rhs.lastUsage ? 0 : 1);
+		}
+	};
+
+	private static long getKey(int index) {
+		return Tile.getKey(10000 + index % 128, 20000 + index / 128, ZOOM);
+	}
+
+	@Test
+	public void tileKeyMapMatchesHashMap() {
+		Random random = new Random(11);
+		TileKeyMap<Long> tileMap = new TileKeyMap<Long>();
+		Map<Long, Long> hashMap = new HashMap<Long, Long>();
+		for (int i = 0; i < ACCESS_COUNT; i++) {
+			long key = getKey(random.nextInt(ACCESSED_TILE_COUNT));
+			switch (random.nextInt(3)) {
+			case 0:
+				Long value = Long.valueOf(i);
+				assertEquals(hashMap.put(key, value), tileMap.put(key, value));
+				break;
+			case 1:
+				assertEquals(hashMap.remove(key), tileMap.remove(key));
+				break;
+			default:
+				assertEquals(hashMap.get(key), tileMap.get(key));
+			}
+			assertEquals(hashMap.size(), tileMap.size());
+		}
+		for (int i = 0; i < ACCESSED_TILE_COUNT; i++) {
+			long key = getKey(i);
+			assertEquals(hashMap.get(key), tileMap.get(key));
+		}
+	}
+
+	@Test
+	public void accessOrderMatchesLastUsage() {
+		Random random = new Random(11);
+		AccessOrder<CachedTile> order = new AccessOrder<CachedTile>();
+		List<CachedTile> tiles = new ArrayList<CachedTile>();
+		for (int i = 0; i < TILE_COUNT; i++) {
+			CachedTile tile = new CachedTile(getKey(i));
+			tile.lastUsage = i;
+			tiles.add(tile);
+			order.link(tile.node);
+		}
+		for (int i = 0; i < ACCESS_COUNT; i++) {
+			CachedTile tile = tiles.get(random.nextInt(TILE_COUNT));
+			tile.lastUsage = TILE_COUNT + i;
+			order.touch(tile.node);
+		}
+		// Removes some tiles out of order
+		for (int i = 0; i < TILE_COUNT / 10; i++) {
+			order.unlink(tiles.remove(random.nextInt(tiles.size())).node);
+		}
+
+		Collections.sort(tiles, LAST_USAGE_COMPARATOR);
+		AccessOrder.Node<CachedTile> node = order.getHead();
+		for (CachedTile tile : tiles) {
+			assertSame(tile, node.getElement());
+			node = node.getNext();
+		}
+		assertNull(node);
+	}
+
+	/**
+	 * Accesses tiles of a larger area than fits into the cache, evicting
+	 * tiles by either strategy
+	 */
+	@Test
+	@Category(Benchmark.class)
+	public void evictionBenchmark() {
+		// Warm up
+		runAccessOrderEviction();
+		runSortedEviction();
+
+		long start = System.nanoTime();
+		int accessOrderEvictions = runAccessOrderEviction();
+		long accessOrderNanos = System.nanoTime() - start;
+		start = System.nanoTime();
+		int sortedEvictions = runSortedEviction();
+		long sortedNanos = System.nanoTime() - start;
+
+		TestEntities.report("Eviction with " + TILE_COUNT + " tiles, "
+				+ ACCESS_COUNT + " accesses", "access order "
+				+ accessOrderNanos / 1000000 + " ms (" + accessOrderEvictions
+				+ " evictions), sorting every " + SORT_INTERVAL + " calls "
+				+ sortedNanos / 1000000 + " ms (" + sortedEvictions
+				+ " evictions)");
+	}
+
+	/**
+	 * Evicts down to the low water mark from the access order once the high
+	 * water mark is exceeded, like {@link DataCache}
+	 * 
+	 * @return Number of evicted tiles
+	 */
+	private static int runAccessOrderEviction() {
+		Random random = new Random(11);
+		TileKeyMap<CachedTile> tileMap = new TileKeyMap<CachedTile>();
+		AccessOrder<CachedTile> order = new AccessOrder<CachedTile>();
+		int evictions = 0;
+		for (int i = 0; i < ACCESS_COUNT; i++) {
+			long key = getKey(random.nextInt(ACCESSED_TILE_COUNT));
+			CachedTile tile = tileMap.get(key);
+			if (tile != null) {
+				order.touch(tile.node);
+				continue;
+			}
+			tile = new CachedTile(key);
+			tileMap.put(key, tile);
+			order.link(tile.node);
+			if (tileMap.size() > HIGH_WATER_MARK) {
+				while (tileMap.size() > LOW_WATER_MARK) {
+					AccessOrder.Node<CachedTile> head = order.getHead();
+					order.unlink(head);
+					tileMap.remove(head.getElement().key);
+					evictions++;
+				}
+			}
+		}
+		assertEquals(tileMap.size(), countLinked(order));
+		return evictions;
+	}
+
+	/**
+	 * Sorts all tiles by last usage every {@link #SORT_INTERVAL} calls and
+	 * evicts down to the low water mark, like the previous
+	 * removeUnusedTiles
+	 * 
+	 * @return Number of evicted tiles
+	 */
+	private static int runSortedEviction() {
+		Random random = new Random(11);
+		Map<Long, CachedTile> tileMap = new HashMap<Long, CachedTile>();
+		int evictions = 0;
+		for (int i = 0; i < ACCESS_COUNT; i++) {
+			long key = getKey(random.nextInt(ACCESSED_TILE_COUNT));
+			CachedTile tile = tileMap.get(key);
+			if (tile == null) {
+				tile = new CachedTile(key);
+				tileMap.put(key, tile);
+			}
+			tile.lastUsage = i;
+			if (i % SORT_INTERVAL == 0 && tileMap.size() > HIGH_WATER_MARK) {
+				List<CachedTile> tiles = new ArrayList<CachedTile>(
+						tileMap.values());
+				Collections.sort(tiles, LAST_USAGE_COMPARATOR);
+				for (int j = 0; j < tiles.size() - LOW_WATER_MARK; j++) {
+					tileMap.remove(tiles.get(j).key);
+					evictions++;
+				}
+			}
+		}
+		return evictions;
+	}
+
+	private static int countLinked(AccessOrder<CachedTile> order) {
+		int count = 0;
+		for (AccessOrder.Node<CachedTile> node = order.getHead(); node != null; node = node
+				.getNext()) {
+			count++;
+		}
+		return count;
+	}
+}